@@ -2,9 +2,11 @@ package com.zyzyz.im;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisHttpSession;
 
 @SpringBootApplication
+@EnableScheduling
 @EnableRedisHttpSession(maxInactiveIntervalInSeconds = 3600) // Session 1小时过期
 public class ImApplication {
 
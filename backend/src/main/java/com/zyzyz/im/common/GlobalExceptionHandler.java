@@ -0,0 +1,29 @@
+package com.zyzyz.im.common;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import com.zyzyz.im.manager.AIHttpClient;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 全局异常处理
+ */
+@Slf4j
+@RestControllerAdvice
+public class GlobalExceptionHandler {
+
+    /**
+     * AI 接口舱壁已满：返回 503，前端提示稍后重试（不作为服务端错误处理）
+     */
+    @ExceptionHandler(AIHttpClient.BulkheadFullException.class)
+    public ResponseEntity<Result<Void>> handleBulkheadFull(AIHttpClient.BulkheadFullException e) {
+        log.warn("AI请求被舱壁拒绝：{}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header("Retry-After", "1")
+                .body(Result.error(HttpStatus.SERVICE_UNAVAILABLE.value(), "AI服务繁忙，请稍后重试"));
+    }
+}
@@ -1,8 +1,12 @@
 package com.zyzyz.im.controller;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -10,11 +14,13 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.zyzyz.im.common.Result;
 import com.zyzyz.im.dto.AIRequest;
 import com.zyzyz.im.dto.AIResponse;
 import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.AIHttpClient;
 import com.zyzyz.im.service.AIService;
 import com.zyzyz.im.service.MessageService;
 
@@ -34,6 +40,10 @@ public class AIController {
     @Autowired
     private MessageService messageService;
     
+    // 流式对话 SSE 超时时间
+    @Value("${ai.stream.timeoutMs:180000}")
+    private long streamTimeoutMs;
+    
     /**
      * 与AI聊天
      */
@@ -50,6 +60,53 @@ public class AIController {
         return Result.success(response);
     }
     
+    /**
+     * 与AI流式聊天（SSE）：delta 事件推送增量文本（{"content": "..."}），done 事件推送完整 AIResponse，error 事件推送错误信息
+     * 带 imageUrl 为图文对话，带 fileId 为文档对话
+     */
+    @PostMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter chatStream(@RequestBody AIRequest request) {
+        log.info("收到AI流式聊天请求，用户：{}，消息：{}", request.getUserId(), request.getMessage());
+        
+        SseEmitter emitter = new SseEmitter(streamTimeoutMs);
+        if (Boolean.TRUE.equals(request.getClearHistory())) {
+            aiService.clearHistory(request.getUserId());
+        }
+        
+        AIService.StreamHandle handle = aiService.chatStream(request.getUserId(), request, new AIService.StreamListener() {
+            @Override
+            public void onDelta(String delta) throws IOException {
+                // 增量文本按 JSON 发送：SSE 的 data 行会吞掉开头的空格和换行
+                emitter.send(SseEmitter.event().name("delta").data(Map.of("content", delta), MediaType.APPLICATION_JSON));
+            }
+            
+            @Override
+            public void onComplete(AIResponse response) {
+                try {
+                    emitter.send(SseEmitter.event().name("done").data(response, MediaType.APPLICATION_JSON));
+                    emitter.complete();
+                } catch (Exception e) {
+                    emitter.completeWithError(e);
+                }
+            }
+            
+            @Override
+            public void onError(String message) {
+                try {
+                    emitter.send(SseEmitter.event().name("error").data(message, MediaType.TEXT_PLAIN));
+                    emitter.complete();
+                } catch (Exception e) {
+                    emitter.completeWithError(e);
+                }
+            }
+        });
+        // SSE 超时、客户端断开或结束时关闭上游连接，不再占用读取线程和舱壁配额
+        emitter.onTimeout(handle::cancel);
+        emitter.onError(e -> handle.cancel());
+        emitter.onCompletion(handle::cancel);
+        return emitter;
+    }
+    
     /**
      * 清空对话上下文（开始新话题，保留历史）
      */
@@ -133,10 +190,13 @@ public class AIController {
         log.info("收到文档上传请求，文件名：{}，大小：{}", file.getOriginalFilename(), file.getSize());
         
         try {
-            byte[] fileBytes = file.getBytes();
-            String fileId = aiService.uploadDocument(fileBytes, file.getOriginalFilename());
+            // 直接传入 MultipartFile 作为流来源，不整体读入内存
+            String fileId = aiService.uploadDocument(file, file.getSize(), file.getOriginalFilename());
             log.info("文档上传成功，file_id：{}", fileId);
             return Result.success(fileId);
+        } catch (AIHttpClient.BulkheadFullException e) {
+            // 交给 GlobalExceptionHandler 返回 503
+            throw e;
         } catch (Exception e) {
             log.error("文档上传失败：{}", e.getMessage(), e);
             return Result.error("文档上传失败：" + e.getMessage());
@@ -0,0 +1,323 @@
+package com.zyzyz.im.controller;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.zyzyz.im.common.Result;
+import com.zyzyz.im.manager.AIContextBuilder;
+import com.zyzyz.im.manager.AIHttpClient;
+import com.zyzyz.im.manager.AIImageProcessor;
+import com.zyzyz.im.manager.AIResponseCache;
+import com.zyzyz.im.manager.GroupMembershipCache;
+import com.zyzyz.im.manager.PresenceManager;
+import com.zyzyz.im.manager.ReadReceiptManager;
+import com.zyzyz.im.manager.RecentMessageCache;
+import com.zyzyz.im.manager.SearchPartitionManager;
+import com.zyzyz.im.manager.WebsocketSessionManager;
+import com.zyzyz.im.service.MessageSearchService;
+import com.zyzyz.im.service.impl.LuceneMessageSearchServiceImpl;
+import com.zyzyz.im.task.MessageBulkIndexTask;
+import com.zyzyz.im.task.MessageIndexTask;
+import com.zyzyz.im.task.MessageWriteBehindTask;
+
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * 运维监控控制器
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    // 允许执行运维操作（重建索引等）的用户，逗号分隔；为空时任何人都不能执行
+    @Value("${admin.userIds:}")
+    private Set<String> adminUserIds;
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private MessageWriteBehindTask messageWriteBehindTask;
+
+    // search.engine=lucene 时不存在
+    @Autowired(required = false)
+    private MessageBulkIndexTask messageBulkIndexTask;
+
+    // search.engine=lucene 时不存在
+    @Autowired(required = false)
+    private MessageIndexTask messageIndexTask;
+
+    @Autowired
+    private MessageSearchService messageSearchService;
+
+    @Autowired
+    private PresenceManager presenceManager;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Autowired
+    private ReadReceiptManager readReceiptManager;
+
+    @Autowired
+    private RecentMessageCache recentMessageCache;
+
+    @Autowired
+    private AIHttpClient aiHttpClient;
+
+    @Autowired
+    private AIContextBuilder aiContextBuilder;
+
+    @Autowired
+    private AIResponseCache aiResponseCache;
+
+    @Autowired
+    private AIImageProcessor aiImageProcessor;
+
+    // search.engine=lucene 时不存在
+    @Autowired(required = false)
+    private SearchPartitionManager searchPartitionManager;
+
+    // search.engine=lucene 时存在
+    @Autowired(required = false)
+    private LuceneMessageSearchServiceImpl luceneMessageSearchService;
+
+    private static final String ES_ONLY = "当前搜索引擎不是 Elasticsearch";
+
+    /**
+     * WebSocket 出站队列指标（队列深度、丢弃数、慢连接断开数）
+     */
+    @GetMapping("/metrics/websocket")
+    public Result<Map<String, Object>> getWebsocketMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(websocketSessionManager.getOutboundStats());
+    }
+
+    /**
+     * 消息写缓冲指标（待写入数、批次、落盘数、持久化延迟）
+     */
+    @GetMapping("/metrics/persist")
+    public Result<Map<String, Object>> getPersistMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(messageWriteBehindTask.getStats());
+    }
+
+    /**
+     * 索引指标：ES 批量索引（队列深度、索引延迟、bulk 耗时、死信数）或 Lucene 本地索引（文档数、水位、搜索耗时）
+     */
+    @GetMapping("/metrics/index")
+    public Result<Map<String, Object>> getIndexMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        if (messageBulkIndexTask == null) {
+            return Result.success(luceneMessageSearchService.getStats());
+        }
+        return Result.success(messageBulkIndexTask.getStats());
+    }
+
+    /**
+     * 在线状态推送指标（合并事件数、推送帧数、关注者缓存）
+     */
+    @GetMapping("/metrics/presence")
+    public Result<Map<String, Object>> getPresenceMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(presenceManager.getStats());
+    }
+
+    /**
+     * 群成员缓存指标（命中率、加载耗时、失效次数）
+     */
+    @GetMapping("/metrics/group-cache")
+    public Result<Map<String, Object>> getGroupCacheMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(groupMembershipCache.getStats());
+    }
+
+    /**
+     * 已读回执指标（合并数、落库数、回执推送数）
+     */
+    @GetMapping("/metrics/read")
+    public Result<Map<String, Object>> getReadMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(readReceiptManager.getStats());
+    }
+
+    /**
+     * 最近消息缓存指标（近端 / Redis 命中率、未命中数、失效次数）
+     */
+    @GetMapping("/metrics/recent-cache")
+    public Result<Map<String, Object>> getRecentCacheMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(recentMessageCache.getStats());
+    }
+
+    /**
+     * AI 上游客户端指标（在途数、舱壁饱和度、排队/拒绝数、各接口耗时与超时）
+     */
+    @GetMapping("/metrics/ai")
+    public Result<Map<String, Object>> getAIMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(aiHttpClient.getStats());
+    }
+
+    /**
+     * AI 上下文构建指标（按预算裁剪次数、裁掉的消息数、摘要生成情况）
+     */
+    @GetMapping("/metrics/ai-context")
+    public Result<Map<String, Object>> getAIContextMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(aiContextBuilder.getStats());
+    }
+
+    /**
+     * AI 回复缓存指标（命中率、本地 / Redis 命中数、合并请求数、节省的 token 数）
+     */
+    @GetMapping("/metrics/ai-cache")
+    public Result<Map<String, Object>> getAICacheMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(aiResponseCache.getStats());
+    }
+
+    /**
+     * AI 图片预处理指标（缓存命中、缩放/原样发送次数、读入与发送字节数）
+     */
+    @GetMapping("/metrics/ai-image")
+    public Result<Map<String, Object>> getAIImageMetrics(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(aiImageProcessor.getStats());
+    }
+
+    /**
+     * 索引任务进度（水位、吞吐、当前批大小、一致性抽检）
+     */
+    @GetMapping("/reindex")
+    public Result<Map<String, Object>> getReindexProgress(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        if (messageIndexTask == null) {
+            return Result.error(ES_ONLY);
+        }
+        return Result.success(messageIndexTask.getProgress());
+    }
+
+    /**
+     * 消息索引分区（当前代、已挂到别名的月份分区、保留月数）
+     */
+    @GetMapping("/search/partitions")
+    public Result<Map<String, Object>> getSearchPartitions(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        if (searchPartitionManager == null) {
+            return Result.error(ES_ONLY);
+        }
+        return Result.success(searchPartitionManager.getStats());
+    }
+
+    /**
+     * 启动索引任务（full=true 全量重建到下一代分区后切换别名，否则从水位补齐）
+     */
+    @PostMapping("/reindex")
+    public Result<Map<String, Object>> startReindex(@RequestParam(defaultValue = "false") boolean full,
+                                                    HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        if (messageIndexTask == null) {
+            return Result.error(ES_ONLY);
+        }
+        if (!messageIndexTask.start(full)) {
+            return Result.error("重建索引正在进行中");
+        }
+        return Result.success(messageIndexTask.getProgress());
+    }
+
+    /**
+     * 停止重建索引（断点保留，可稍后继续）
+     */
+    @PostMapping("/reindex/stop")
+    public Result<Map<String, Object>> stopReindex(HttpSession session) {
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        if (messageIndexTask == null) {
+            return Result.error(ES_ONLY);
+        }
+        messageIndexTask.stop();
+        return Result.success(messageIndexTask.getProgress());
+    }
+
+    /**
+     * 子串查询压测：在当前索引上对比前导通配符查询和 wildcard 子字段的延迟
+     */
+    @GetMapping("/search/benchmark")
+    public Result<Map<String, Object>> benchmarkSearch(@RequestParam String keyword,
+                                                       @RequestParam(defaultValue = "20") int iterations,
+                                                       HttpSession session) {
+        // 每次调用最多执行 200 次前导通配符查询，只允许运维账号执行
+        Result<Map<String, Object>> denied = checkAdmin(session);
+        if (denied != null) {
+            return denied;
+        }
+        return Result.success(messageSearchService.benchmarkSubstringQuery(keyword, Math.max(1, Math.min(iterations, 200))));
+    }
+
+    /**
+     * 运维操作鉴权：需已登录且在 admin.userIds 中，通过时返回 null
+     */
+    private <T> Result<T> checkAdmin(HttpSession session) {
+        String userId = (String) session.getAttribute("userId");
+        if (userId == null) {
+            return Result.unauthorized("未登录");
+        }
+        if (!adminUserIds.contains(userId)) {
+            return Result.forbidden("无权限执行该操作");
+        }
+        return null;
+    }
+}
@@ -10,8 +10,6 @@ import com.zyzyz.im.service.GroupService;
 import jakarta.servlet.http.HttpSession;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.WebSocketSession;
 
 import java.util.List;
 
@@ -183,14 +181,7 @@ public class GroupController {
                     .build();
             
             String messageJson = objectMapper.writeValueAsString(notification);
-            TextMessage textMessage = new TextMessage(messageJson);
-            
-            for (String memberId : memberIds) {
-                WebSocketSession session = websocketSessionManager.getSession(memberId);
-                if (session != null && session.isOpen()) {
-                    session.sendMessage(textMessage);
-                }
-            }
+            websocketSessionManager.deliver(memberIds, messageJson);
         } catch (Exception e) {
             System.err.println("通知成员失败：" + e.getMessage());
         }
@@ -208,12 +199,7 @@ public class GroupController {
                     .build();
             
             String messageJson = objectMapper.writeValueAsString(notification);
-            TextMessage textMessage = new TextMessage(messageJson);
-            
-            WebSocketSession session = websocketSessionManager.getSession(userId);
-            if (session != null && session.isOpen()) {
-                session.sendMessage(textMessage);
-            }
+            websocketSessionManager.deliver(userId, messageJson);
         } catch (Exception e) {
             System.err.println("通知成员失败：" + e.getMessage());
         }
@@ -231,12 +217,7 @@ public class GroupController {
                     .build();
             
             String messageJson = objectMapper.writeValueAsString(notification);
-            TextMessage textMessage = new TextMessage(messageJson);
-            
-            WebSocketSession session = websocketSessionManager.getSession(userId);
-            if (session != null && session.isOpen()) {
-                session.sendMessage(textMessage);
-            }
+            websocketSessionManager.deliver(userId, messageJson);
         } catch (Exception e) {
             System.err.println("通知成员失败：" + e.getMessage());
         }
@@ -1,6 +1,10 @@
 package com.zyzyz.im.controller;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -10,10 +14,15 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.zyzyz.im.service.ConversationService;
 import com.zyzyz.im.service.MessageService;
 import com.zyzyz.im.service.UserService;
+import com.zyzyz.im.dto.UnreadCountResponse;
 import com.zyzyz.im.dto.UserInfoDTO;
+import com.zyzyz.im.entity.Conversation;
 import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.ReadReceiptManager;
+import com.zyzyz.im.manager.UnreadCounterManager;
 import com.zyzyz.im.manager.WebsocketSessionManager;
 import com.zyzyz.im.common.Result;
 
@@ -30,27 +39,63 @@ public class MessageController {
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private ConversationService conversationService;
+    
+    @Autowired
+    private UnreadCounterManager unreadCounterManager;
+    
+    @Autowired
+    private ReadReceiptManager readReceiptManager;
+    
+    /**
+     * 私聊历史（游标分页，结果按时间正序）
+     * 不带游标返回最近一页；before 向上翻页；after 拉取该消息之后的新消息
+     */
     @GetMapping("/history")
-    public Result<List<Message>> getMessages(@RequestParam String fromUserId, @RequestParam String toUserId) {
-        List<Message> messages = messageService.selectByUsers(fromUserId, toUserId);
+    public Result<List<Message>> getMessages(@RequestParam String fromUserId,
+                                             @RequestParam String toUserId,
+                                             @RequestParam(required = false) Long before,
+                                             @RequestParam(required = false) Long after,
+                                             @RequestParam(required = false) Integer limit) {
+        List<Message> messages = messageService.selectByUsersPage(fromUserId, toUserId, before, after, limit);
         return Result.success(messages);
     }
 
+    /**
+     * 未读数（只返回各会话的数量，消息内容通过分页历史按需加载）
+     */
     @GetMapping("/unread")
-    public Result<List<Message>> getUnreadMessages(@RequestParam String userId) {
-        List<Message> messages = messageService.selectUnreadByUserId(userId);
-        return Result.success(messages);
+    public Result<UnreadCountResponse> getUnreadCounts(@RequestParam String userId) {
+        Map<String, Long> users = unreadCounterManager.getPrivateCounts(userId);
+        List<String> groupIds = conversationService.getRecentPeerIds(userId, Conversation.TYPE_GROUP, null);
+        Map<String, Long> groups = unreadCounterManager.getGroupCounts(userId, groupIds);
+        long total = users.values().stream().mapToLong(Long::longValue).sum()
+                + groups.values().stream().mapToLong(Long::longValue).sum();
+        return Result.success(UnreadCountResponse.builder()
+                .users(users)
+                .groups(groups)
+                .total(total)
+                .build());
     }
 
+    /**
+     * 上报已读水位（合并后批量落库，并向对方推送 read_receipt）
+     */
     @GetMapping("/read")
-    public Result<Void> readMessage(@RequestParam String messageId) {
-        messageService.updateStatus(messageId, 1);
+    public Result<Void> readMessage(@RequestParam String userId,
+                                    @RequestParam String peerId,
+                                    @RequestParam(required = false) Long messageId) {
+        readReceiptManager.markRead(userId, peerId, messageId);
         return Result.success();
     }
 
+    /**
+     * 会话全部已读（前端以当前用户作为 fromUserId 调用）
+     */
     @PostMapping("/batchRead")
     public Result<Void> batchReadMessage(@RequestParam String fromUserId, @RequestParam String toUserId) {
-        messageService.batchUpdateStatusByUsers(fromUserId, toUserId);
+        readReceiptManager.markRead(fromUserId, toUserId, null);
         return Result.success();
     }
 
@@ -67,16 +112,50 @@ public class MessageController {
         return Result.success(isOnline);
     }
     
+    /**
+     * 最近联系人（按最后消息时间倒序）
+     */
     @GetMapping("/contacts")
-    public Result<List<UserInfoDTO>> getRecentContacts(@RequestParam String userId) {
-        List<String> contactIds = messageService.selectRecentContactsByUserId(userId);
-        List<UserInfoDTO> contacts = userService.getUserInfoByUserIds(contactIds);
+    public Result<List<UserInfoDTO>> getRecentContacts(@RequestParam String userId,
+                                                       @RequestParam(required = false) Integer limit) {
+        List<String> contactIds = conversationService.getRecentPeerIds(userId, Conversation.TYPE_PRIVATE, limit);
+        Map<String, UserInfoDTO> userMap = userService.getUserInfoByUserIds(contactIds).stream()
+                .collect(Collectors.toMap(UserInfoDTO::getUserId, Function.identity(), (a, b) -> a));
+        List<UserInfoDTO> contacts = contactIds.stream()
+                .map(userMap::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
         return Result.success(contacts);
     }
     
+    /**
+     * 会话列表（最后一条消息预览、未读数），type：1-私聊，2-群聊
+     */
+    @GetMapping("/conversations")
+    public Result<List<Conversation>> getConversations(@RequestParam String userId,
+                                                       @RequestParam(defaultValue = "1") Integer type,
+                                                       @RequestParam(required = false) Integer limit) {
+        return Result.success(conversationService.getConversations(userId, type, limit));
+    }
+    
+    /**
+     * 群聊已读（已读序号前移到群最新序号）
+     */
+    @PostMapping("/group/read")
+    public Result<Void> readGroupMessages(@RequestParam String userId, @RequestParam String groupId) {
+        unreadCounterManager.markGroupRead(userId, groupId);
+        return Result.success();
+    }
+    
+    /**
+     * 群聊历史（游标分页，参数同私聊历史）
+     */
     @GetMapping("/group/history")
-    public Result<List<Message>> getGroupMessages(@RequestParam String groupId) {
-        List<Message> messages = messageService.selectByGroupId(groupId);
+    public Result<List<Message>> getGroupMessages(@RequestParam String groupId,
+                                                  @RequestParam(required = false) Long before,
+                                                  @RequestParam(required = false) Long after,
+                                                  @RequestParam(required = false) Integer limit) {
+        List<Message> messages = messageService.selectByGroupIdPage(groupId, before, after, limit);
         return Result.success(messages);
     }
     
@@ -2,15 +2,20 @@ package com.zyzyz.im.controller;
 
 import com.zyzyz.im.common.Result;
 import com.zyzyz.im.document.MessageDocument;
+import com.zyzyz.im.dto.MessageSearchRequest;
+import com.zyzyz.im.dto.MessageSearchResponse;
 import com.zyzyz.im.repository.MessageSearchRepository;
+import com.zyzyz.im.service.GroupService;
 import com.zyzyz.im.service.MessageSearchService;
 import jakarta.servlet.http.HttpSession;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +35,9 @@ public class SearchController {
     @Autowired
     private MessageSearchRepository searchRepository;
     
+    @Autowired
+    private GroupService groupService;
+    
     /**
      * 测试 ES 连接和索引状态
      */
@@ -98,12 +106,22 @@ public class SearchController {
     }
     
     /**
-     * 搜索消息
+     * 搜索消息（search_after 游标分页，只返回 id 和高亮片段）
+     * 不指定群组时搜索私聊、AI 对话以及所在所有群的群消息
+     *
+     * @param from   开始时间（ISO 格式，如 2025-01-01T00:00:00），只查询覆盖到的月份分区
+     * @param cursor 上一页返回的 nextCursor，首页不传
+     * @param sort   relevance（默认）或 time
      */
     @GetMapping("/messages")
-    public Result<List<MessageDocument>> searchMessages(
+    public Result<MessageSearchResponse> searchMessages(
             @RequestParam String keyword,
             @RequestParam(required = false) String groupId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) String sort,
             HttpSession session
     ) {
         String userId = (String) session.getAttribute("userId");
@@ -111,22 +129,27 @@ public class SearchController {
             return Result.error("未登录");
         }
         
+        // 指定群组时检查用户是否在群组中
+        if (groupId != null && !groupId.isEmpty() && !groupService.isUserInGroup(groupId, userId)) {
+            return Result.error("您不在该群组中");
+        }
+        
         try {
-            System.out.println("🔍 搜索请求 - userId: " + userId + ", keyword: " + keyword + ", groupId: " + groupId);
-            
-            List<MessageDocument> results;
-            
-            if (groupId != null && !groupId.isEmpty()) {
-                // 搜索群组消息
-                results = messageSearchService.searchGroupMessages(groupId, keyword);
-                System.out.println("📊 群组搜索结果: " + results.size() + " 条");
-            } else {
-                // 搜索用户所有相关消息（包括私聊、群聊、AI对话）
-                results = messageSearchService.searchAll(userId, keyword);
-                System.out.println("📊 全局搜索结果: " + results.size() + " 条");
-            }
-            
-            return Result.success("搜索成功", results);
+            MessageSearchResponse response = messageSearchService.search(userId, MessageSearchRequest.builder()
+                    .keyword(keyword)
+                    .groupId(groupId)
+                    .from(from)
+                    .to(to)
+                    .cursor(cursor)
+                    .size(size)
+                    .sort(sort)
+                    .build());
+            System.out.println("🔍 搜索 - userId: " + userId + ", keyword: " + keyword + ", groupId: " + groupId
+                    + ", 本页 " + response.getHits().size() + " 条，共 " + response.getTotal()
+                    + ("gte".equals(response.getTotalRelation()) ? "+ 条" : " 条"));
+            return Result.success("搜索成功", response);
+        } catch (IllegalArgumentException e) {
+            return Result.error(e.getMessage());
         } catch (Exception e) {
             System.err.println("❌ 搜索失败: " + e.getMessage());
             e.printStackTrace();
@@ -134,4 +157,3 @@ public class SearchController {
         }
     }
 }
-
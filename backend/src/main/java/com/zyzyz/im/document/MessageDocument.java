@@ -1,28 +1,38 @@
 package com.zyzyz.im.document;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.DateFormat;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.annotations.InnerField;
+import org.springframework.data.elasticsearch.annotations.MultiField;
 
 /**
  * 消息文档（ElasticSearch）
- * 用于全文搜索
+ * 用于全文搜索；物理索引按月分区（im_messages_g{代}_{yyyyMM}），im_messages 为读别名，
+ * 分区由 SearchPartitionManager 创建，这里不自动建索引
  */
 @Data
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-@Document(indexName = "im_messages")
+@Document(indexName = "im_messages", createIndex = false)
 public class MessageDocument {
     
     @Id
     private String messageId;
     
+    @Field(type = FieldType.Long)
+    @JsonSerialize(using = ToStringSerializer.class)  // 雪花ID超出 JS 安全整数范围，序列化为字符串
+    private Long id;  // t_message.id，用于索引水位和一致性校验
+    
     @Field(type = FieldType.Keyword)
     private String fromUserId;
     
@@ -32,13 +42,18 @@ public class MessageDocument {
     @Field(type = FieldType.Keyword)
     private String groupId;
     
-    @Field(type = FieldType.Text, analyzer = "ik_max_word", searchAnalyzer = "ik_smart")
-    private String content;  // 全文搜索字段（使用 IK 中文分词器）
+    // 全文搜索字段（使用 IK 中文分词器）；content.wildcard 子字段用于子串匹配（ES 内部按 n-gram 索引，无需扫描词典）
+    @MultiField(
+            mainField = @Field(type = FieldType.Text, analyzer = "ik_max_word", searchAnalyzer = "ik_smart"),
+            otherFields = @InnerField(suffix = "wildcard", type = FieldType.Wildcard)
+    )
+    private String content;
     
     @Field(type = FieldType.Integer)
     private Integer messageType;  // 1-私聊, 2-群聊
     
-    @Field(type = FieldType.Keyword)
-    private String createdAt;  // 使用 String 存储日期，避免格式转换问题
+    // LocalDateTime.toString() 格式，映射为 date 类型以支持时间范围过滤
+    @Field(type = FieldType.Date, format = DateFormat.date_optional_time)
+    private String createdAt;
 }
 
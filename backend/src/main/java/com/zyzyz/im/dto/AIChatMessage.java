@@ -22,5 +22,10 @@ public class AIChatMessage {
      * 消息内容
      */
     private String content;
+    
+    /**
+     * 估算的 token 数（随历史一起缓存，不发送给模型）
+     */
+    private Integer tokens;
 }
 
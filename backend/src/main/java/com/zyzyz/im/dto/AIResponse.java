@@ -27,5 +27,10 @@ public class AIResponse {
      * 对话轮次
      */
     private Integer conversationRound;
+    
+    /**
+     * 是否命中回复缓存（命中时 tokensUsed 为 0）
+     */
+    private Boolean cached;
 }
 
@@ -10,11 +10,18 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @Builder
 public class ChatMessage {
-    private String type;        // 消息类型：chat(私聊) / group_chat(群聊) / user_online(用户上线) / user_offline(用户下线)
+    private String type;        // 消息类型：chat(私聊) / group_chat(群聊) / user_online(用户上线) / user_offline(用户下线) / read(已读) / read_receipt(已读回执) / ai_chat(AI流式对话) / ai_delta / ai_done / ai_error
+    private String id;          // 消息ID（雪花ID，字符串避免 JS 精度丢失）
     private String fromUserId;
     private String toUserId;    // 私聊时使用
     private String groupId;     // 群聊时使用
     private String message;
     private Integer messageType; // 内容类型：1-文字, 2-群聊文字, 3-AI对话, 4-图片
     private String nickname;    // 用户昵称（用于上线/下线通知）
+    private String lastReadMessageId; // 已读到的消息ID（read / read_receipt）
+    private String requestId;   // AI流式对话请求ID（ai_chat 上行，ai_delta / ai_done / ai_error 下行原样带回）
+    private String imageUrl;    // AI图文对话的图片URL（ai_chat）
+    private String fileId;      // AI文档对话的file_id（ai_chat）
+    private String fileName;    // AI文档对话的文档名（ai_chat）
+    private AIResponse aiResponse; // AI回复结果（ai_done）
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 搜索命中项（只返回 id 和高亮片段，不返回消息全文）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchHit {
+    private String messageId;
+    private String id;                 // t_message.id（字符串，避免 JS 精度丢失），可用于定位历史消息
+    private String fromUserId;
+    private String toUserId;
+    private String groupId;
+    private Integer messageType;
+    private String createdAt;
+    private List<String> highlights;   // 高亮片段（已 HTML 转义，命中词用 <em> 包裹）
+    private Float score;
+}
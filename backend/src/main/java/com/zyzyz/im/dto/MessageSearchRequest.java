@@ -0,0 +1,25 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 搜索请求参数
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchRequest {
+    private String keyword;
+    private String groupId;        // 为空时搜索用户相关的所有消息
+    private LocalDateTime from;    // 时间范围（含），只查询覆盖到的月份分区
+    private LocalDateTime to;
+    private String cursor;         // 上一页返回的 nextCursor，首页为 null
+    private Integer size;
+    private String sort;           // relevance（默认，按相关度）或 time（按时间倒序）
+}
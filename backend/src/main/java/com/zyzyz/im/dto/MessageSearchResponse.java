@@ -0,0 +1,23 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 搜索分页响应（search_after 游标分页）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSearchResponse {
+    private List<MessageSearchHit> hits;
+    private Long total;            // 命中总数（超过统计上限时为下限）
+    private String totalRelation;  // eq：精确值，gte：至少这么多
+    private String nextCursor;     // 下一页游标，没有更多时为 null
+    private Boolean hasMore;
+}
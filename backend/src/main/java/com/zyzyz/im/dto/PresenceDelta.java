@@ -0,0 +1,20 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 在线状态增量帧（一个刷新周期内的状态变化合并为一帧）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceDelta {
+    private String type;                // 固定为 presence_delta
+    private List<ChatMessage> changes;  // 每项与 user_online / user_offline 帧结构相同
+}
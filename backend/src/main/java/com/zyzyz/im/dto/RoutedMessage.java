@@ -0,0 +1,20 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 跨节点投递的消息（同一条消息发给同一节点上的多个用户）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RoutedMessage {
+    private List<String> userIds;   // 目标节点上的接收者
+    private String payload;         // 原始 WebSocket 消息内容
+}
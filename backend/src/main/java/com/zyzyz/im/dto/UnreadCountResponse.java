@@ -0,0 +1,21 @@
+package com.zyzyz.im.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * 未读数响应（只返回数量，消息内容通过分页历史按需加载）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UnreadCountResponse {
+    private Map<String, Long> users;   // 私聊：对方 userId -> 未读数
+    private Map<String, Long> groups;  // 群聊：groupId -> 未读数
+    private Long total;
+}
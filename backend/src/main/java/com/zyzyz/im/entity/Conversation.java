@@ -0,0 +1,41 @@
+package com.zyzyz.im.entity;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 会话实体（每个用户的每个私聊对象 / 群组一行，随消息持久化增量更新）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Conversation {
+
+    public static final int TYPE_PRIVATE = 1;
+    public static final int TYPE_GROUP = 2;
+
+    private Long id;
+    private String ownerUserId;     // 会话所属用户
+    private Integer convType;       // 1-私聊, 2-群聊
+    private String peerId;          // 私聊对方 userId / 群组 groupId
+
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long lastMessageId;
+
+    private String lastFromUserId;
+    private String lastContent;     // 最后一条消息预览
+    private LocalDateTime lastTime;
+
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long lastReadMessageId; // 已读水位（已读到的最后一条消息 id）
+    private Long unreadCount;       // 未读数（来自 Redis 计数，不落库）
+    private LocalDateTime updatedAt;
+}
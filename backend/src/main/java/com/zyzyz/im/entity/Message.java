@@ -2,6 +2,9 @@ package com.zyzyz.im.entity;
 
 import java.time.LocalDateTime;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -13,6 +16,7 @@ import lombok.NoArgsConstructor;
 @Builder
 public class Message {
 
+    @JsonSerialize(using = ToStringSerializer.class)  // 雪花ID超出 JS 安全整数范围，序列化为字符串
     private Long id;
 
     private String toUserId;
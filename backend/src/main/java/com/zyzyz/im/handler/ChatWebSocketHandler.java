@@ -1,7 +1,11 @@
 package com.zyzyz.im.handler;
 
 import java.time.LocalDateTime;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,13 +16,20 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 import org.springframework.stereotype.Component;
 
+import com.zyzyz.im.manager.PresenceManager;
+import com.zyzyz.im.manager.ReadReceiptManager;
+import com.zyzyz.im.manager.UnreadCounterManager;
 import com.zyzyz.im.manager.WebsocketSessionManager;
+import com.zyzyz.im.dto.AIRequest;
+import com.zyzyz.im.dto.AIResponse;
 import com.zyzyz.im.dto.ChatMessage;
+import com.zyzyz.im.service.AIService;
 import com.zyzyz.im.service.MessageService;
 import com.zyzyz.im.service.GroupService;
 import com.zyzyz.im.service.MessageSearchService;
 import com.zyzyz.im.entity.Message;
 
+import java.util.ArrayList;
 import java.util.List;
 
 @Component
@@ -40,7 +51,19 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     private MessageSearchService messageSearchService;
     
     @Autowired
-    private com.zyzyz.im.service.UserService userService;
+    private PresenceManager presenceManager;
+
+    @Autowired
+    private UnreadCounterManager unreadCounterManager;
+
+    @Autowired
+    private ReadReceiptManager readReceiptManager;
+
+    @Autowired
+    private AIService aiService;
+
+    // 每个连接进行中的 AI 流式对话，连接关闭时取消，释放读取线程和舱壁名额
+    private final ConcurrentHashMap<String, Set<AIService.StreamHandle>> aiStreams = new ConcurrentHashMap<>();
     
     @Override
     public void afterConnectionEstablished(@NonNull WebSocketSession session) throws Exception {
@@ -53,9 +76,9 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         // 添加新连接（会关闭旧连接）
         websocketSessionManager.addSession(userId, session);
         
-        // 只有当用户之前不在线时，才广播上线消息
+        // 只有当用户之前不在线时，才推送上线消息（合并后推送给关注者）
         if (!wasOnline) {
-            broadcastUserStatus(userId, "user_online");
+            presenceManager.onStatusChange(userId, "user_online");
             System.out.println("用户上线：" + userId);
         } else {
             System.out.println("用户重新连接：" + userId);
@@ -66,6 +89,11 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     public void afterConnectionClosed(@NonNull WebSocketSession session, @NonNull CloseStatus status) throws Exception {
         super.afterConnectionClosed(session, status);
         String userId = getUserIdFromSession(session);
+
+        Set<AIService.StreamHandle> streams = aiStreams.remove(session.getId());
+        if (streams != null) {
+            streams.forEach(AIService.StreamHandle::cancel);
+        }
         
         // 检查当前存储的 session 是否是这个 session
         // 如果不是，说明用户已经重新连接了，不要删除也不要广播下线
@@ -73,7 +101,7 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         if (currentSession == session) {
             // 是当前连接，真正下线
             websocketSessionManager.removeSession(userId);
-            broadcastUserStatus(userId, "user_offline");
+            presenceManager.onStatusChange(userId, "user_offline");
             System.out.println("用户下线：" + userId);
         } else {
             // 不是当前连接，说明是旧连接被关闭（用户已重连）
@@ -95,6 +123,106 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         else if ("group_chat".equals(chatMessage.getType())) {
             handleGroupChat(chatMessage, payload);
         }
+        // 处理已读上报（合并后批量落库并推送回执）
+        else if ("read".equals(chatMessage.getType())) {
+            String lastReadMessageId = chatMessage.getLastReadMessageId();
+            Long watermark = null;
+            if (lastReadMessageId != null) {
+                try {
+                    watermark = Long.valueOf(lastReadMessageId.trim());
+                } catch (NumberFormatException e) {
+                    // 非法的消息ID直接忽略该帧，不能因此断开连接
+                    System.out.println("忽略非法的已读上报：" + lastReadMessageId);
+                    return;
+                }
+            }
+            readReceiptManager.markRead(getUserIdFromSession(session), chatMessage.getToUserId(), watermark);
+        }
+        // AI流式对话：增量文本以 ai_delta 帧推回，结束推 ai_done，失败推 ai_error
+        else if ("ai_chat".equals(chatMessage.getType())) {
+            handleAIChat(session, chatMessage);
+        }
+    }
+    
+    /**
+     * 处理AI流式对话（用户ID取自会话，不信任上行的 fromUserId）
+     */
+    private void handleAIChat(WebSocketSession session, ChatMessage chatMessage) {
+        String userId = getUserIdFromSession(session);
+        String requestId = chatMessage.getRequestId();
+        AIRequest request = AIRequest.builder()
+                .userId(userId)
+                .message(chatMessage.getMessage())
+                .imageUrl(chatMessage.getImageUrl())
+                .fileId(chatMessage.getFileId())
+                .fileName(chatMessage.getFileName())
+                .build();
+        
+        Set<AIService.StreamHandle> streams = aiStreams.computeIfAbsent(session.getId(), k -> ConcurrentHashMap.newKeySet());
+        AtomicReference<AIService.StreamHandle> handleRef = new AtomicReference<>();
+        AtomicBoolean finished = new AtomicBoolean();
+        AIService.StreamHandle handle = aiService.chatStream(userId, request, new AIService.StreamListener() {
+            @Override
+            public void onDelta(String delta) throws Exception {
+                // 用户已离线则中止上游读取
+                if (!websocketSessionManager.deliver(userId, aiFrame("ai_delta", requestId, delta, null))) {
+                    throw new IllegalStateException("用户已离线：" + userId);
+                }
+            }
+            
+            @Override
+            public void onComplete(AIResponse response) {
+                finishAIStream(streams, handleRef, finished);
+                sendAIFrame(userId, aiFrame("ai_done", requestId, null, response));
+            }
+            
+            @Override
+            public void onError(String message) {
+                finishAIStream(streams, handleRef, finished);
+                sendAIFrame(userId, aiFrame("ai_error", requestId, message, null));
+            }
+        });
+        handleRef.set(handle);
+        streams.add(handle);
+        // 返回前已结束（如舱壁已满直接回调 onError）或连接已关闭
+        if (finished.get()) {
+            finishAIStream(streams, handleRef, finished);
+        } else if (!session.isOpen()) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * 流式对话结束后移出登记（连接的登记集合在连接关闭时整体移除）
+     */
+    private void finishAIStream(Set<AIService.StreamHandle> streams,
+                                AtomicReference<AIService.StreamHandle> handleRef, AtomicBoolean finished) {
+        finished.set(true);
+        AIService.StreamHandle handle = handleRef.get();
+        if (handle != null) {
+            streams.remove(handle);
+        }
+    }
+    
+    private String aiFrame(String type, String requestId, String message, AIResponse response) {
+        try {
+            return objectMapper.writeValueAsString(ChatMessage.builder()
+                    .type(type)
+                    .requestId(requestId)
+                    .fromUserId("AI_ASSISTANT")
+                    .message(message)
+                    .messageType(3)
+                    .aiResponse(response)
+                    .build());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private void sendAIFrame(String userId, String payload) {
+        if (!websocketSessionManager.deliver(userId, payload)) {
+            System.out.println("AI回复推送失败，用户不在线：" + userId);
+        }
     }
     
     /**
@@ -102,7 +230,6 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
      */
     private void handlePrivateChat(ChatMessage chatMessage, String payload) throws Exception {
         String toUserId = chatMessage.getToUserId();
-        WebSocketSession targetUserSession = websocketSessionManager.getSession(toUserId);
 
         // 保存消息到数据库
         Message message = Message.builder()
@@ -117,20 +244,17 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
                 .build();
         
         messageService.insert(message);
+        unreadCounterManager.onPrivateMessage(message.getFromUserId(), toUserId, message.getId());
         
-        // 索引到 ElasticSearch（异步，失败不影响主流程）
-        try {
-            messageSearchService.indexMessage(message);
-            System.out.println("✅ 消息已索引到 ES: " + message.getMessageId());
-        } catch (Exception e) {
-            System.err.println("❌ 索引消息到 ES 失败: " + e.getMessage());
-            e.printStackTrace();
-        }
+        // 索引到 ElasticSearch（只入队，由批量索引线程异步写入）
+        messageSearchService.indexMessage(message);
+        
+        // 带上消息ID转发，接收方据此上报已读水位
+        chatMessage.setId(String.valueOf(message.getId()));
+        payload = objectMapper.writeValueAsString(chatMessage);
 
-        // 发送给目标用户
-        if (targetUserSession != null && targetUserSession.isOpen()) {
-            targetUserSession.sendMessage(new TextMessage(payload));
-        } else {
+        // 发送给目标用户（本节点只入队，其他节点经 Redis 转发）
+        if (!websocketSessionManager.deliver(toUserId, payload)) {
             System.out.println("targetUserSession is null or closed");
         }
     }
@@ -161,34 +285,28 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
                 .build();
         
         messageService.insert(message);
+        unreadCounterManager.onGroupMessage(groupId, fromUserId);
         
-        // 索引到 ElasticSearch
-        try {
-            messageSearchService.indexMessage(message);
-            System.out.println("✅ 群消息已索引到 ES: " + message.getMessageId());
-        } catch (Exception e) {
-            System.err.println("❌ 索引群消息到 ES 失败: " + e.getMessage());
-            e.printStackTrace();
-        }
+        // 索引到 ElasticSearch（只入队，由批量索引线程异步写入）
+        messageSearchService.indexMessage(message);
+        
+        // 带上消息ID转发，接收方据此上报已读水位
+        chatMessage.setId(String.valueOf(message.getId()));
+        payload = objectMapper.writeValueAsString(chatMessage);
         
         // 获取群组所有成员
         List<String> memberIds = groupService.getGroupMemberIds(groupId);
         System.out.println("群组成员列表: " + memberIds);
         
         // 广播给群组所有在线成员（除了发送者自己）
-        int sentCount = 0;
+        // 本节点成员直接入队，其他节点的成员按节点合并为一次发布
+        List<String> receiverIds = new ArrayList<>(memberIds.size());
         for (String memberId : memberIds) {
             if (!memberId.equals(fromUserId)) {  // 不发给自己
-                WebSocketSession memberSession = websocketSessionManager.getSession(memberId);
-                if (memberSession != null && memberSession.isOpen()) {
-                    memberSession.sendMessage(new TextMessage(payload));
-                    sentCount++;
-                    System.out.println("已发送群消息给: " + memberId);
-                } else {
-                    System.out.println("成员不在线或Session已关闭: " + memberId);
-                }
+                receiverIds.add(memberId);
             }
         }
+        int sentCount = websocketSessionManager.deliver(receiverIds, payload);
         
         System.out.println("群消息已广播: " + groupId + ", 总成员数: " + memberIds.size() + ", 实际发送: " + sentCount);
     }
@@ -208,46 +326,4 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         return (String) session.getAttributes().get("userId");
     }
     
-    /**
-     * 广播用户上线/下线状态给所有在线用户
-     */
-    private void broadcastUserStatus(String userId, String statusType) {
-        try {
-            // 获取用户昵称
-            String nickname = userId;  // 默认使用 userId
-            try {
-                com.zyzyz.im.dto.UserInfoDTO userInfo = userService.getUserInfoByUserId(userId);
-                if (userInfo != null && userInfo.getNickname() != null) {
-                    nickname = userInfo.getNickname();
-                }
-            } catch (Exception e) {
-                System.err.println("获取用户昵称失败：" + e.getMessage());
-            }
-            
-            ChatMessage statusMessage = ChatMessage.builder()
-                    .type(statusType)
-                    .fromUserId(userId)
-                    .toUserId(null)
-                    .message(null)
-                    .nickname(nickname)  // 添加昵称
-                    .build();
-            
-            String messageJson = objectMapper.writeValueAsString(statusMessage);
-            TextMessage textMessage = new TextMessage(messageJson);
-            
-            // 向所有在线用户广播
-            for (String onlineUserId : websocketSessionManager.getOnlineUsers()) {
-                // 不发给自己
-                if (!onlineUserId.equals(userId)) {
-                    WebSocketSession targetSession = websocketSessionManager.getSession(onlineUserId);
-                    if (targetSession != null && targetSession.isOpen()) {
-                        targetSession.sendMessage(textMessage);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("广播用户状态失败：" + e.getMessage());
-        }
-    }
-    
 }
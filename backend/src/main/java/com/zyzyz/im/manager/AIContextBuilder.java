@@ -0,0 +1,364 @@
+package com.zyzyz.im.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.zyzyz.im.dto.AIChatMessage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * AI 对话上下文构建
+ * 按 token 预算从最新消息往前保留完整轮次，放不下的旧轮次由滚动摘要代替；
+ * 摘要缓存在 Redis，后台线程异步重新生成，不阻塞当前请求（当前请求使用已有的旧摘要）
+ */
+@Component
+public class AIContextBuilder {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private AIHttpClient aiHttpClient;
+
+    @Value("${ai.apiUrl:https://dashscope-intl.aliyuncs.com/compatible-mode/v1/chat/completions}")
+    private String apiUrl;
+
+    // 生成摘要使用的模型（默认与普通对话相同）
+    @Value("${ai.context.summaryModel:${ai.model:qwen-plus}}")
+    private String summaryModel;
+
+    // 历史消息（含摘要和当前消息）的 token 预算
+    @Value("${ai.context.tokenBudget:3000}")
+    private int tokenBudget;
+
+    // 摘要长度上限（字）
+    @Value("${ai.context.summaryMaxChars:300}")
+    private int summaryMaxChars;
+
+    // 摘要生成排队上限，超出时跳过（下一轮再生成）
+    @Value("${ai.context.summaryQueueSize:128}")
+    private int summaryQueueSize;
+
+    // 摘要（Hash：text / covered / tokens），covered 为已压缩进摘要的消息序号上界
+    private static final String SUMMARY_KEY_PREFIX = "ai:chat:summary:";
+    private static final long SUMMARY_EXPIRE_HOURS = 24;
+
+    // 话题代数：清空对话时 +1，排队中的摘要任务代数不一致则丢弃结果，不会把上一个话题的摘要写回
+    private static final String EPOCH_KEY_PREFIX = "ai:chat:summary:epoch:";
+
+    // 写入摘要：代数一致且覆盖范围更大时才写入
+    private static final DefaultRedisScript<Long> SAVE_SUMMARY_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[2]) or '0') ~= ARGV[1] then return 0 end "
+                    + "if tonumber(redis.call('hget', KEYS[1], 'covered') or '0') >= tonumber(ARGV[2]) then return 0 end "
+                    + "redis.call('hset', KEYS[1], 'text', ARGV[3], 'covered', ARGV[2], 'tokens', ARGV[4]) "
+                    + "redis.call('expire', KEYS[1], ARGV[5]) return 1",
+            Long.class);
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private ThreadPoolExecutor summaryExecutor;
+
+    // 正在生成摘要的用户 -> 排队中的摘要覆盖到的序号，已排队的覆盖范围足够时不重复排队
+    private final ConcurrentHashMap<String, Long> pendingSummaries = new ConcurrentHashMap<>();
+
+    // 统计
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong trimmedBuilds = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong summariesScheduled = new AtomicLong();
+    private final AtomicLong summariesGenerated = new AtomicLong();
+    private final AtomicLong summaryFailures = new AtomicLong();
+    private final AtomicLong summarySkipped = new AtomicLong();
+    private final AtomicLong summariesDiscarded = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger seq = new AtomicInteger();
+        summaryExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(summaryQueueSize), r -> {
+                    Thread t = new Thread(r, "ai-summary-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        summaryExecutor.shutdownNow();
+    }
+
+    /**
+     * 构建发送给模型的历史上下文
+     *
+     * @param userId 用户ID
+     * @param history 按时间顺序的历史消息
+     * @param firstSeq history.get(0) 的消息序号
+     * @param currentMessage 本轮用户消息（占用预算）
+     * @return [摘要系统消息] + 预算内的最近完整轮次
+     */
+    public List<Map<String, Object>> build(String userId, List<AIChatMessage> history, long firstSeq,
+                                           String currentMessage) {
+        builds.incrementAndGet();
+        Map<Object, Object> summary = history.isEmpty()
+                ? Map.of() : stringRedisTemplate.opsForHash().entries(SUMMARY_KEY_PREFIX + userId);
+        String summaryText = (String) summary.get("text");
+        int summaryTokens = summaryText != null ? parseInt(summary.get("tokens"), estimateTokens(summaryText)) : 0;
+        long covered = summaryText != null ? parseLong(summary.get("covered")) : 0;
+
+        int remaining = tokenBudget - estimateTokens(currentMessage) - MESSAGE_OVERHEAD_TOKENS;
+
+        // 从最新的完整轮次往前累加，超出预算即停止；最近一轮即使超预算也保留
+        int keepFrom = history.size();
+        int used = 0;
+        for (int end = history.size(); end > 0; end -= 2) {
+            int start = Math.max(0, end - 2);
+            int turnTokens = 0;
+            for (int i = start; i < end; i++) {
+                turnTokens += tokensOf(history.get(i));
+            }
+            boolean fits = used + turnTokens + (start > 0 ? summaryTokens : 0) <= remaining;
+            if (!fits && keepFrom < history.size()) {
+                break;
+            }
+            used += turnTokens;
+            keepFrom = start;
+        }
+
+        List<Map<String, Object>> messages = new ArrayList<>();
+        if (keepFrom > 0) {
+            trimmedBuilds.incrementAndGet();
+            droppedMessages.addAndGet(keepFrom);
+            long keepFromSeq = firstSeq + keepFrom;
+            // 被裁掉的消息中还有未进入摘要的，后台重新生成
+            if (covered < keepFromSeq) {
+                int fromIndex = (int) Math.max(0, covered - firstSeq);
+                scheduleSummary(userId, summaryText, new ArrayList<>(history.subList(fromIndex, keepFrom)), keepFromSeq);
+            }
+            if (summaryText != null && !summaryText.isEmpty()) {
+                messages.add(message("system", "以下是之前对话的摘要，供参考：\n" + summaryText));
+            }
+        }
+        for (int i = keepFrom; i < history.size(); i++) {
+            messages.add(message(history.get(i).getRole(), history.get(i).getContent()));
+        }
+        return messages;
+    }
+
+    /**
+     * 历史列表按条数截断前调用：将要被截掉、但还没进入摘要的消息排队压缩进摘要
+     *
+     * @param history 截断前的历史消息
+     * @param firstSeq history.get(0) 的消息序号
+     * @param dropCount 将从头部截掉的条数
+     */
+    public void summarizeBeforeTrim(String userId, List<AIChatMessage> history, long firstSeq, int dropCount) {
+        if (dropCount <= 0 || history.isEmpty()) {
+            return;
+        }
+        Map<Object, Object> summary = stringRedisTemplate.opsForHash().entries(SUMMARY_KEY_PREFIX + userId);
+        String summaryText = (String) summary.get("text");
+        long covered = summaryText != null ? parseLong(summary.get("covered")) : 0;
+        long dropToSeq = firstSeq + dropCount;
+        if (covered >= dropToSeq) {
+            return;
+        }
+        int fromIndex = (int) Math.max(0, covered - firstSeq);
+        scheduleSummary(userId, summaryText, new ArrayList<>(history.subList(fromIndex, dropCount)), dropToSeq);
+    }
+
+    /**
+     * 清除用户的摘要（开始新话题），代数 +1 使排队中的旧话题摘要作废
+     */
+    public void clear(String userId) {
+        String epochKey = EPOCH_KEY_PREFIX + userId;
+        stringRedisTemplate.opsForValue().increment(epochKey);
+        stringRedisTemplate.expire(epochKey, SUMMARY_EXPIRE_HOURS * 2, TimeUnit.HOURS);
+        stringRedisTemplate.delete(SUMMARY_KEY_PREFIX + userId);
+        pendingSummaries.remove(userId);
+    }
+
+    /**
+     * 估算文本 token 数：中日韩字符按 1 字 1 token，其余连续字符按约 4 字符 1 token
+     */
+    public static int estimateTokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int tokens = 0;
+        int run = 0;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+            if (script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                    || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL) {
+                tokens += (run + 3) / 4 + 1;
+                run = 0;
+            } else if (Character.isWhitespace(cp)) {
+                tokens += (run + 3) / 4;
+                run = 0;
+            } else {
+                run++;
+            }
+        }
+        return tokens + (run + 3) / 4;
+    }
+
+    private int tokensOf(AIChatMessage msg) {
+        if (msg.getTokens() == null) {
+            msg.setTokens(estimateTokens(msg.getContent()));
+        }
+        return msg.getTokens() + MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    /**
+     * 异步生成新摘要：旧摘要 + 新裁掉的消息 → 新摘要
+     */
+    private void scheduleSummary(String userId, String previousSummary, List<AIChatMessage> messages, long covered) {
+        // 覆盖范围更大的请求照常排队：单线程按顺序执行，后一个包含前一个的全部消息，结果覆盖前者
+        Long previous = pendingSummaries.get(userId);
+        if (previous != null && previous >= covered) {
+            return;
+        }
+        if (previous == null ? pendingSummaries.putIfAbsent(userId, covered) != null
+                : !pendingSummaries.replace(userId, previous, covered)) {
+            return;
+        }
+        String epoch;
+        try {
+            epoch = currentEpoch(userId);
+        } catch (Exception e) {
+            pendingSummaries.remove(userId, covered);
+            summarySkipped.incrementAndGet();
+            return;
+        }
+        try {
+            summaryExecutor.execute(() -> {
+                try {
+                    generateSummary(userId, epoch, previousSummary, messages, covered);
+                } finally {
+                    pendingSummaries.remove(userId, covered);
+                }
+            });
+            summariesScheduled.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            pendingSummaries.remove(userId, covered);
+            summarySkipped.incrementAndGet();
+        }
+    }
+
+    private void generateSummary(String userId, String epoch, String previousSummary, List<AIChatMessage> messages,
+                                 long covered) {
+        String key = SUMMARY_KEY_PREFIX + userId;
+        String epochKey = EPOCH_KEY_PREFIX + userId;
+        try {
+            // 已开始新话题，或已有覆盖范围更大的摘要时跳过
+            if (!epoch.equals(currentEpoch(userId))
+                    || parseLong(stringRedisTemplate.opsForHash().get(key, "covered")) >= covered) {
+                summariesDiscarded.incrementAndGet();
+                return;
+            }
+            StringBuilder transcript = new StringBuilder();
+            if (previousSummary != null && !previousSummary.isEmpty()) {
+                transcript.append("【已有摘要】\n").append(previousSummary).append("\n\n");
+            }
+            transcript.append("【新的对话】\n");
+            for (AIChatMessage msg : messages) {
+                transcript.append("assistant".equals(msg.getRole()) ? "助手：" : "用户：")
+                        .append(msg.getContent()).append('\n');
+            }
+
+            List<Map<String, Object>> prompt = new ArrayList<>();
+            prompt.add(message("system", "请把已有摘要和新的对话合并为一段简洁的摘要，保留关键事实、用户偏好和尚未解决的问题，不超过"
+                    + summaryMaxChars + "字，只输出摘要本身。"));
+            prompt.add(message("user", transcript.toString()));
+            Map<String, Object> requestBody = new HashMap<>();
+            requestBody.put("model", summaryModel);
+            requestBody.put("messages", prompt);
+
+            JsonNode root = aiHttpClient.postJson(AIHttpClient.Endpoint.CHAT, apiUrl, requestBody);
+            String text = root.path("choices").path(0).path("message").path("content").asText("").trim();
+            if (text.isEmpty()) {
+                summaryFailures.incrementAndGet();
+                return;
+            }
+
+            // 生成期间可能已清空对话，写入时再校验一次代数
+            Long saved = stringRedisTemplate.execute(SAVE_SUMMARY_SCRIPT, List.of(key, epochKey),
+                    epoch, String.valueOf(covered), text, String.valueOf(estimateTokens(text)),
+                    String.valueOf(TimeUnit.HOURS.toSeconds(SUMMARY_EXPIRE_HOURS)));
+            if (saved == null || saved == 0) {
+                summariesDiscarded.incrementAndGet();
+                return;
+            }
+            summariesGenerated.incrementAndGet();
+        } catch (Exception e) {
+            summaryFailures.incrementAndGet();
+            System.err.println("❌ 生成对话摘要失败，用户：" + userId + "，错误：" + e.getMessage());
+        }
+    }
+
+    private String currentEpoch(String userId) {
+        String epoch = stringRedisTemplate.opsForValue().get(EPOCH_KEY_PREFIX + userId);
+        return epoch != null ? epoch : "0";
+    }
+
+    private Map<String, Object> message(String role, String content) {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("role", role);
+        msg.put("content", content);
+        return msg;
+    }
+
+    private static int parseInt(Object value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value.toString()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(Object value) {
+        try {
+            return value != null ? Long.parseLong(value.toString()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 上下文构建统计（裁剪次数、裁掉的消息数、摘要生成情况）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tokenBudget", tokenBudget);
+        stats.put("builds", builds.get());
+        stats.put("trimmedBuilds", trimmedBuilds.get());
+        stats.put("droppedMessages", droppedMessages.get());
+        stats.put("summariesScheduled", summariesScheduled.get());
+        stats.put("summariesGenerated", summariesGenerated.get());
+        stats.put("summaryFailures", summaryFailures.get());
+        stats.put("summarySkipped", summarySkipped.get());
+        stats.put("summariesDiscarded", summariesDiscarded.get());
+        stats.put("summaryQueueDepth", summaryExecutor.getQueue().size());
+        return stats;
+    }
+}
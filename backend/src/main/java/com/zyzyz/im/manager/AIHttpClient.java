@@ -0,0 +1,349 @@
+package com.zyzyz.im.manager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * AI 上游（通义千问）专用 HTTP 客户端
+ * 基于 JDK HttpClient：连接复用（keep-alive / HTTP2 多路复用）、异步发送、按接口区分超时；
+ * 所有调用共用一个舱壁信号量限制在途请求数，超出时短暂排队后快速拒绝，避免慢上游拖住全部 servlet 线程
+ */
+@Component
+public class AIHttpClient {
+
+    /**
+     * 上游接口类型，各自独立的超时和统计
+     */
+    public enum Endpoint { CHAT, VISION, DOCUMENT, UPLOAD }
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${ai.apiKey}")
+    private String apiKey;
+
+    @Value("${ai.http.connectTimeoutMs:5000}")
+    private long connectTimeoutMs;
+
+    // 各接口的响应超时（流式请求为等待响应头的时间）
+    @Value("${ai.http.chatTimeoutMs:60000}")
+    private long chatTimeoutMs;
+
+    @Value("${ai.http.visionTimeoutMs:90000}")
+    private long visionTimeoutMs;
+
+    @Value("${ai.http.documentTimeoutMs:120000}")
+    private long documentTimeoutMs;
+
+    @Value("${ai.http.uploadTimeoutMs:120000}")
+    private long uploadTimeoutMs;
+
+    // 舱壁：最大在途请求数
+    @Value("${ai.http.maxInFlight:32}")
+    private int maxInFlight;
+
+    // 舱壁已满时最多排队等待的时间，超时即拒绝
+    @Value("${ai.http.acquireTimeoutMs:200}")
+    private long acquireTimeoutMs;
+
+    // HttpClient 回调线程数
+    @Value("${ai.http.ioThreads:4}")
+    private int ioThreads;
+
+    private HttpClient httpClient;
+    private ExecutorService ioExecutor;
+    private Semaphore bulkhead;
+    private final Map<Endpoint, Duration> timeouts = new EnumMap<>(Endpoint.class);
+
+    // 统计
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final Map<Endpoint, EndpointStats> endpointStats = new EnumMap<>(Endpoint.class);
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger seq = new AtomicInteger();
+        ioExecutor = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread t = new Thread(r, "ai-http-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .executor(ioExecutor)
+                .build();
+        bulkhead = new Semaphore(maxInFlight);
+        timeouts.put(Endpoint.CHAT, Duration.ofMillis(chatTimeoutMs));
+        timeouts.put(Endpoint.VISION, Duration.ofMillis(visionTimeoutMs));
+        timeouts.put(Endpoint.DOCUMENT, Duration.ofMillis(documentTimeoutMs));
+        timeouts.put(Endpoint.UPLOAD, Duration.ofMillis(uploadTimeoutMs));
+        for (Endpoint endpoint : Endpoint.values()) {
+            endpointStats.put(endpoint, new EndpointStats());
+        }
+        System.out.println("🤖 AI HTTP 客户端已启动，最大在途请求：" + maxInFlight);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * POST JSON 并返回解析后的响应体（异步发送，调用线程只等待结果）
+     */
+    public JsonNode postJson(Endpoint endpoint, String url, Object body) throws IOException {
+        HttpRequest request = jsonRequest(endpoint, url, body, "application/json");
+        acquire(endpoint);
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            HttpResponse<String> response = httpClient
+                    .sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                    .join();
+            checkStatus(response.statusCode(), response.body());
+            success = true;
+            return objectMapper.readTree(response.body());
+        } catch (CompletionException e) {
+            throw unwrap(endpoint, e);
+        } finally {
+            release(endpoint, start, success);
+        }
+    }
+
+    /**
+     * POST JSON 并以流的形式返回响应体（用于 stream=true），
+     * 舱壁名额在调用方关闭流时归还
+     */
+    public InputStream postJsonStream(Endpoint endpoint, String url, Object body) throws IOException {
+        HttpRequest request = jsonRequest(endpoint, url, body, "text/event-stream");
+        acquire(endpoint);
+        long start = System.currentTimeMillis();
+        try {
+            HttpResponse<InputStream> response = httpClient
+                    .sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .join();
+            if (response.statusCode() / 100 != 2) {
+                String error;
+                try (InputStream in = response.body()) {
+                    error = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                checkStatus(response.statusCode(), error);
+            }
+            AtomicBoolean released = new AtomicBoolean();
+            return new FilterInputStream(response.body()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (released.compareAndSet(false, true)) {
+                            release(endpoint, start, true);
+                        }
+                    }
+                }
+            };
+        } catch (CompletionException e) {
+            release(endpoint, start, false);
+            throw unwrap(endpoint, e);
+        } catch (IOException | RuntimeException e) {
+            release(endpoint, start, false);
+            throw e;
+        }
+    }
+
+    /**
+     * POST multipart/form-data（单个文件 + 普通字段），文件内容从输入流边读边发送
+     *
+     * @param size 文件字节数，大于 0 时整个请求体带 Content-Length 发送（不使用分块传输）
+     */
+    public JsonNode postMultipart(String url, String fileName, Supplier<InputStream> fileContent, long size,
+                                  Map<String, String> fields) throws IOException {
+        String boundary = "----im" + UUID.randomUUID().toString().replace("-", "");
+        StringBuilder head = new StringBuilder();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            head.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(escapeQuoted(field.getKey())).append("\"\r\n\r\n")
+                    .append(field.getValue()).append("\r\n");
+        }
+        head.append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"file\"; filename=\"")
+                .append(escapeQuoted(fileName != null && !fileName.isEmpty() ? fileName : "file")).append("\"\r\n")
+                .append("Content-Type: application/octet-stream\r\n\r\n");
+        // 文件部分长度已知时，concat 能算出整个请求体的长度
+        HttpRequest.BodyPublisher filePart = size > 0
+                ? HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(fileContent), size)
+                : HttpRequest.BodyPublishers.ofInputStream(fileContent);
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.concat(
+                HttpRequest.BodyPublishers.ofString(head.toString(), StandardCharsets.UTF_8),
+                filePart,
+                HttpRequest.BodyPublishers.ofString("\r\n--" + boundary + "--\r\n", StandardCharsets.UTF_8));
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeouts.get(Endpoint.UPLOAD))
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(body)
+                .build();
+
+        acquire(Endpoint.UPLOAD);
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            HttpResponse<String> response = httpClient
+                    .sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                    .join();
+            checkStatus(response.statusCode(), response.body());
+            success = true;
+            return objectMapper.readTree(response.body());
+        } catch (CompletionException e) {
+            throw unwrap(Endpoint.UPLOAD, e);
+        } finally {
+            release(Endpoint.UPLOAD, start, success);
+        }
+    }
+
+    /**
+     * 转义 multipart 头部引号内的值（与浏览器表单编码一致）：CR、LF、双引号百分号编码，防止伪造头部或参数
+     */
+    private static String escapeQuoted(String value) {
+        return value.replace("\r", "%0D").replace("\n", "%0A").replace("\"", "%22");
+    }
+
+    private HttpRequest jsonRequest(Endpoint endpoint, String url, Object body, String accept) throws IOException {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeouts.get(endpoint))
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .header("Accept", accept)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                .build();
+    }
+
+    /**
+     * 获取舱壁名额：先尝试立即获取，失败则限时排队，仍失败则快速拒绝
+     */
+    private void acquire(Endpoint endpoint) {
+        boolean acquired = bulkhead.tryAcquire();
+        if (!acquired) {
+            queuedCount.incrementAndGet();
+            try {
+                acquired = bulkhead.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!acquired) {
+            rejectedCount.incrementAndGet();
+            endpointStats.get(endpoint).rejected.incrementAndGet();
+            throw new BulkheadFullException();
+        }
+        int current = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(current, Math::max);
+    }
+
+    private void release(Endpoint endpoint, long start, boolean success) {
+        inFlight.decrementAndGet();
+        bulkhead.release();
+        EndpointStats stats = endpointStats.get(endpoint);
+        stats.calls.incrementAndGet();
+        stats.totalLatencyMs.addAndGet(System.currentTimeMillis() - start);
+        if (!success) {
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    private void checkStatus(int status, String body) throws IOException {
+        if (status / 100 != 2) {
+            throw new IOException("AI 接口返回 " + status + "：" + body);
+        }
+    }
+
+    private IOException unwrap(Endpoint endpoint, CompletionException e) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof HttpTimeoutException) {
+            endpointStats.get(endpoint).timeouts.incrementAndGet();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    /**
+     * 客户端统计（在途数、饱和度、排队/拒绝数、各接口调用量、错误、超时、平均耗时）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        int current = inFlight.get();
+        stats.put("maxInFlight", maxInFlight);
+        stats.put("inFlight", current);
+        stats.put("peakInFlight", peakInFlight.get());
+        stats.put("saturation", maxInFlight > 0 ? (double) current / maxInFlight : 0.0);
+        stats.put("availablePermits", bulkhead.availablePermits());
+        stats.put("waitingThreads", bulkhead.getQueueLength());
+        stats.put("queued", queuedCount.get());
+        stats.put("rejected", rejectedCount.get());
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        for (Map.Entry<Endpoint, EndpointStats> entry : endpointStats.entrySet()) {
+            EndpointStats s = entry.getValue();
+            long calls = s.calls.get();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("timeoutMs", timeouts.get(entry.getKey()).toMillis());
+            item.put("calls", calls);
+            item.put("errors", s.errors.get());
+            item.put("timeouts", s.timeouts.get());
+            item.put("rejected", s.rejected.get());
+            item.put("avgLatencyMs", calls > 0 ? s.totalLatencyMs.get() / calls : 0);
+            endpoints.put(entry.getKey().name().toLowerCase(), item);
+        }
+        stats.put("endpoints", endpoints);
+        return stats;
+    }
+
+    private static class EndpointStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalLatencyMs = new AtomicLong();
+    }
+
+    /**
+     * 舱壁已满，请求被快速拒绝
+     */
+    public static class BulkheadFullException extends RuntimeException {
+        public BulkheadFullException() {
+            super("AI服务繁忙，请稍后重试");
+        }
+    }
+}
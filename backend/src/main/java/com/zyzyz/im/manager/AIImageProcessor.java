@@ -0,0 +1,412 @@
+package com.zyzyz.im.manager;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import com.zyzyz.im.config.MinioConfig;
+
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+import io.minio.StatObjectResponse;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * AI 图文对话的图片预处理
+ * 本站图片通过 MinioClient 直接读取对象流（不再经 URL 下载），按魔数识别真实格式，
+ * 超过模型有效分辨率的图片解码时按比例抽样再缩放、重新编码为 JPEG；
+ * 结果（data URL）按对象 key 缓存在本地 LRU 和 Redis，对同一张图片再次提问不再读取和编码
+ */
+@Component
+public class AIImageProcessor {
+
+    @Autowired
+    private MinioClient minioClient;
+
+    @Autowired
+    private MinioConfig minioConfig;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${minio.publicUrl:}")
+    private String minioPublicUrl;
+
+    // 无法解析出对象 key 的 /minio/ 相对路径按 URL 下载时使用的地址
+    @Value("${ai.minioEndpoint:http://localhost:9000}")
+    private String minioEndpoint;
+
+    // 长边上限，超过则缩放（视觉模型更高的分辨率基本不提升效果）
+    @Value("${ai.image.maxEdge:1280}")
+    private int maxEdge;
+
+    @Value("${ai.image.jpegQuality:0.85}")
+    private float jpegQuality;
+
+    // 不超过该大小的图片先整体读入，尺寸合适时原样发送
+    @Value("${ai.image.passthroughBytes:524288}")
+    private long passthroughBytes;
+
+    // 无法解码（如 WebP）时允许原样发送的最大大小
+    @Value("${ai.image.maxRawBytes:5242880}")
+    private int maxRawBytes;
+
+    // 读取的原图大小上限，超过直接拒绝（可解码的大图边读边抽样，但仍需整体读完）
+    @Value("${ai.image.maxInputBytes:20971520}")
+    private int maxInputBytes;
+
+    // 本地缓存条数上限（LRU）
+    @Value("${ai.image.cacheMaxEntries:200}")
+    private int cacheMaxEntries;
+
+    // 本地缓存总字符数上限（data URL 为 ASCII，约等于占用的字节数）
+    @Value("${ai.image.cacheMaxChars:67108864}")
+    private long cacheMaxChars;
+
+    // 单条超过该长度的 data URL 不缓存（本地和 Redis 都不存），避免原样发送的大图占满缓存
+    @Value("${ai.image.cacheMaxEntryChars:1048576}")
+    private int cacheMaxEntryChars;
+
+    @Value("${ai.image.cacheTtlSeconds:3600}")
+    private long cacheTtlSeconds;
+
+    private static final String CACHE_KEY_PREFIX = "ai:image:";
+
+    // 本地缓存：bucket/object -> data URL（按访问顺序，条数或总字符数超限时淘汰最久未用的）
+    private Map<String, String> localCache;
+
+    // 本地缓存的总字符数（在 localCache 的锁内更新）
+    private long localCacheChars;
+
+    // 统计
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong downscaled = new AtomicLong();
+    private final AtomicLong passthrough = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong uncached = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        localCache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true));
+    }
+
+    /**
+     * 把图片 URL 转为发送给视觉模型的 data URL（data:image/jpeg;base64,xxx）
+     */
+    public String toDataUrl(String imageUrl) throws IOException {
+        String[] location = resolveObject(imageUrl);
+        String cacheKey = location != null ? location[0] + "/" + location[1] : imageUrl;
+
+        String dataUrl = localCache.get(cacheKey);
+        if (dataUrl != null) {
+            localHits.incrementAndGet();
+            return dataUrl;
+        }
+        dataUrl = stringRedisTemplate.opsForValue().get(CACHE_KEY_PREFIX + cacheKey);
+        if (dataUrl != null) {
+            redisHits.incrementAndGet();
+            putLocal(cacheKey, dataUrl);
+            return dataUrl;
+        }
+
+        dataUrl = location != null ? processObject(location[0], location[1]) : processUrl(imageUrl);
+        processed.incrementAndGet();
+        if (dataUrl.length() > cacheMaxEntryChars) {
+            uncached.incrementAndGet();
+            return dataUrl;
+        }
+        putLocal(cacheKey, dataUrl);
+        stringRedisTemplate.opsForValue().set(CACHE_KEY_PREFIX + cacheKey, dataUrl, cacheTtlSeconds, TimeUnit.SECONDS);
+        return dataUrl;
+    }
+
+    /**
+     * 写入本地缓存，按条数和总字符数淘汰最久未用的条目
+     */
+    private void putLocal(String cacheKey, String dataUrl) {
+        if (dataUrl.length() > cacheMaxEntryChars) {
+            return;
+        }
+        synchronized (localCache) {
+            String previous = localCache.put(cacheKey, dataUrl);
+            localCacheChars += dataUrl.length() - (previous != null ? previous.length() : 0);
+            Iterator<Map.Entry<String, String>> eldest = localCache.entrySet().iterator();
+            while ((localCache.size() > cacheMaxEntries || localCacheChars > cacheMaxChars) && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                localCacheChars -= entry.getValue().length();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * 从本站图片 URL 解析 bucket 和对象 key：/minio/{bucket}/{key}、{publicUrl}/{bucket}/{key}、{endpoint}/{bucket}/{key}；
+     * 读取使用的是管理员凭证，只允许访问本站的图片 bucket，其他 bucket 一律拒绝
+     */
+    private String[] resolveObject(String imageUrl) throws IOException {
+        String path = null;
+        if (imageUrl.startsWith("/minio/")) {
+            path = imageUrl.substring("/minio/".length());
+        } else if (minioPublicUrl != null && !minioPublicUrl.isEmpty() && imageUrl.startsWith(minioPublicUrl + "/")) {
+            path = imageUrl.substring(minioPublicUrl.length() + 1);
+        } else if (imageUrl.startsWith(minioConfig.getEndpoint() + "/")) {
+            path = imageUrl.substring(minioConfig.getEndpoint().length() + 1);
+        }
+        if (path == null) {
+            return null;
+        }
+        int slash = path.indexOf('/');
+        if (slash <= 0 || slash == path.length() - 1) {
+            return null;
+        }
+        int query = path.indexOf('?');
+        String bucket = path.substring(0, slash);
+        if (!bucket.equals(minioConfig.getBucketName())) {
+            throw new IOException("不允许读取该图片：" + imageUrl);
+        }
+        String object = query > 0 ? path.substring(slash + 1, query) : path.substring(slash + 1);
+        return new String[] { bucket, object };
+    }
+
+    private String processObject(String bucket, String object) throws IOException {
+        try {
+            StatObjectResponse stat = minioClient.statObject(
+                    StatObjectArgs.builder().bucket(bucket).object(object).build());
+            if (stat.size() > maxInputBytes) {
+                throw new IOException("图片过大：" + stat.size() + " 字节");
+            }
+            bytesIn.addAndGet(stat.size());
+            try (InputStream in = minioClient.getObject(
+                    GetObjectArgs.builder().bucket(bucket).object(object).build())) {
+                return process(in, stat.size());
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("读取 MinIO 图片失败：" + bucket + "/" + object, e);
+        }
+    }
+
+    private String processUrl(String imageUrl) throws IOException {
+        String actualUrl = imageUrl;
+        if (imageUrl.startsWith("/minio/")) {
+            actualUrl = minioEndpoint + imageUrl.substring(6);
+        }
+        // 外部地址拿不到大小，先按上限读入（多读一个字节用于判断是否超限）
+        byte[] bytes;
+        try (InputStream in = URI.create(actualUrl).toURL().openStream()) {
+            bytes = in.readNBytes(maxInputBytes + 1);
+        }
+        if (bytes.length > maxInputBytes) {
+            throw new IOException("图片过大：" + actualUrl);
+        }
+        bytesIn.addAndGet(bytes.length);
+        return process(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    /**
+     * 小图整体读入，尺寸合适时原样发送；大图边解码边抽样，避免把原图完整解码到内存
+     */
+    private String process(InputStream in, long size) throws IOException {
+        if (size >= 0 && size <= passthroughBytes) {
+            byte[] bytes = in.readAllBytes();
+            String mime = detectMimeType(bytes);
+            int[] dims = readDimensions(bytes);
+            if (mime != null && dims != null && Math.max(dims[0], dims[1]) <= maxEdge) {
+                passthrough.incrementAndGet();
+                return encode(mime, bytes);
+            }
+            return downscale(new ByteArrayInputStream(bytes), bytes, mime);
+        }
+        // 先只读魔数判断格式，再把剩余部分交给解码器
+        BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+        buffered.mark(16);
+        byte[] head = buffered.readNBytes(12);
+        buffered.reset();
+        return downscale(buffered, null, detectMimeType(head));
+    }
+
+    private String downscale(InputStream in, byte[] raw, String mime) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = iis != null ? ImageIO.getImageReaders(iis) : Collections.emptyIterator();
+            if (!readers.hasNext()) {
+                // 没有可用的解码器（如 WebP），不超过上限时原样发送；格式不认识的不再读取
+                if (mime == null) {
+                    throw new IOException("不支持的图片格式");
+                }
+                byte[] bytes = raw != null ? raw : readRest(iis, in);
+                if (bytes.length > maxRawBytes) {
+                    throw new IOException("不支持的图片格式或图片过大");
+                }
+                passthrough.incrementAndGet();
+                return encode(mime, bytes);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(width, height) / maxEdge);
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                double scale = Math.min(1.0, (double) maxEdge / Math.max(image.getWidth(), image.getHeight()));
+                int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+                int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+                // 统一转为 RGB 后编码为 JPEG（透明区域填白）
+                BufferedImage target = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = target.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, targetWidth, targetHeight);
+                    g.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+                } finally {
+                    g.dispose();
+                }
+                downscaled.incrementAndGet();
+                return encode("image/jpeg", writeJpeg(target));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 读出整张图片，最多读 maxRawBytes + 1 字节（超出部分不再读取，调用方据长度判断超限）
+     */
+    private byte[] readRest(ImageInputStream iis, InputStream in) throws IOException {
+        if (iis != null) {
+            iis.seek(0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int remaining = maxRawBytes + 1;
+            int n;
+            while (remaining > 0 && (n = iis.read(buffer, 0, Math.min(buffer.length, remaining))) != -1) {
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            return out.toByteArray();
+        }
+        return in.readNBytes(maxRawBytes + 1);
+    }
+
+    private byte[] writeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 只读取图片头获取宽高，不解码像素
+     */
+    private int[] readDimensions(byte[] bytes) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 按文件头魔数识别图片类型
+     */
+    static String detectMimeType(byte[] head) {
+        if (head.length >= 3 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (head.length >= 8 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+            return "image/png";
+        }
+        if (head.length >= 6 && head[0] == 'G' && head[1] == 'I' && head[2] == 'F' && head[3] == '8') {
+            return "image/gif";
+        }
+        if (head.length >= 12 && head[0] == 'R' && head[1] == 'I' && head[2] == 'F' && head[3] == 'F'
+                && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') {
+            return "image/webp";
+        }
+        if (head.length >= 2 && head[0] == 'B' && head[1] == 'M') {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    private String encode(String mime, byte[] bytes) {
+        bytesOut.addAndGet(bytes.length);
+        return "data:" + mime + ";base64," + Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * 图片预处理统计（缓存命中、缩放/原样发送次数、读入与发送字节数）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxEdge", maxEdge);
+        stats.put("cacheEntries", localCache.size());
+        synchronized (localCache) {
+            stats.put("cacheChars", localCacheChars);
+        }
+        stats.put("uncached", uncached.get());
+        stats.put("localHits", localHits.get());
+        stats.put("redisHits", redisHits.get());
+        stats.put("processed", processed.get());
+        stats.put("downscaled", downscaled.get());
+        stats.put("passthrough", passthrough.get());
+        stats.put("bytesIn", bytesIn.get());
+        stats.put("bytesOut", bytesOut.get());
+        return stats;
+    }
+}
@@ -0,0 +1,288 @@
+package com.zyzyz.im.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * AI 回复缓存（默认关闭，ai.cache.enabled=true 开启）
+ * 只缓存与个人上下文无关的请求：无历史的普通提问，以及针对共享文档（同一 fileId）的首轮提问；
+ * key 为 模型 + 上下文指纹 + 归一化后的提问 的 SHA-256，本地 LRU + Redis 两级，
+ * 同一 key 的并发未命中请求合并为一次上游调用
+ */
+@Component
+public class AIResponseCache {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${ai.cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${ai.cache.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    // 本地缓存条数上限（LRU 淘汰）
+    @Value("${ai.cache.localMaxEntries:1000}")
+    private int localMaxEntries;
+
+    // 超过该长度的提问/回复不缓存，限制单条占用
+    @Value("${ai.cache.maxPromptChars:500}")
+    private int maxPromptChars;
+
+    @Value("${ai.cache.maxReplyChars:8000}")
+    private int maxReplyChars;
+
+    private static final String KEY_PREFIX = "ai:cache:";
+
+    // 本地缓存：key -> 回复
+    private Map<String, CachedReply> localCache;
+
+    // 正在请求上游的 key，后到的相同请求等待同一个结果
+    private final ConcurrentHashMap<String, CompletableFuture<CachedReply>> inFlight = new ConcurrentHashMap<>();
+
+    // 统计
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong tokensSaved = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        localCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReply> eldest) {
+                return size() > localMaxEntries;
+            }
+        });
+    }
+
+    /**
+     * 计算缓存 key；未开启或提问过长时返回 null（不缓存）
+     *
+     * @param model 模型
+     * @param contextFingerprint 共享上下文指纹（无上下文为空串，共享文档为 fileid）
+     * @param prompt 用户提问
+     */
+    public String key(String model, String contextFingerprint, String prompt) {
+        if (!enabled || prompt == null) {
+            return null;
+        }
+        String normalized = normalize(prompt);
+        if (normalized.isEmpty() || normalized.length() > maxPromptChars) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((model + "\n" + contextFingerprint + "\n" + normalized)
+                    .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 查询缓存（本地 → Redis），未命中返回 null
+     */
+    public CachedReply get(String key) {
+        lookups.incrementAndGet();
+        CachedReply reply = getLocal(key);
+        if (reply != null) {
+            localHits.incrementAndGet();
+            tokensSaved.addAndGet(reply.tokens);
+            return reply;
+        }
+        reply = getRedis(key);
+        if (reply != null) {
+            redisHits.incrementAndGet();
+            tokensSaved.addAndGet(reply.tokens);
+            return reply;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 查询缓存，未命中时调用 loader；同一 key 同时只有一个 loader 在执行，其余请求等待其结果
+     *
+     * @return 回复及是否来自缓存
+     */
+    public Lookup getOrLoad(String key, Loader loader) throws Exception {
+        CachedReply cached = get(key);
+        if (cached != null) {
+            return new Lookup(cached, true);
+        }
+        CompletableFuture<CachedReply> future = new CompletableFuture<>();
+        CompletableFuture<CachedReply> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // 合并到正在进行的请求，不计为未命中
+            misses.decrementAndGet();
+            coalesced.incrementAndGet();
+            try {
+                CachedReply reply = existing.join();
+                tokensSaved.addAndGet(reply.tokens);
+                return new Lookup(reply, true);
+            } catch (CompletionException e) {
+                // 领头请求失败，自己再请求一次
+                return new Lookup(loader.load(), false);
+            }
+        }
+        try {
+            CachedReply reply = loader.load();
+            put(key, reply);
+            future.complete(reply);
+            return new Lookup(reply, false);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 写入两级缓存
+     */
+    public void put(String key, CachedReply reply) {
+        if (reply.reply == null || reply.reply.isEmpty() || reply.reply.length() > maxReplyChars) {
+            return;
+        }
+        localCache.put(key, new CachedReply(reply.reply, reply.tokens,
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds)));
+        try {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("r", reply.reply);
+            value.put("t", reply.tokens);
+            stringRedisTemplate.opsForValue().set(KEY_PREFIX + key, objectMapper.writeValueAsString(value),
+                    ttlSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("❌ 写入 AI 回复缓存失败：" + e.getMessage());
+        }
+        stores.incrementAndGet();
+    }
+
+    private CachedReply getLocal(String key) {
+        CachedReply reply = localCache.get(key);
+        if (reply == null) {
+            return null;
+        }
+        if (reply.expireAt < System.currentTimeMillis()) {
+            localCache.remove(key);
+            return null;
+        }
+        return reply;
+    }
+
+    private CachedReply getRedis(String key) {
+        try {
+            String json = stringRedisTemplate.opsForValue().get(KEY_PREFIX + key);
+            if (json == null) {
+                return null;
+            }
+            Map<?, ?> value = objectMapper.readValue(json, Map.class);
+            Long ttl = stringRedisTemplate.getExpire(KEY_PREFIX + key, TimeUnit.MILLISECONDS);
+            CachedReply reply = new CachedReply((String) value.get("r"), ((Number) value.get("t")).intValue(),
+                    System.currentTimeMillis() + (ttl != null && ttl > 0 ? ttl : 0));
+            localCache.put(key, reply);
+            return reply;
+        } catch (Exception e) {
+            System.err.println("❌ 读取 AI 回复缓存失败：" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 归一化提问：去首尾空白、合并连续空白、转小写、去掉末尾标点
+     */
+    private String normalize(String prompt) {
+        String s = prompt.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return s.replaceAll("[\\s?？!！。.,，~～]+$", "");
+    }
+
+    /**
+     * 缓存统计（命中率、各级命中数、合并请求数、节省的 token 数）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long total = lookups.get();
+        long hits = localHits.get() + redisHits.get() + coalesced.get();
+        stats.put("enabled", enabled);
+        stats.put("ttlSeconds", ttlSeconds);
+        stats.put("localEntries", localCache.size());
+        stats.put("localMaxEntries", localMaxEntries);
+        stats.put("lookups", total);
+        stats.put("localHits", localHits.get());
+        stats.put("redisHits", redisHits.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("misses", misses.get());
+        stats.put("hitRatio", total > 0 ? (double) hits / total : 0.0);
+        stats.put("stores", stores.get());
+        stats.put("tokensSaved", tokensSaved.get());
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
+
+    /**
+     * 上游调用
+     */
+    public interface Loader {
+        CachedReply load() throws Exception;
+    }
+
+    /**
+     * 缓存的回复
+     */
+    public static class CachedReply {
+        public final String reply;
+        public final int tokens;
+        final long expireAt;
+
+        public CachedReply(String reply, int tokens) {
+            this(reply, tokens, 0);
+        }
+
+        CachedReply(String reply, int tokens, long expireAt) {
+            this.reply = reply;
+            this.tokens = tokens;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 查询结果
+     */
+    public static class Lookup {
+        public final CachedReply reply;
+        public final boolean hit;
+
+        public Lookup(CachedReply reply, boolean hit) {
+            this.reply = reply;
+            this.hit = hit;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.zyzyz.im.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.zyzyz.im.mapper.GroupMemberMapper;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * 群成员近端缓存
+ * 本地缓存 -> Redis Set -> 数据库 逐级加载，群消息热路径（成员校验 + 扇出）不再查库；
+ * 同样缓存每个用户所在的群组ID集合（跨群搜索的 terms 过滤）；
+ * 成员变更提交后删除 Redis 副本、版本号 +1，并通过频道通知所有节点清除本地缓存
+ */
+@Component
+public class GroupMembershipCache {
+
+    @Autowired
+    private GroupMemberMapper groupMemberMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 缓存兜底过期时间（正常情况下由失效通知清除）
+    @Value("${group.cache.ttlMs:600000}")
+    private long ttlMs;
+
+    private static final String MEMBERS_KEY_PREFIX = "im:group:members:";
+    private static final String USER_GROUPS_KEY_PREFIX = "im:group:user:";
+
+    // 失效版本号：删除 Redis 副本时 +1，查库前读取，回填时不一致则放弃写入
+    private static final String MEMBERS_VERSION_KEY_PREFIX = "im:group:ver:";
+    private static final String USER_GROUPS_VERSION_KEY_PREFIX = "im:group:userver:";
+
+    // 不在任何群时写入的占位成员（Redis 不能保存空集合，避免每次都查库）
+    private static final String EMPTY_MARKER = "";
+
+    // 失效通知频道（消息内容为 groupId / userId）
+    private static final String INVALIDATE_CHANNEL = "im:group:invalidate";
+    private static final String USER_INVALIDATE_CHANNEL = "im:group:user:invalidate";
+
+    // 从数据库加载后回填：期间没有失效（版本号未变）且副本不存在才写入，避免查库慢于失效时写回旧成员
+    private static final DefaultRedisScript<Long> FILL_SCRIPT = new DefaultRedisScript<>(
+            "local version = redis.call('get', KEYS[2]) or '0' "
+                    + "if version ~= ARGV[1] or redis.call('exists', KEYS[1]) == 1 then return 0 end "
+                    + "for i = 3, #ARGV do redis.call('sadd', KEYS[1], ARGV[i]) end "
+                    + "redis.call('pexpire', KEYS[1], ARGV[2]) return 1",
+            Long.class);
+
+    private final ConcurrentHashMap<String, CachedMembers> cache = new ConcurrentHashMap<>();
+
+    // 每个群的失效次数，加载期间发生失效则不写入本地缓存，避免旧数据覆盖
+    private final ConcurrentHashMap<String, Long> generations = new ConcurrentHashMap<>();
+
+    // 用户 -> 所在群组ID集合
+    private final ConcurrentHashMap<String, CachedGroupIds> userGroupCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> userGenerations = new ConcurrentHashMap<>();
+
+    /**
+     * 成员集合（O(1) 判断）和成员列表（扇出遍历）共用一份不可变快照
+     */
+    private record CachedMembers(Set<String> memberSet, List<String> memberList, long expiresAt) {
+    }
+
+    private record CachedGroupIds(Set<String> groupIds, long expiresAt) {
+    }
+
+    // 统计
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong dbLoads = new AtomicLong();
+    private final AtomicLong totalLoadMillis = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong userGroupHits = new AtomicLong();
+    private final AtomicLong userGroupLoads = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATE_CHANNEL));
+        listenerContainer.addMessageListener(
+                (message, pattern) -> evictUserLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(USER_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 判断用户是否是群成员
+     */
+    public boolean isMember(String groupId, String userId) {
+        return get(groupId).memberSet().contains(userId);
+    }
+
+    /**
+     * 获取群成员ID列表（不可变）
+     */
+    public List<String> getMemberIds(String groupId) {
+        return get(groupId).memberList();
+    }
+
+    private CachedMembers get(String groupId) {
+        long now = System.currentTimeMillis();
+        CachedMembers cached = cache.get(groupId);
+        if (cached != null && cached.expiresAt() > now) {
+            localHits.incrementAndGet();
+            return cached;
+        }
+
+        long generation = generations.getOrDefault(groupId, 0L);
+        Set<String> members = load(groupId);
+        CachedMembers loaded = new CachedMembers(members, List.copyOf(members), now + ttlMs);
+        if (generations.getOrDefault(groupId, 0L) == generation) {
+            cache.put(groupId, loaded);
+        }
+        return loaded;
+    }
+
+    private Set<String> load(String groupId) {
+        String key = MEMBERS_KEY_PREFIX + groupId;
+        try {
+            Set<String> members = stringRedisTemplate.opsForSet().members(key);
+            if (members != null && !members.isEmpty()) {
+                redisHits.incrementAndGet();
+                return Set.copyOf(members);
+            }
+        } catch (Exception e) {
+            System.err.println("读取群成员缓存失败：" + e.getMessage());
+        }
+
+        String versionKey = MEMBERS_VERSION_KEY_PREFIX + groupId;
+        String version = readVersion(versionKey);
+        long start = System.currentTimeMillis();
+        List<String> memberIds = groupMemberMapper.selectMemberIdsByGroupId(groupId);
+        totalLoadMillis.addAndGet(System.currentTimeMillis() - start);
+        dbLoads.incrementAndGet();
+        if (version != null && !memberIds.isEmpty()) {
+            try {
+                fill(key, versionKey, version, memberIds);
+            } catch (Exception e) {
+                System.err.println("写入群成员缓存失败：" + e.getMessage());
+            }
+        }
+        return Set.copyOf(memberIds);
+    }
+
+    /**
+     * 获取用户所在的所有群组ID（不可变）
+     */
+    public Set<String> getUserGroupIds(String userId) {
+        long now = System.currentTimeMillis();
+        CachedGroupIds cached = userGroupCache.get(userId);
+        if (cached != null && cached.expiresAt() > now) {
+            userGroupHits.incrementAndGet();
+            return cached.groupIds();
+        }
+
+        long generation = userGenerations.getOrDefault(userId, 0L);
+        Set<String> groupIds = loadUserGroupIds(userId);
+        if (userGenerations.getOrDefault(userId, 0L) == generation) {
+            userGroupCache.put(userId, new CachedGroupIds(groupIds, now + ttlMs));
+        }
+        return groupIds;
+    }
+
+    private Set<String> loadUserGroupIds(String userId) {
+        String key = USER_GROUPS_KEY_PREFIX + userId;
+        try {
+            Set<String> groupIds = stringRedisTemplate.opsForSet().members(key);
+            if (groupIds != null && !groupIds.isEmpty()) {
+                userGroupHits.incrementAndGet();
+                groupIds.remove(EMPTY_MARKER);
+                return Set.copyOf(groupIds);
+            }
+        } catch (Exception e) {
+            System.err.println("读取用户群组缓存失败：" + e.getMessage());
+        }
+
+        String versionKey = USER_GROUPS_VERSION_KEY_PREFIX + userId;
+        String version = readVersion(versionKey);
+        userGroupLoads.incrementAndGet();
+        List<String> groupIds = groupMemberMapper.selectGroupIdsByUserId(userId);
+        if (version != null) {
+            try {
+                fill(key, versionKey, version, groupIds.isEmpty() ? List.of(EMPTY_MARKER) : groupIds);
+            } catch (Exception e) {
+                System.err.println("写入用户群组缓存失败：" + e.getMessage());
+            }
+        }
+        return Set.copyOf(groupIds);
+    }
+
+    /**
+     * 查库前读取失效版本号，读取失败返回 null（本次不回填）
+     */
+    private String readVersion(String versionKey) {
+        try {
+            String version = stringRedisTemplate.opsForValue().get(versionKey);
+            return version != null ? version : "0";
+        } catch (Exception e) {
+            System.err.println("读取群成员缓存版本失败：" + e.getMessage());
+            return null;
+        }
+    }
+
+    private void fill(String key, String versionKey, String version, List<String> values) {
+        List<String> args = new ArrayList<>(values.size() + 2);
+        args.add(version);
+        args.add(String.valueOf(ttlMs));
+        args.addAll(values);
+        stringRedisTemplate.execute(FILL_SCRIPT, List.of(key, versionKey), args.toArray());
+    }
+
+    /**
+     * 群成员变更后调用：事务提交后删除 Redis 副本并通知所有节点清除本地缓存
+     * 提交后再清一次本地缓存：提交前本节点读到的仍是旧成员
+     */
+    public void invalidate(String groupId) {
+        evictLocal(groupId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evictLocal(groupId);
+                    publishInvalidation(groupId);
+                }
+            });
+        } else {
+            publishInvalidation(groupId);
+        }
+    }
+
+    /**
+     * 用户加入 / 退出群后调用：事务提交后清除这些用户的群组ID集合
+     */
+    public void invalidateUsers(List<String> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+        userIds.forEach(this::evictUserLocal);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    userIds.forEach(GroupMembershipCache.this::evictUserLocal);
+                    publishUserInvalidation(userIds);
+                }
+            });
+        } else {
+            publishUserInvalidation(userIds);
+        }
+    }
+
+    private void publishUserInvalidation(List<String> userIds) {
+        try {
+            Map<String, String> versionKeys = new LinkedHashMap<>();
+            for (String userId : userIds) {
+                versionKeys.put(USER_GROUPS_KEY_PREFIX + userId, USER_GROUPS_VERSION_KEY_PREFIX + userId);
+            }
+            deleteAndBumpVersion(versionKeys);
+            for (String userId : userIds) {
+                stringRedisTemplate.convertAndSend(USER_INVALIDATE_CHANNEL, userId);
+            }
+        } catch (Exception e) {
+            System.err.println("发布用户群组缓存失效通知失败：" + userIds + ", " + e.getMessage());
+        }
+    }
+
+    private void evictUserLocal(String userId) {
+        userGenerations.merge(userId, 1L, Long::sum);
+        userGroupCache.remove(userId);
+        invalidations.incrementAndGet();
+    }
+
+    private void publishInvalidation(String groupId) {
+        try {
+            deleteAndBumpVersion(Map.of(MEMBERS_KEY_PREFIX + groupId, MEMBERS_VERSION_KEY_PREFIX + groupId));
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, groupId);
+        } catch (Exception e) {
+            System.err.println("发布群成员缓存失效通知失败：" + groupId + ", " + e.getMessage());
+        }
+    }
+
+    /**
+     * 删除 Redis 副本并将版本号 +1（一次 pipeline），使删除前开始的查库不会回填旧数据
+     * versionKeys：副本 key -> 版本号 key
+     */
+    private void deleteAndBumpVersion(Map<String, String> versionKeys) {
+        long versionTtl = ttlMs * 2;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, String> entry : versionKeys.entrySet()) {
+                byte[] versionKey = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                connection.keyCommands().del(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                connection.stringCommands().incr(versionKey);
+                connection.keyCommands().pExpire(versionKey, versionTtl);
+            }
+            return null;
+        });
+    }
+
+    private void evictLocal(String groupId) {
+        generations.merge(groupId, 1L, Long::sum);
+        cache.remove(groupId);
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * 定时清理过期的本地缓存
+     */
+    @Scheduled(fixedDelayString = "${group.cache.ttlMs:600000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(members -> members.expiresAt() <= now);
+        userGroupCache.values().removeIf(groupIds -> groupIds.expiresAt() <= now);
+    }
+
+    /**
+     * 群成员缓存统计
+     */
+    public Map<String, Object> getStats() {
+        long local = localHits.get();
+        long redis = redisHits.get();
+        long loads = dbLoads.get();
+        long lookups = local + redis + loads;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cachedGroups", cache.size());
+        stats.put("localHits", local);
+        stats.put("redisHits", redis);
+        stats.put("dbLoads", loads);
+        stats.put("hitRatio", lookups > 0 ? (double) (local + redis) / lookups : 0.0);
+        stats.put("localHitRatio", lookups > 0 ? (double) local / lookups : 0.0);
+        stats.put("avgLoadMillis", loads > 0 ? totalLoadMillis.get() / loads : 0);
+        stats.put("invalidations", invalidations.get());
+        stats.put("cachedUsers", userGroupCache.size());
+        stats.put("userGroupHits", userGroupHits.get());
+        stats.put("userGroupLoads", userGroupLoads.get());
+        return stats;
+    }
+}
@@ -0,0 +1,336 @@
+package com.zyzyz.im.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.dto.ChatMessage;
+import com.zyzyz.im.dto.GroupResponse;
+import com.zyzyz.im.dto.PresenceDelta;
+import com.zyzyz.im.dto.RoutedMessage;
+import com.zyzyz.im.dto.UserInfoDTO;
+import com.zyzyz.im.entity.Conversation;
+import com.zyzyz.im.service.ConversationService;
+import com.zyzyz.im.service.GroupService;
+import com.zyzyz.im.service.UserService;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * 在线状态管理
+ * 上线/下线事件只推送给关心的人（最近联系人 + 群组成员），
+ * 同一刷新周期内的状态变化合并为一帧 presence_delta，连接抖动不会产生多次推送
+ */
+@Component
+public class PresenceManager {
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ConversationService conversationService;
+
+    @Autowired
+    private GroupService groupService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${presence.audienceTtlMs:300000}")
+    private long audienceTtlMs;
+
+    // 关注者集合缓存（Redis Set，多节点共享）
+    private static final String AUDIENCE_KEY_PREFIX = "im:presence:audience:";
+
+    // 关注者缓存失效通知（各节点清除本地缓存）
+    private static final String AUDIENCE_INVALIDATE_CHANNEL = "im:presence:audience:invalidate";
+
+    // 待推送的状态变化：userId -> 最新状态（同一周期内后到的覆盖先到的）
+    private final ConcurrentHashMap<String, String> pendingChanges = new ConcurrentHashMap<>();
+
+    // 已向关注者推送过"在线"的用户（Redis Set，多节点共享）：SADD / SREM 的返回值即是否发生状态切换，
+    // 用户在另一个节点重连时，两个节点对同一用户的推送不会重复也不会丢失
+    private static final String ANNOUNCED_KEY = "im:presence:announced";
+
+    // 本地关注者缓存
+    private final ConcurrentHashMap<String, CachedAudience> audienceCache = new ConcurrentHashMap<>();
+
+    private record CachedAudience(Set<String> userIds, long expiresAt) {
+    }
+
+    // 统计
+    private final AtomicLong receivedEvents = new AtomicLong();
+    private final AtomicLong coalescedEvents = new AtomicLong();
+    private final AtomicLong pushedFrames = new AtomicLong();
+    private final AtomicLong audienceLoads = new AtomicLong();
+    private final AtomicLong audienceInvalidations = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> evictAudienceLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(AUDIENCE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 记录状态变化（只写内存，由定时任务合并推送）
+     *
+     * @param statusType user_online / user_offline
+     */
+    public void onStatusChange(String userId, String statusType) {
+        receivedEvents.incrementAndGet();
+        if (pendingChanges.put(userId, statusType) != null) {
+            coalescedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * 定时合并推送状态增量
+     */
+    @Scheduled(fixedDelayString = "${presence.flushIntervalMs:2000}")
+    public void flush() {
+        long now = System.currentTimeMillis();
+        audienceCache.values().removeIf(audience -> audience.expiresAt() <= now);
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        Map<String, String> changes = new HashMap<>();
+        for (String userId : new ArrayList<>(pendingChanges.keySet())) {
+            String statusType = pendingChanges.remove(userId);
+            if (statusType != null) {
+                changes.put(userId, statusType);
+            }
+        }
+
+        // 以 Redis 中的在线状态为准，在共享的已推送集合上做切换（一次 pipeline），过滤掉抖动后状态未变的用户
+        List<String> userIds = new ArrayList<>(changes.keySet());
+        List<Boolean> onlineStates = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            onlineStates.add(websocketSessionManager.isOnline(userId));
+        }
+        List<Object> transitions;
+        try {
+            byte[] key = ANNOUNCED_KEY.getBytes(StandardCharsets.UTF_8);
+            transitions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < userIds.size(); i++) {
+                    byte[] member = userIds.get(i).getBytes(StandardCharsets.UTF_8);
+                    if (onlineStates.get(i)) {
+                        connection.setCommands().sAdd(key, member);
+                    } else {
+                        connection.setCommands().sRem(key, member);
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            System.err.println("更新在线状态推送记录失败：" + e.getMessage());
+            // 放回待推送，下个周期重试（期间的新事件优先）
+            changes.forEach(pendingChanges::putIfAbsent);
+            return;
+        }
+        List<String> changedUserIds = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            String userId = userIds.get(i);
+            Object result = transitions.get(i);
+            if (!(result instanceof Long count) || count == 0) {
+                coalescedEvents.incrementAndGet();
+                continue;
+            }
+            changes.put(userId, onlineStates.get(i) ? "user_online" : "user_offline");
+            changedUserIds.add(userId);
+        }
+        if (changedUserIds.isEmpty()) {
+            return;
+        }
+
+        // 批量查询昵称
+        Map<String, String> nicknames = new HashMap<>();
+        try {
+            for (UserInfoDTO userInfo : userService.getUserInfoByUserIds(changedUserIds)) {
+                nicknames.put(userInfo.getUserId(), userInfo.getNickname());
+            }
+        } catch (Exception e) {
+            System.err.println("获取用户昵称失败：" + e.getMessage());
+        }
+
+        // 按接收者聚合：recipient -> 该接收者关心的状态变化
+        Map<String, List<ChatMessage>> changesByRecipient = new HashMap<>();
+        for (String userId : changedUserIds) {
+            ChatMessage change = ChatMessage.builder()
+                    .type(changes.get(userId))
+                    .fromUserId(userId)
+                    .nickname(nicknames.getOrDefault(userId, userId))
+                    .build();
+            for (String recipient : getAudience(userId)) {
+                if (!recipient.equals(userId)) {
+                    changesByRecipient.computeIfAbsent(recipient, k -> new ArrayList<>()).add(change);
+                }
+            }
+        }
+
+        // 相同内容的帧合并投递（跨节点时每个节点一次发布）
+        Map<String, List<String>> recipientsByPayload = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ChatMessage>> entry : changesByRecipient.entrySet()) {
+            try {
+                String payload = objectMapper.writeValueAsString(PresenceDelta.builder()
+                        .type("presence_delta")
+                        .changes(entry.getValue())
+                        .build());
+                recipientsByPayload.computeIfAbsent(payload, k -> new ArrayList<>()).add(entry.getKey());
+            } catch (Exception e) {
+                System.err.println("序列化状态增量失败：" + e.getMessage());
+            }
+        }
+        List<RoutedMessage> messages = new ArrayList<>();
+        recipientsByPayload.forEach((payload, ids) -> messages.add(RoutedMessage.builder()
+                .userIds(ids)
+                .payload(payload)
+                .build()));
+        pushedFrames.addAndGet(websocketSessionManager.deliverAll(messages));
+    }
+
+    /**
+     * 获取关心该用户在线状态的人（最近联系人 + 所在群组的成员）
+     * 本地缓存 -> Redis -> 数据库 逐级加载
+     */
+    public Set<String> getAudience(String userId) {
+        long now = System.currentTimeMillis();
+        CachedAudience cached = audienceCache.get(userId);
+        if (cached != null && cached.expiresAt() > now) {
+            return cached.userIds();
+        }
+
+        String key = AUDIENCE_KEY_PREFIX + userId;
+        Set<String> audience = null;
+        try {
+            Set<String> members = stringRedisTemplate.opsForSet().members(key);
+            if (members != null && !members.isEmpty()) {
+                audience = members;
+            }
+        } catch (Exception e) {
+            System.err.println("读取关注者缓存失败：" + e.getMessage());
+        }
+
+        if (audience == null) {
+            audience = loadAudience(userId);
+            try {
+                if (!audience.isEmpty()) {
+                    stringRedisTemplate.opsForSet().add(key, audience.toArray(new String[0]));
+                    stringRedisTemplate.expire(key, audienceTtlMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (Exception e) {
+                System.err.println("写入关注者缓存失败：" + e.getMessage());
+            }
+        }
+
+        audience = Set.copyOf(audience);
+        audienceCache.put(userId, new CachedAudience(audience, now + audienceTtlMs));
+        return audience;
+    }
+
+    private Set<String> loadAudience(String userId) {
+        audienceLoads.incrementAndGet();
+        Set<String> audience = new HashSet<>(conversationService.getRecentPeerIds(userId, Conversation.TYPE_PRIVATE, null));
+        for (GroupResponse group : groupService.getUserGroups(userId)) {
+            audience.addAll(groupService.getGroupMemberIds(group.getGroupId()));
+        }
+        audience.remove(userId);
+        return audience;
+    }
+
+    /**
+     * 关系变化（新联系人、加群、退群）时清除关注者缓存
+     */
+    public void invalidateAudience(String userId) {
+        invalidateAudience(List.of(userId));
+    }
+
+    /**
+     * 批量清除关注者缓存：本节点立即清除，Redis 副本和其他节点在事务提交后清除（避免读到提交前的关系）
+     */
+    public void invalidateAudience(Collection<String> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+        List<String> targets = List.copyOf(userIds);
+        targets.forEach(this::evictAudienceLocal);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    publishAudienceInvalidation(targets);
+                }
+            });
+        } else {
+            publishAudienceInvalidation(targets);
+        }
+    }
+
+    private void publishAudienceInvalidation(List<String> userIds) {
+        try {
+            stringRedisTemplate.delete(userIds.stream().map(userId -> AUDIENCE_KEY_PREFIX + userId).toList());
+            for (String userId : userIds) {
+                stringRedisTemplate.convertAndSend(AUDIENCE_INVALIDATE_CHANNEL, userId);
+            }
+        } catch (Exception e) {
+            System.err.println("清除关注者缓存失败：" + userIds + ", " + e.getMessage());
+        }
+    }
+
+    private void evictAudienceLocal(String userId) {
+        audienceCache.remove(userId);
+        audienceInvalidations.incrementAndGet();
+    }
+
+    /**
+     * 在线状态推送统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pendingChanges", pendingChanges.size());
+        Long announced = null;
+        try {
+            announced = stringRedisTemplate.opsForSet().size(ANNOUNCED_KEY);
+        } catch (Exception e) {
+            System.err.println("读取在线状态推送记录失败：" + e.getMessage());
+        }
+        stats.put("announcedOnline", announced);
+        stats.put("cachedAudiences", audienceCache.size());
+        stats.put("receivedEvents", receivedEvents.get());
+        stats.put("coalescedEvents", coalescedEvents.get());
+        stats.put("pushedFrames", pushedFrames.get());
+        stats.put("audienceLoads", audienceLoads.get());
+        stats.put("audienceInvalidations", audienceInvalidations.get());
+        return stats;
+    }
+}
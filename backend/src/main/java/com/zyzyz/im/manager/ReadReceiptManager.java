@@ -0,0 +1,158 @@
+package com.zyzyz.im.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.dto.ChatMessage;
+import com.zyzyz.im.dto.RoutedMessage;
+import com.zyzyz.im.entity.Conversation;
+import com.zyzyz.im.mapper.ConversationMapper;
+
+import cn.hutool.core.util.IdUtil;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * 已读回执管理
+ * 已读状态按会话记录为水位（已读到的最后一条消息 id），不再逐条更新 t_message；
+ * 同一刷新周期内的多次已读合并为一次，批量写入会话表，并给发送方推送一帧 read_receipt
+ */
+@Component
+public class ReadReceiptManager {
+
+    @Autowired
+    private ConversationMapper conversationMapper;
+
+    @Autowired
+    private UnreadCounterManager unreadCounterManager;
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // 待刷新的已读水位：reader|peer -> 已读到的消息 id（只保留最大值）
+    private final ConcurrentHashMap<String, Long> pendingWatermarks = new ConcurrentHashMap<>();
+
+    private static final int BATCH_SIZE = 500;
+
+    // 统计
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong receiptCount = new AtomicLong();
+    private volatile long lastFlushMillis = 0;
+
+    /**
+     * 记录已读（只写内存，由定时任务合并刷新）
+     *
+     * @param readerId          已读的用户
+     * @param peerUserId        私聊对方（回执的接收者）
+     * @param lastReadMessageId 已读到的消息 id，为空表示已读到当前最新
+     */
+    public void markRead(String readerId, String peerUserId, Long lastReadMessageId) {
+        if (readerId == null || peerUserId == null) {
+            return;
+        }
+        // 雪花 ID 按时间递增，当前时刻生成的 ID 大于此前所有消息
+        long watermark = lastReadMessageId != null ? lastReadMessageId : IdUtil.getSnowflakeNextId();
+        String key = readerId + "|" + peerUserId;
+        receivedCount.incrementAndGet();
+        if (pendingWatermarks.containsKey(key)) {
+            coalescedCount.incrementAndGet();
+        }
+        pendingWatermarks.merge(key, watermark, Math::max);
+    }
+
+    /**
+     * 定时批量刷新已读水位并推送回执
+     */
+    @Scheduled(fixedDelayString = "${read.flushIntervalMs:500}")
+    public void flush() {
+        if (pendingWatermarks.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Long> watermarks = new HashMap<>();
+        for (String key : new ArrayList<>(pendingWatermarks.keySet())) {
+            Long watermark = pendingWatermarks.remove(key);
+            if (watermark != null) {
+                watermarks.put(key, watermark);
+            }
+        }
+
+        List<Conversation> conversations = new ArrayList<>(watermarks.size());
+        List<RoutedMessage> receipts = new ArrayList<>(watermarks.size());
+        watermarks.forEach((key, watermark) -> {
+            int separator = key.indexOf('|');
+            String readerId = key.substring(0, separator);
+            String peerUserId = key.substring(separator + 1);
+            conversations.add(Conversation.builder()
+                    .ownerUserId(readerId)
+                    .convType(Conversation.TYPE_PRIVATE)
+                    .peerId(peerUserId)
+                    .lastReadMessageId(watermark)
+                    .build());
+            try {
+                String payload = objectMapper.writeValueAsString(ChatMessage.builder()
+                        .type("read_receipt")
+                        .fromUserId(readerId)
+                        .toUserId(peerUserId)
+                        .lastReadMessageId(String.valueOf(watermark))
+                        .build());
+                receipts.add(RoutedMessage.builder()
+                        .userIds(List.of(peerUserId))
+                        .payload(payload)
+                        .build());
+            } catch (Exception e) {
+                System.err.println("序列化已读回执失败：" + e.getMessage());
+            }
+        });
+
+        try {
+            for (int i = 0; i < conversations.size(); i += BATCH_SIZE) {
+                conversationMapper.batchUpdateReadWatermark(
+                        conversations.subList(i, Math.min(i + BATCH_SIZE, conversations.size())));
+            }
+            flushedCount.addAndGet(conversations.size());
+        } catch (Exception e) {
+            System.err.println("写入已读水位失败（" + conversations.size() + " 条）: " + e.getMessage());
+        }
+        try {
+            unreadCounterManager.clearPrivate(conversations);
+        } catch (Exception e) {
+            System.err.println("清除私聊未读数失败：" + e.getMessage());
+        }
+        receiptCount.addAndGet(websocketSessionManager.deliverAll(receipts));
+        lastFlushMillis = System.currentTimeMillis() - start;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * 已读回执统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", pendingWatermarks.size());
+        stats.put("received", receivedCount.get());
+        stats.put("coalesced", coalescedCount.get());
+        stats.put("flushed", flushedCount.get());
+        stats.put("receipts", receiptCount.get());
+        stats.put("lastFlushMillis", lastFlushMillis);
+        return stats;
+    }
+}
@@ -0,0 +1,342 @@
+package com.zyzyz.im.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.mapper.MessageMapper;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * 热门会话最近消息缓存
+ * 每个会话在 Redis List 中保留最近 N 条消息（由写缓冲落库后追加），
+ * 本节点再用 LRU 近端缓存保存最常打开的会话，重复打开热门会话只需一次内存查找
+ */
+@Component
+public class RecentMessageCache {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // 每个会话缓存的最近消息条数（不小于历史分页的最大页大小）
+    @Value("${message.recentCache.size:200}")
+    private int size;
+
+    // 本地近端缓存最多保留的会话数（LRU 淘汰）
+    @Value("${message.recentCache.localMaxConversations:1000}")
+    private int localMaxConversations;
+
+    // Redis 中会话缓存的过期时间（读取时续期，冷会话自然淘汰）
+    @Value("${message.recentCache.ttlMs:3600000}")
+    private long ttlMs;
+
+    private static final String LIST_KEY_PREFIX = "im:recent:";
+    private static final String VERSION_KEY_PREFIX = "im:recent:ver:";
+
+    // 会话有新消息时通知所有节点清除近端缓存（消息内容为换行分隔的会话 key）
+    private static final String INVALIDATE_CHANNEL = "im:recent:invalidate";
+
+    // 追加新消息：版本号 +1；列表已存在才追加（不存在的等读取时整体加载），并裁剪到上限
+    private static final byte[] APPEND_SCRIPT = (
+            "redis.call('incr', KEYS[2]) "
+                    + "redis.call('pexpire', KEYS[2], ARGV[2]) "
+                    + "if redis.call('exists', KEYS[1]) == 1 then "
+                    + "for i = 3, #ARGV do redis.call('lpush', KEYS[1], ARGV[i]) end "
+                    + "redis.call('ltrim', KEYS[1], 0, tonumber(ARGV[1]) - 1) end "
+                    + "return 0")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // 从数据库加载后回填：期间没有新消息（版本号未变）才写入，避免覆盖掉刚追加的消息
+    private static final DefaultRedisScript<Long> FILL_SCRIPT = new DefaultRedisScript<>(
+            "local version = redis.call('get', KEYS[2]) or '0' "
+                    + "if version ~= ARGV[1] or redis.call('exists', KEYS[1]) == 1 then return 0 end "
+                    + "for i = 3, #ARGV do redis.call('rpush', KEYS[1], ARGV[i]) end "
+                    + "redis.call('pexpire', KEYS[1], ARGV[2]) return 1",
+            Long.class);
+
+    // 近端缓存：会话 key -> 最近消息（按时间正序，不可变）
+    private Map<String, List<Message>> nearCache;
+
+    // 失效次数，读取期间发生失效则不写入近端缓存
+    private final AtomicLong invalidationVersion = new AtomicLong();
+
+    // 统计
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong appendedMessages = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        nearCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Message>> eldest) {
+                return size() > localMaxConversations;
+            }
+        });
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            invalidationVersion.incrementAndGet();
+            for (String conversationKey : body.split("\n")) {
+                if (nearCache.remove(conversationKey) != null) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 私聊会话 key（与方向无关）
+     */
+    public static String privateKey(String userId1, String userId2) {
+        return userId1.compareTo(userId2) <= 0
+                ? "p:" + userId1 + ":" + userId2
+                : "p:" + userId2 + ":" + userId1;
+    }
+
+    public static String groupKey(String groupId) {
+        return "g:" + groupId;
+    }
+
+    /**
+     * 最近一页私聊消息（按时间正序），页大小超过缓存条数时返回 null，由调用方查库
+     */
+    public List<Message> getPrivatePage(String userId1, String userId2, int limit) {
+        if (limit > size) {
+            return null;
+        }
+        String conversationKey = privateKey(userId1, userId2);
+        return tail(get(conversationKey,
+                () -> messageMapper.selectByUsersPage(userId1, userId2, null, null, size)), limit);
+    }
+
+    /**
+     * 最近一页群聊消息（按时间正序），页大小超过缓存条数时返回 null，由调用方查库
+     */
+    public List<Message> getGroupPage(String groupId, int limit) {
+        if (limit > size) {
+            return null;
+        }
+        return tail(get(groupKey(groupId),
+                () -> messageMapper.selectByGroupIdPage(groupId, null, null, size)), limit);
+    }
+
+    private interface Loader {
+        // 按 id 倒序返回最近 size 条
+        List<Message> load();
+    }
+
+    private List<Message> get(String conversationKey, Loader loader) {
+        List<Message> cached = nearCache.get(conversationKey);
+        if (cached != null) {
+            localHits.incrementAndGet();
+            return cached;
+        }
+
+        long version = invalidationVersion.get();
+        String listKey = LIST_KEY_PREFIX + conversationKey;
+        try {
+            List<String> values = stringRedisTemplate.opsForList().range(listKey, 0, size - 1);
+            if (values != null && !values.isEmpty()) {
+                redisHits.incrementAndGet();
+                stringRedisTemplate.expire(listKey, ttlMs, TimeUnit.MILLISECONDS);
+                List<Message> messages = new ArrayList<>(values.size());
+                for (int i = values.size() - 1; i >= 0; i--) {
+                    messages.add(objectMapper.readValue(values.get(i), Message.class));
+                }
+                return putLocal(conversationKey, messages, version);
+            }
+        } catch (Exception e) {
+            System.err.println("读取最近消息缓存失败：" + e.getMessage());
+        }
+
+        // Redis 未命中：查库后回填
+        misses.incrementAndGet();
+        String versionKey = VERSION_KEY_PREFIX + conversationKey;
+        String redisVersion = null;
+        try {
+            redisVersion = stringRedisTemplate.opsForValue().get(versionKey);
+        } catch (Exception e) {
+            System.err.println("读取最近消息版本失败：" + e.getMessage());
+        }
+        List<Message> newestFirst = loader.load();
+        List<Message> messages = new ArrayList<>(newestFirst);
+        Collections.reverse(messages);
+        if (!newestFirst.isEmpty()) {
+            try {
+                List<String> args = new ArrayList<>(newestFirst.size() + 2);
+                args.add(redisVersion != null ? redisVersion : "0");
+                args.add(String.valueOf(ttlMs));
+                for (Message message : newestFirst) {
+                    args.add(objectMapper.writeValueAsString(message));
+                }
+                Long filled = stringRedisTemplate.execute(FILL_SCRIPT, List.of(listKey, versionKey), args.toArray());
+                if (filled != null && filled > 0) {
+                    return putLocal(conversationKey, messages, version);
+                }
+            } catch (Exception e) {
+                System.err.println("回填最近消息缓存失败：" + e.getMessage());
+            }
+        }
+        return messages;
+    }
+
+    private List<Message> putLocal(String conversationKey, List<Message> messages, long version) {
+        List<Message> snapshot = List.copyOf(messages);
+        if (invalidationVersion.get() == version) {
+            nearCache.put(conversationKey, snapshot);
+        }
+        return snapshot;
+    }
+
+    private List<Message> tail(List<Message> messages, int limit) {
+        if (messages.size() <= limit) {
+            return new ArrayList<>(messages);
+        }
+        return new ArrayList<>(messages.subList(messages.size() - limit, messages.size()));
+    }
+
+    /**
+     * 消息落库后追加到对应会话的缓存（pipeline 一次往返），并通知各节点清除近端缓存
+     */
+    public void onMessagesPersisted(List<Message> messages) {
+        // 按会话分组，保持 id 正序，LPUSH 后最新的在表头
+        Map<String, List<String>> byConversation = new LinkedHashMap<>();
+        try {
+            List<Message> sorted = new ArrayList<>(messages);
+            sorted.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+            for (Message message : sorted) {
+                if (message.getMessageType() != null && message.getMessageType() == 3) {
+                    continue;  // AI 对话有单独的历史接口
+                }
+                String conversationKey;
+                if (message.getGroupId() != null) {
+                    conversationKey = groupKey(message.getGroupId());
+                } else if (message.getToUserId() != null) {
+                    conversationKey = privateKey(message.getFromUserId(), message.getToUserId());
+                } else {
+                    continue;
+                }
+                byConversation.computeIfAbsent(conversationKey, k -> new ArrayList<>())
+                        .add(objectMapper.writeValueAsString(message));
+            }
+        } catch (Exception e) {
+            System.err.println("序列化最近消息失败：" + e.getMessage());
+            return;
+        }
+        if (byConversation.isEmpty()) {
+            return;
+        }
+
+        byte[] sizeArg = String.valueOf(size).getBytes(StandardCharsets.UTF_8);
+        byte[] ttlArg = String.valueOf(ttlMs * 2).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byConversation.forEach((conversationKey, values) -> {
+                byte[][] keysAndArgs = new byte[values.size() + 4][];
+                keysAndArgs[0] = (LIST_KEY_PREFIX + conversationKey).getBytes(StandardCharsets.UTF_8);
+                keysAndArgs[1] = (VERSION_KEY_PREFIX + conversationKey).getBytes(StandardCharsets.UTF_8);
+                keysAndArgs[2] = sizeArg;
+                keysAndArgs[3] = ttlArg;
+                for (int i = 0; i < values.size(); i++) {
+                    keysAndArgs[i + 4] = values.get(i).getBytes(StandardCharsets.UTF_8);
+                }
+                connection.scriptingCommands().eval(APPEND_SCRIPT, ReturnType.INTEGER, 2, keysAndArgs);
+            });
+            return null;
+        });
+        appendedMessages.addAndGet(messages.size());
+
+        // 本节点立即清除，其他节点经频道清除
+        invalidationVersion.incrementAndGet();
+        byConversation.keySet().forEach(nearCache::remove);
+        stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, String.join("\n", byConversation.keySet()));
+    }
+
+    /**
+     * 补写的旧消息（落盘重放）不能追加到表头，直接删除相关会话的缓存列表，下次读取时从数据库整体加载
+     */
+    public void onMessagesReplayed(List<Message> messages) {
+        Set<String> conversationKeys = new LinkedHashSet<>();
+        for (Message message : messages) {
+            if (message.getMessageType() != null && message.getMessageType() == 3) {
+                continue;
+            }
+            if (message.getGroupId() != null) {
+                conversationKeys.add(groupKey(message.getGroupId()));
+            } else if (message.getToUserId() != null) {
+                conversationKeys.add(privateKey(message.getFromUserId(), message.getToUserId()));
+            }
+        }
+        if (conversationKeys.isEmpty()) {
+            return;
+        }
+
+        // 版本号 +1，使删除前开始的整体加载不会回填旧内容
+        long versionTtl = ttlMs * 2;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String conversationKey : conversationKeys) {
+                byte[] versionKey = (VERSION_KEY_PREFIX + conversationKey).getBytes(StandardCharsets.UTF_8);
+                connection.keyCommands().del((LIST_KEY_PREFIX + conversationKey).getBytes(StandardCharsets.UTF_8));
+                connection.stringCommands().incr(versionKey);
+                connection.keyCommands().pExpire(versionKey, versionTtl);
+            }
+            return null;
+        });
+
+        invalidationVersion.incrementAndGet();
+        conversationKeys.forEach(nearCache::remove);
+        stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, String.join("\n", conversationKeys));
+    }
+
+    /**
+     * 最近消息缓存统计
+     */
+    public Map<String, Object> getStats() {
+        long local = localHits.get();
+        long redis = redisHits.get();
+        long miss = misses.get();
+        long lookups = local + redis + miss;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("localConversations", nearCache.size());
+        stats.put("localMaxConversations", localMaxConversations);
+        stats.put("localHits", local);
+        stats.put("redisHits", redis);
+        stats.put("misses", miss);
+        stats.put("hitRatio", lookups > 0 ? (double) (local + redis) / lookups : 0.0);
+        stats.put("localHitRatio", lookups > 0 ? (double) local / lookups : 0.0);
+        stats.put("appendedMessages", appendedMessages.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+}
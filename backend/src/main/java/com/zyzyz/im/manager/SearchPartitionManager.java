@@ -0,0 +1,343 @@
+package com.zyzyz.im.manager;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.index.AliasAction;
+import org.springframework.data.elasticsearch.core.index.AliasActionParameters;
+import org.springframework.data.elasticsearch.core.index.AliasActions;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.zyzyz.im.document.MessageDocument;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * 消息索引按月分区
+ * 物理索引 im_messages_g{代}_{yyyyMM}，读别名 im_messages 覆盖当前代的全部分区；
+ * 写入按 createdAt 路由到所在月份的分区（不存在时创建），带时间范围的搜索只查覆盖到的分区，
+ * 过期数据直接删除整个分区。全量重建写入下一代分区，完成后一次别名操作切换
+ */
+@Component
+@ConditionalOnProperty(name = "search.engine", havingValue = "elasticsearch", matchIfMissing = true)
+public class SearchPartitionManager {
+
+    @Autowired
+    private ElasticsearchOperations elasticsearchOperations;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 保留最近几个月的分区（0 表示不清理）
+    @Value("${search.partition.retentionMonths:0}")
+    private int retentionMonths;
+
+    // 当前代和分区列表的本地缓存时间（多节点切换代后最多延迟这么久生效）
+    @Value("${search.partition.refreshMs:5000}")
+    private long refreshMs;
+
+    // 当前代（0 表示尚未分区：旧版单索引，全量重建后迁移为分区）
+    private static final String GENERATION_KEY = "im:search:generation";
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private String alias;
+
+    private volatile long generation = -1;
+    private volatile long generationLoadedAt;
+
+    // 已确认存在的分区
+    private final Set<String> knownPartitions = ConcurrentHashMap.newKeySet();
+
+    // 当前代分区：月份 -> 索引名
+    private volatile TreeMap<YearMonth, String> partitions = new TreeMap<>();
+    private volatile long partitionsLoadedAt;
+
+    @PostConstruct
+    public void init() {
+        alias = elasticsearchOperations.getIndexCoordinatesFor(MessageDocument.class).getIndexName();
+    }
+
+    /**
+     * 启动时确定分区状态：全新环境直接启用分区；已有旧版单索引时保持原样，等待全量重建迁移
+     */
+    public void initialize() {
+        String saved = stringRedisTemplate.opsForValue().get(GENERATION_KEY);
+        if (saved == null) {
+            if (elasticsearchOperations.indexOps(IndexCoordinates.of(alias)).exists()) {
+                stringRedisTemplate.opsForValue().setIfAbsent(GENERATION_KEY, "0");
+                System.out.println("⚠️ 消息索引尚未按月分区，执行 POST /admin/reindex?full=true 迁移");
+            } else {
+                stringRedisTemplate.opsForValue().setIfAbsent(GENERATION_KEY, "1");
+            }
+        }
+        generationLoadedAt = 0;
+        long current = currentGeneration();
+        if (current > 0) {
+            // 保证读别名存在（没有任何分区时搜索也不会报索引不存在）
+            ensurePartition(current, YearMonth.now(), true);
+        }
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public long getRefreshMs() {
+        return refreshMs;
+    }
+
+    /**
+     * 当前代（本地缓存，定期从 Redis 刷新）
+     */
+    public long currentGeneration() {
+        long now = System.currentTimeMillis();
+        if (generation < 0 || now - generationLoadedAt > refreshMs) {
+            try {
+                String saved = stringRedisTemplate.opsForValue().get(GENERATION_KEY);
+                long loaded = saved != null ? Long.parseLong(saved) : 0;
+                if (loaded != generation) {
+                    partitionsLoadedAt = 0;
+                }
+                generation = loaded;
+            } catch (Exception e) {
+                System.err.println("读取消息索引代失败：" + e.getMessage());
+                if (generation < 0) {
+                    generation = 0;
+                }
+            }
+            generationLoadedAt = now;
+        }
+        return generation;
+    }
+
+    public boolean isPartitioned() {
+        return currentGeneration() > 0;
+    }
+
+    public String partitionName(long gen, YearMonth month) {
+        return alias + "_g" + gen + "_" + month.format(MONTH_FORMAT);
+    }
+
+    /**
+     * 文档写入的分区（按 createdAt 所在月份，不存在时创建）
+     *
+     * @param attach 新建分区是否加入读别名（全量重建期间写入下一代，切换前不对搜索可见）
+     */
+    public String writeIndex(long gen, String createdAt, boolean attach) {
+        YearMonth month = monthOf(createdAt);
+        ensurePartition(gen, month, attach);
+        return partitionName(gen, month);
+    }
+
+    private void ensurePartition(long gen, YearMonth month, boolean attach) {
+        String name = partitionName(gen, month);
+        if (knownPartitions.contains(name)) {
+            return;
+        }
+        synchronized (this) {
+            if (knownPartitions.contains(name)) {
+                return;
+            }
+            IndexOperations ops = elasticsearchOperations.indexOps(IndexCoordinates.of(name));
+            if (!ops.exists()) {
+                IndexOperations entityOps = elasticsearchOperations.indexOps(MessageDocument.class);
+                try {
+                    ops.create(entityOps.createSettings(), entityOps.createMapping());
+                    System.out.println("创建消息索引分区：" + name);
+                } catch (Exception e) {
+                    // 其他节点同时创建
+                    if (!ops.exists()) {
+                        throw e;
+                    }
+                }
+            }
+            if (attach) {
+                ops.alias(new AliasActions(new AliasAction.Add(AliasActionParameters.builder()
+                        .withIndices(name)
+                        .withAliases(alias)
+                        .build())));
+                partitionsLoadedAt = 0;
+            }
+            knownPartitions.add(name);
+        }
+    }
+
+    /**
+     * 搜索的目标索引：未指定时间范围时使用读别名，否则只查覆盖到的月份分区
+     *
+     * @return 范围内没有任何分区时返回 null
+     */
+    public IndexCoordinates searchIndices(LocalDateTime from, LocalDateTime to) {
+        if ((from == null && to == null) || !isPartitioned()) {
+            return IndexCoordinates.of(alias);
+        }
+        TreeMap<YearMonth, String> current = listPartitions();
+        if (current.isEmpty()) {
+            return null;
+        }
+        YearMonth fromMonth = from != null ? YearMonth.from(from) : current.firstKey();
+        YearMonth toMonth = to != null ? YearMonth.from(to) : current.lastKey();
+        if (fromMonth.isAfter(toMonth)) {
+            return null;
+        }
+        List<String> indices = new ArrayList<>(current.subMap(fromMonth, true, toMonth, true).values());
+        return indices.isEmpty() ? null : IndexCoordinates.of(indices.toArray(new String[0]));
+    }
+
+    /**
+     * 当前代已加入读别名的分区（本地缓存）
+     */
+    private TreeMap<YearMonth, String> listPartitions() {
+        long now = System.currentTimeMillis();
+        if (now - partitionsLoadedAt > refreshMs) {
+            TreeMap<YearMonth, String> loaded = new TreeMap<>();
+            String prefix = alias + "_g" + currentGeneration() + "_";
+            for (String index : aliasedIndices()) {
+                if (index.startsWith(prefix)) {
+                    loaded.put(YearMonth.parse(index.substring(prefix.length()), MONTH_FORMAT), index);
+                }
+            }
+            partitions = loaded;
+            partitionsLoadedAt = now;
+        }
+        return partitions;
+    }
+
+    private Set<String> aliasedIndices() {
+        try {
+            return new HashSet<>(elasticsearchOperations.indexOps(IndexCoordinates.of(alias)).getAliases(alias).keySet());
+        } catch (Exception e) {
+            // 别名不存在（旧版同名物理索引或尚未创建）
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * 某一代已创建的全部分区
+     */
+    private Set<String> generationIndices(long gen) {
+        try {
+            return new HashSet<>(elasticsearchOperations.indexOps(IndexCoordinates.of(alias))
+                    .getAliasesForIndex(alias + "_g" + gen + "_*").keySet());
+        } catch (Exception e) {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * 全量重建完成后切换到新一代：一次别名请求挂上新分区并删除旧索引（含旧版单索引），搜索不中断
+     */
+    public void switchGeneration(long newGeneration) {
+        Set<String> newIndices = generationIndices(newGeneration);
+        if (newIndices.isEmpty()) {
+            ensurePartition(newGeneration, YearMonth.now(), false);
+            newIndices.add(partitionName(newGeneration, YearMonth.now()));
+        }
+        IndexOperations aliasOps = elasticsearchOperations.indexOps(IndexCoordinates.of(alias));
+        Set<String> oldIndices = aliasedIndices();
+        if (oldIndices.isEmpty() && aliasOps.exists()) {
+            oldIndices.add(alias);
+        }
+        oldIndices.removeAll(newIndices);
+
+        List<AliasAction> actions = new ArrayList<>();
+        actions.add(new AliasAction.Add(AliasActionParameters.builder()
+                .withIndices(newIndices.toArray(new String[0]))
+                .withAliases(alias)
+                .build()));
+        for (String oldIndex : oldIndices) {
+            actions.add(new AliasAction.RemoveIndex(AliasActionParameters.builder()
+                    .withIndices(oldIndex)
+                    .build()));
+        }
+        aliasOps.alias(new AliasActions(actions.toArray(new AliasAction[0])));
+
+        stringRedisTemplate.opsForValue().set(GENERATION_KEY, String.valueOf(newGeneration));
+        generation = newGeneration;
+        generationLoadedAt = System.currentTimeMillis();
+        partitionsLoadedAt = 0;
+        knownPartitions.removeIf(oldIndices::contains);
+        System.out.println("✅ 别名 " + alias + " 已切换到第 " + newGeneration + " 代分区 " + newIndices
+                + "，删除旧索引 " + oldIndices);
+    }
+
+    /**
+     * 保留期之前的消息不再写入索引（重建、抽检补写时跳过）
+     *
+     * @return 不清理时返回 null
+     */
+    public LocalDateTime retentionCutoff() {
+        if (retentionMonths <= 0) {
+            return null;
+        }
+        return YearMonth.now().minusMonths(retentionMonths - 1L).atDay(1).atStartOfDay();
+    }
+
+    public boolean isRetained(LocalDateTime createdAt) {
+        LocalDateTime cutoff = retentionCutoff();
+        return cutoff == null || createdAt == null || !createdAt.isBefore(cutoff);
+    }
+
+    /**
+     * 删除保留期之前的分区（整索引删除，代替 delete-by-query）
+     */
+    @Scheduled(fixedDelayString = "${search.partition.retentionCheckMs:21600000}")
+    public void dropExpiredPartitions() {
+        LocalDateTime cutoff = retentionCutoff();
+        if (cutoff == null || !isPartitioned()) {
+            return;
+        }
+        YearMonth cutoffMonth = YearMonth.from(cutoff);
+        try {
+            partitionsLoadedAt = 0;
+            for (Map.Entry<YearMonth, String> entry : listPartitions().headMap(cutoffMonth, false).entrySet()) {
+                elasticsearchOperations.indexOps(IndexCoordinates.of(entry.getValue())).delete();
+                knownPartitions.remove(entry.getValue());
+                System.out.println("🗑️ 删除过期消息索引分区：" + entry.getValue());
+            }
+            partitionsLoadedAt = 0;
+        } catch (Exception e) {
+            System.err.println("清理过期索引分区失败：" + e.getMessage());
+        }
+    }
+
+    private YearMonth monthOf(String createdAt) {
+        if (createdAt == null || createdAt.length() < 7) {
+            return YearMonth.now();
+        }
+        return YearMonth.parse(createdAt.substring(0, 7));
+    }
+
+    /**
+     * 分区统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long current = currentGeneration();
+        stats.put("alias", alias);
+        stats.put("generation", current);
+        stats.put("partitioned", current > 0);
+        stats.put("partitions", current > 0 ? new ArrayList<>(listPartitions().values()) : List.of());
+        stats.put("retentionMonths", retentionMonths);
+        return stats;
+    }
+}
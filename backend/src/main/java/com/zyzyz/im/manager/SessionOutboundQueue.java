@@ -0,0 +1,106 @@
+package com.zyzyz.im.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * 单个 WebSocket 连接的出站队列
+ * 每个连接一个有界队列 + 一个独立的发送线程（虚拟线程），
+ * 接收线程只负责入队，不会被其他用户的慢连接阻塞
+ */
+public class SessionOutboundQueue {
+
+    private final String userId;
+    private final WebSocketSession session;
+    private final BlockingQueue<TextMessage> queue;
+    private final WebsocketSessionManager owner;
+    private final Thread worker;
+
+    // 当前这次发送的开始时间（0 表示空闲），用于检测发送超时
+    private volatile long sendStartedAt = 0;
+    private volatile boolean closed = false;
+
+    SessionOutboundQueue(String userId, WebSocketSession session, int bufferSize, WebsocketSessionManager owner) {
+        this.userId = userId;
+        this.session = session;
+        this.queue = new ArrayBlockingQueue<>(bufferSize);
+        this.owner = owner;
+        this.worker = Thread.ofVirtual()
+                .name("ws-out-" + userId)
+                .start(this::drain);
+    }
+
+    /**
+     * 入队（非阻塞），队列已满返回 false
+     */
+    boolean offer(TextMessage message) {
+        if (closed) {
+            return false;
+        }
+        return queue.offer(message);
+    }
+
+    /**
+     * 发送线程：串行取出消息并发送，保证同一连接不会并发写
+     */
+    private void drain() {
+        while (!closed) {
+            TextMessage message;
+            try {
+                message = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (message == null) {
+                continue;
+            }
+            if (!session.isOpen()) {
+                break;
+            }
+            sendStartedAt = System.currentTimeMillis();
+            try {
+                session.sendMessage(message);
+                owner.onSent();
+            } catch (Exception e) {
+                System.err.println("发送消息失败：" + userId + ", " + e.getMessage());
+                owner.onSendFailed();
+            } finally {
+                sendStartedAt = 0;
+            }
+        }
+        queue.clear();
+    }
+
+    /**
+     * 当前发送已阻塞的时长（毫秒），空闲时返回 0
+     */
+    long blockedMillis() {
+        long startedAt = sendStartedAt;
+        return startedAt == 0 ? 0 : System.currentTimeMillis() - startedAt;
+    }
+
+    /**
+     * 停止发送线程，丢弃未发送的消息（不关闭底层连接）
+     */
+    void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    WebSocketSession getSession() {
+        return session;
+    }
+}
@@ -0,0 +1,224 @@
+package com.zyzyz.im.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import com.zyzyz.im.entity.Conversation;
+
+/**
+ * 未读数管理（Redis）
+ * 私聊：每个用户一个 Hash（对方 userId -> 未读数），投递时 +1，另按会话记下未读消息 id；
+ * 已读时只去掉水位及以下的 id，未读数按剩余 id 重算，水位之后到达的消息仍计未读；
+ * 群聊：每个群一个消息序号，每个成员记录已读到的序号，未读数 = 群序号 - 已读序号，
+ * 群消息只需一次 INCR，不需要给每个成员计数
+ */
+@Component
+public class UnreadCounterManager {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 私聊未读数：im:unread:{userId} -> { peerUserId: count }
+    private static final String PRIVATE_UNREAD_PREFIX = "im:unread:";
+
+    // 私聊未读消息 id：im:unread:ids:{userId}:{peerUserId}，ZSET 分值均为 0，成员为补零到 20 位的 id（按字典序即按 id 排序）
+    private static final String PRIVATE_UNREAD_IDS_PREFIX = "im:unread:ids:";
+
+    // 每个会话最多保留的未读 id 数（只用于已读时重算水位之后的未读数，不影响展示的计数）
+    private static final int PRIVATE_UNREAD_IDS_LIMIT = 1000;
+
+    private static final long PRIVATE_UNREAD_IDS_EXPIRE_SECONDS = 7 * 24 * 3600;
+
+    // 私聊消息投递：记下消息 id（超出上限删最旧的），未读数 +1
+    private static final DefaultRedisScript<Long> PRIVATE_MESSAGE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('zadd', KEYS[2], 0, ARGV[2]) "
+                    + "redis.call('zremrangebyrank', KEYS[2], 0, -tonumber(ARGV[3]) - 1) "
+                    + "redis.call('expire', KEYS[2], ARGV[4]) "
+                    + "return redis.call('hincrby', KEYS[1], ARGV[1], 1)",
+            Long.class);
+
+    // 私聊已读到水位：删除水位及以下的 id，剩余为 0 时删除未读数，否则未读数设为剩余 id 数
+    private static final DefaultRedisScript<Long> PRIVATE_READ_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('zremrangebylex', KEYS[2], '-', '[' .. ARGV[2]) "
+                    + "local n = redis.call('zcard', KEYS[2]) "
+                    + "if n == 0 then redis.call('hdel', KEYS[1], ARGV[1]) "
+                    + "else redis.call('hset', KEYS[1], ARGV[1], n) end "
+                    + "return n",
+            Long.class);
+
+    // 群消息序号：{ groupId: seq }
+    private static final String GROUP_SEQ_KEY = "im:group:seq";
+
+    // 成员已读序号：im:group:read:{userId} -> { groupId: seq }
+    private static final String GROUP_READ_PREFIX = "im:group:read:";
+
+    // 群序号 +1，发送者自己的已读序号同步前移
+    private static final DefaultRedisScript<Long> GROUP_MESSAGE_SCRIPT = new DefaultRedisScript<>(
+            "local seq = redis.call('hincrby', KEYS[1], ARGV[1], 1) "
+                    + "redis.call('hset', KEYS[2], ARGV[1], seq) return seq",
+            Long.class);
+
+    // 把若干成员的已读序号设为当前群序号（KEYS[1] 为序号表，其余为成员已读表）
+    private static final DefaultRedisScript<Long> MARK_GROUP_READ_SCRIPT = new DefaultRedisScript<>(
+            "local seq = redis.call('hget', KEYS[1], ARGV[1]) or '0' "
+                    + "for i = 2, #KEYS do redis.call('hset', KEYS[i], ARGV[1], seq) end "
+                    + "return tonumber(seq)",
+            Long.class);
+
+    /**
+     * 私聊消息投递：接收者对发送者的未读数 +1
+     */
+    public void onPrivateMessage(String fromUserId, String toUserId, Long messageId) {
+        try {
+            if (messageId == null) {
+                stringRedisTemplate.opsForHash().increment(PRIVATE_UNREAD_PREFIX + toUserId, fromUserId, 1);
+                return;
+            }
+            stringRedisTemplate.execute(PRIVATE_MESSAGE_SCRIPT,
+                    List.of(PRIVATE_UNREAD_PREFIX + toUserId, privateIdsKey(toUserId, fromUserId)),
+                    fromUserId, padId(messageId), String.valueOf(PRIVATE_UNREAD_IDS_LIMIT),
+                    String.valueOf(PRIVATE_UNREAD_IDS_EXPIRE_SECONDS));
+        } catch (Exception e) {
+            System.err.println("更新私聊未读数失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 群消息投递：群序号 +1（与群人数无关）
+     */
+    public void onGroupMessage(String groupId, String fromUserId) {
+        try {
+            stringRedisTemplate.execute(GROUP_MESSAGE_SCRIPT,
+                    List.of(GROUP_SEQ_KEY, GROUP_READ_PREFIX + fromUserId), groupId);
+        } catch (Exception e) {
+            System.err.println("更新群消息序号失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 私聊已读：清零与对方的未读数
+     */
+    public void clearPrivate(String userId, String peerUserId) {
+        stringRedisTemplate.delete(privateIdsKey(userId, peerUserId));
+        stringRedisTemplate.opsForHash().delete(PRIVATE_UNREAD_PREFIX + userId, peerUserId);
+    }
+
+    /**
+     * 批量按已读水位更新私聊未读数（pipeline，一次往返）：
+     * 只清掉水位及以下的消息，水位之后才到达的消息仍计为未读
+     */
+    public void clearPrivate(List<Conversation> conversations) {
+        if (conversations.isEmpty()) {
+            return;
+        }
+        byte[] script = PRIVATE_READ_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Conversation conversation : conversations) {
+                connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2,
+                        (PRIVATE_UNREAD_PREFIX + conversation.getOwnerUserId()).getBytes(StandardCharsets.UTF_8),
+                        privateIdsKey(conversation.getOwnerUserId(), conversation.getPeerId())
+                                .getBytes(StandardCharsets.UTF_8),
+                        conversation.getPeerId().getBytes(StandardCharsets.UTF_8),
+                        padId(conversation.getLastReadMessageId()).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    private String privateIdsKey(String userId, String peerUserId) {
+        return PRIVATE_UNREAD_IDS_PREFIX + userId + ":" + peerUserId;
+    }
+
+    // 补零到 20 位，使字典序与数值序一致（分值为 double，放不下雪花 ID 的精度）
+    private String padId(long messageId) {
+        return String.format("%020d", messageId);
+    }
+
+    /**
+     * 群聊已读：已读序号前移到当前群序号
+     */
+    public void markGroupRead(String userId, String groupId) {
+        markGroupRead(List.of(userId), groupId);
+    }
+
+    /**
+     * 新成员入群：已读序号从当前位置开始，入群前的消息不计未读
+     */
+    public void onGroupJoined(String groupId, Collection<String> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+        try {
+            markGroupRead(userIds, groupId);
+        } catch (Exception e) {
+            System.err.println("初始化群已读序号失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 退群：删除已读序号
+     */
+    public void onGroupLeft(String groupId, String userId) {
+        try {
+            stringRedisTemplate.opsForHash().delete(GROUP_READ_PREFIX + userId, groupId);
+        } catch (Exception e) {
+            System.err.println("删除群已读序号失败：" + e.getMessage());
+        }
+    }
+
+    private void markGroupRead(Collection<String> userIds, String groupId) {
+        List<String> keys = new ArrayList<>(userIds.size() + 1);
+        keys.add(GROUP_SEQ_KEY);
+        for (String userId : userIds) {
+            keys.add(GROUP_READ_PREFIX + userId);
+        }
+        stringRedisTemplate.execute(MARK_GROUP_READ_SCRIPT, keys, groupId);
+    }
+
+    /**
+     * 私聊未读数（一次 HGETALL）
+     */
+    public Map<String, Long> getPrivateCounts(String userId) {
+        Map<String, Long> counts = new HashMap<>();
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(PRIVATE_UNREAD_PREFIX + userId);
+        entries.forEach((peerId, count) -> {
+            long value = Long.parseLong(count.toString());
+            if (value > 0) {
+                counts.put(peerId.toString(), value);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * 群聊未读数（群序号、已读序号各一次 HMGET）
+     */
+    public Map<String, Long> getGroupCounts(String userId, List<String> groupIds) {
+        Map<String, Long> counts = new HashMap<>();
+        if (groupIds == null || groupIds.isEmpty()) {
+            return counts;
+        }
+        List<Object> fields = new ArrayList<>(groupIds);
+        List<Object> seqs = stringRedisTemplate.opsForHash().multiGet(GROUP_SEQ_KEY, fields);
+        List<Object> reads = stringRedisTemplate.opsForHash().multiGet(GROUP_READ_PREFIX + userId, fields);
+        for (int i = 0; i < groupIds.size(); i++) {
+            long seq = seqs.get(i) != null ? Long.parseLong(seqs.get(i).toString()) : 0;
+            long read = reads.get(i) != null ? Long.parseLong(reads.get(i).toString()) : 0;
+            if (seq > read) {
+                counts.put(groupIds.get(i), seq - read);
+            }
+        }
+        return counts;
+    }
+}
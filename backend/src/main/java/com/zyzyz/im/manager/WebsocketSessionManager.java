@@ -1,46 +1,503 @@
 package com.zyzyz.im.manager;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.stream.Collectors;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.dto.RoutedMessage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 @Component
 public class WebsocketSessionManager {
     private final ConcurrentHashMap<String, WebSocketSession> onlineUsers = new ConcurrentHashMap<>();
 
+    // 每个连接的出站队列
+    private final ConcurrentHashMap<String, SessionOutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+
     @Autowired
     private RedisTemplate<String, Object> redisTemplate;
 
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // 当前节点ID（多副本部署时每个节点唯一，留空则自动生成）
+    @Value("${ws.nodeId:}")
+    private String nodeId;
+
+    // 节点心跳过期时间：超过该时间未续期的节点视为已宕机，指向它的路由按离线处理并清除
+    @Value("${ws.node.heartbeatTtlMs:30000}")
+    private long heartbeatTtlMs;
+
+    @Value("${ws.outbound.bufferSize:256}")
+    private int bufferSize;
+
+    @Value("${ws.outbound.sendTimeLimitMs:10000}")
+    private long sendTimeLimitMs;
+
     private static final String ONLINE_USERS_KEY = "im:online:users";
 
+    // 用户 -> 节点 路由表（Hash：userId -> nodeId）
+    private static final String ROUTE_KEY = "im:route:users";
+
+    // 每个节点的投递频道前缀
+    private static final String NODE_CHANNEL_PREFIX = "im:node:";
+
+    // 节点心跳 key 前缀（带过期时间，节点存活期间定时续期）
+    private static final String NODE_ALIVE_KEY_PREFIX = "im:node:alive:";
+
+    // 只删除属于当前节点的路由，避免用户已在其他节点重连时误删
+    private static final DefaultRedisScript<Long> REMOVE_ROUTE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2] then "
+                    + "return redis.call('hdel', KEYS[1], ARGV[1]) end return 0",
+            Long.class);
+
+    // 出站统计
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong overflowEvictions = new AtomicLong();
+    private final AtomicLong timeoutEvictions = new AtomicLong();
+
+    // 跨节点统计
+    private final AtomicLong publishedBatches = new AtomicLong();
+    private final AtomicLong receivedBatches = new AtomicLong();
+    private final AtomicLong deadRoutesRemoved = new AtomicLong();
+
+    // 已确认存活的远端节点 -> 确认有效期截止时间，避免每次投递都查心跳
+    private final ConcurrentHashMap<String, Long> aliveNodes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (nodeId == null || nodeId.isEmpty()) {
+            nodeId = "node-" + UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        }
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onNodeMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(NODE_CHANNEL_PREFIX + nodeId));
+        heartbeat();
+        System.out.println("WebSocket 节点已启动：" + nodeId);
+    }
+
+    /**
+     * 续期本节点心跳（间隔需明显小于 ws.node.heartbeatTtlMs）
+     */
+    @Scheduled(fixedDelayString = "${ws.node.heartbeatIntervalMs:10000}")
+    public void heartbeat() {
+        try {
+            stringRedisTemplate.opsForValue().set(NODE_ALIVE_KEY_PREFIX + nodeId,
+                    String.valueOf(System.currentTimeMillis()), heartbeatTtlMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("节点心跳续期失败：" + e.getMessage());
+        }
+    }
+
     public void addSession(String userId, WebSocketSession session) {
         // 直接替换旧连接，不主动关闭
         // 旧连接会在下次心跳检测或自然超时时关闭
         WebSocketSession oldSession = onlineUsers.put(userId, session);
-        
+
         if (oldSession != null && oldSession.isOpen()) {
             System.out.println("用户 " + userId + " 已有连接，新连接已覆盖（旧连接将自然失效）");
         }
 
+        // 新连接使用新的出站队列，旧队列停止发送
+        SessionOutboundQueue oldQueue = outboundQueues.put(userId,
+                new SessionOutboundQueue(userId, session, bufferSize, this));
+        if (oldQueue != null) {
+            oldQueue.close();
+        }
+
+        stringRedisTemplate.opsForHash().put(ROUTE_KEY, userId, nodeId);
         redisTemplate.opsForSet().add(ONLINE_USERS_KEY, userId);
     }
-    
+
     public void removeSession(String userId) {
         onlineUsers.remove(userId);
-        redisTemplate.opsForSet().remove(ONLINE_USERS_KEY, userId);
+        SessionOutboundQueue queue = outboundQueues.remove(userId);
+        if (queue != null) {
+            queue.close();
+        }
+        // 路由已指向其他节点说明用户在别处重连了，保持在线状态
+        Long removed = stringRedisTemplate.execute(REMOVE_ROUTE_SCRIPT, List.of(ROUTE_KEY), userId, nodeId);
+        if (removed != null && removed > 0) {
+            redisTemplate.opsForSet().remove(ONLINE_USERS_KEY, userId);
+        }
     }
-    
+
     public WebSocketSession getSession(String userId) {
         return onlineUsers.get(userId);
     }
 
+    /**
+     * 投递消息给指定用户（本节点直接入队，其他节点经 Redis 转发）
+     *
+     * @return 是否已投递（用户离线时返回 false）
+     */
+    public boolean deliver(String userId, String payload) {
+        return deliver(List.of(userId), payload) > 0;
+    }
+
+    /**
+     * 投递同一条消息给多个用户
+     *
+     * @return 已投递（本节点入队 + 转发到其他节点）的用户数
+     */
+    public int deliver(Collection<String> userIds, String payload) {
+        return deliverAll(List.of(RoutedMessage.builder()
+                .userIds(new ArrayList<>(userIds))
+                .payload(payload)
+                .build()));
+    }
+
+    /**
+     * 批量投递：本节点用户直接入队，其余用户按所在节点分组，
+     * 每个节点只发布一次（一次 HMGET 查路由 + 每节点一次 PUBLISH）
+     *
+     * @return 已投递的用户数
+     */
+    public int deliverAll(List<RoutedMessage> messages) {
+        int delivered = 0;
+        List<String> remoteUserIds = new ArrayList<>();
+
+        for (RoutedMessage message : messages) {
+            TextMessage textMessage = new TextMessage(message.getPayload());
+            for (String userId : message.getUserIds()) {
+                if (outboundQueues.containsKey(userId)) {
+                    if (sendMessage(userId, textMessage)) {
+                        delivered++;
+                    }
+                } else {
+                    remoteUserIds.add(userId);
+                }
+            }
+        }
+
+        if (remoteUserIds.isEmpty()) {
+            return delivered;
+        }
+
+        // 查询远端用户所在节点
+        List<Object> nodes = stringRedisTemplate.opsForHash().multiGet(ROUTE_KEY, new ArrayList<>(remoteUserIds));
+        Map<String, String> nodeByUser = new HashMap<>();
+        for (int i = 0; i < remoteUserIds.size(); i++) {
+            Object node = nodes.get(i);
+            if (node != null && !nodeId.equals(node)) {
+                nodeByUser.put(remoteUserIds.get(i), node.toString());
+            }
+        }
+        // 路由指向已宕机（心跳过期）的节点：按离线处理并清除路由
+        Set<String> deadNodes = findDeadNodes(new HashSet<>(nodeByUser.values()));
+        if (!deadNodes.isEmpty()) {
+            Map<String, String> deadRoutes = new HashMap<>();
+            nodeByUser.entrySet().removeIf(entry -> {
+                if (deadNodes.contains(entry.getValue())) {
+                    deadRoutes.put(entry.getKey(), entry.getValue());
+                    return true;
+                }
+                return false;
+            });
+            removeDeadRoutes(deadRoutes);
+        }
+        if (nodeByUser.isEmpty()) {
+            return delivered;
+        }
+
+        // 按节点分组：nodeId -> (payload -> userIds)
+        Map<String, Map<String, List<String>>> batches = new HashMap<>();
+        for (RoutedMessage message : messages) {
+            for (String userId : message.getUserIds()) {
+                String node = nodeByUser.get(userId);
+                if (node != null) {
+                    batches.computeIfAbsent(node, k -> new LinkedHashMap<>())
+                            .computeIfAbsent(message.getPayload(), k -> new ArrayList<>())
+                            .add(userId);
+                    delivered++;
+                }
+            }
+        }
+
+        for (Map.Entry<String, Map<String, List<String>>> batch : batches.entrySet()) {
+            List<RoutedMessage> routed = new ArrayList<>();
+            batch.getValue().forEach((payload, ids) -> routed.add(RoutedMessage.builder()
+                    .userIds(ids)
+                    .payload(payload)
+                    .build()));
+            try {
+                stringRedisTemplate.convertAndSend(NODE_CHANNEL_PREFIX + batch.getKey(),
+                        objectMapper.writeValueAsString(routed));
+                publishedBatches.incrementAndGet();
+            } catch (Exception e) {
+                System.err.println("跨节点投递失败：" + batch.getKey() + ", " + e.getMessage());
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * 查询节点心跳，返回已过期的节点（查询失败时都按存活处理，不误删路由）
+     */
+    private Set<String> findDeadNodes(Set<String> nodes) {
+        long now = System.currentTimeMillis();
+        List<String> unknown = new ArrayList<>();
+        for (String node : nodes) {
+            Long aliveUntil = aliveNodes.get(node);
+            if (aliveUntil == null || aliveUntil <= now) {
+                unknown.add(node);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return Set.of();
+        }
+        List<String> heartbeats;
+        try {
+            heartbeats = stringRedisTemplate.opsForValue().multiGet(unknown.stream()
+                    .map(node -> NODE_ALIVE_KEY_PREFIX + node)
+                    .collect(Collectors.toList()));
+        } catch (Exception e) {
+            System.err.println("查询节点心跳失败：" + e.getMessage());
+            return Set.of();
+        }
+        if (heartbeats == null) {
+            return Set.of();
+        }
+        Set<String> dead = new HashSet<>();
+        for (int i = 0; i < unknown.size(); i++) {
+            if (heartbeats.get(i) == null) {
+                dead.add(unknown.get(i));
+                aliveNodes.remove(unknown.get(i));
+            } else {
+                // 在心跳过期时间的一半内不再重复查询
+                aliveNodes.put(unknown.get(i), now + heartbeatTtlMs / 2);
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * 清除指向已宕机节点的路由和在线状态（路由已被用户重连改写的不删除）
+     */
+    private void removeDeadRoutes(Map<String, String> deadRoutes) {
+        for (Map.Entry<String, String> route : deadRoutes.entrySet()) {
+            try {
+                Long removed = stringRedisTemplate.execute(REMOVE_ROUTE_SCRIPT, List.of(ROUTE_KEY),
+                        route.getKey(), route.getValue());
+                if (removed != null && removed > 0) {
+                    redisTemplate.opsForSet().remove(ONLINE_USERS_KEY, route.getKey());
+                    deadRoutesRemoved.incrementAndGet();
+                }
+            } catch (Exception e) {
+                System.err.println("清除失效路由失败：" + route.getKey() + ", " + e.getMessage());
+            }
+        }
+        if (!deadRoutes.isEmpty()) {
+            System.err.println("⚠️ 清除指向已宕机节点的路由 " + deadRoutes.size() + " 条：" + new HashSet<>(deadRoutes.values()));
+        }
+    }
+
+    /**
+     * 定时扫描路由表，清除指向已宕机节点的路由（没有人给这些用户发消息时，在线状态也能恢复正确）
+     */
+    @Scheduled(fixedDelayString = "${ws.node.routeSweepMs:60000}")
+    public void sweepDeadRoutes() {
+        Map<String, String> routes = new HashMap<>();
+        try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash()
+                .scan(ROUTE_KEY, ScanOptions.scanOptions().count(500).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> entry = cursor.next();
+                String node = String.valueOf(entry.getValue());
+                if (!nodeId.equals(node)) {
+                    routes.put(String.valueOf(entry.getKey()), node);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("扫描路由表失败：" + e.getMessage());
+            return;
+        }
+        Set<String> deadNodes = findDeadNodes(new HashSet<>(routes.values()));
+        if (deadNodes.isEmpty()) {
+            return;
+        }
+        routes.values().removeIf(node -> !deadNodes.contains(node));
+        removeDeadRoutes(routes);
+    }
+
+    /**
+     * 收到其他节点转发的消息，投递给本节点的连接
+     */
+    private void onNodeMessage(String body) {
+        try {
+            List<RoutedMessage> messages = objectMapper.readValue(body, new TypeReference<List<RoutedMessage>>() {});
+            receivedBatches.incrementAndGet();
+            for (RoutedMessage message : messages) {
+                TextMessage textMessage = new TextMessage(message.getPayload());
+                for (String userId : message.getUserIds()) {
+                    sendMessage(userId, textMessage);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("处理跨节点消息失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 发送消息给本节点上的指定用户（只入队，不阻塞调用线程）
+     *
+     * @return 是否成功入队（用户不在本节点或已被断开时返回 false）
+     */
+    public boolean sendMessage(String userId, TextMessage message) {
+        SessionOutboundQueue queue = outboundQueues.get(userId);
+        if (queue == null || !queue.getSession().isOpen()) {
+            return false;
+        }
+        if (!queue.offer(message)) {
+            // 队列已满：客户端消费太慢，断开连接让其重连后拉取历史
+            droppedCount.incrementAndGet();
+            overflowEvictions.incrementAndGet();
+            evict(queue, "出站队列已满");
+            return false;
+        }
+        enqueuedCount.incrementAndGet();
+        return true;
+    }
+
+    public boolean sendMessage(String userId, String payload) {
+        return sendMessage(userId, new TextMessage(payload));
+    }
+
+    /**
+     * 定时检查发送阻塞过久的连接
+     */
+    @Scheduled(fixedDelayString = "${ws.outbound.checkIntervalMs:1000}")
+    public void evictBlockedSessions() {
+        for (SessionOutboundQueue queue : outboundQueues.values()) {
+            if (queue.blockedMillis() > sendTimeLimitMs) {
+                timeoutEvictions.incrementAndGet();
+                evict(queue, "发送超时 " + queue.blockedMillis() + "ms");
+            }
+        }
+    }
+
+    /**
+     * 断开慢连接，连接关闭回调中会完成下线处理
+     */
+    private void evict(SessionOutboundQueue queue, String reason) {
+        // 只移除当前仍在使用的队列，避免误删重连后的新队列
+        if (!outboundQueues.remove(queue.getUserId(), queue)) {
+            return;
+        }
+        droppedCount.addAndGet(queue.size());
+        queue.close();
+        System.err.println("断开慢连接：" + queue.getUserId() + "，原因：" + reason);
+        try {
+            queue.getSession().close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            System.err.println("关闭慢连接失败：" + e.getMessage());
+        }
+    }
+
+    void onSent() {
+        sentCount.incrementAndGet();
+    }
+
+    void onSendFailed() {
+        failedCount.incrementAndGet();
+    }
+
+    /**
+     * 出站队列统计信息
+     */
+    public Map<String, Object> getOutboundStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        int totalDepth = 0;
+        int maxDepth = 0;
+        for (SessionOutboundQueue queue : outboundQueues.values()) {
+            int size = queue.size();
+            totalDepth += size;
+            maxDepth = Math.max(maxDepth, size);
+        }
+        stats.put("nodeId", nodeId);
+        stats.put("sessions", outboundQueues.size());
+        stats.put("bufferSize", bufferSize);
+        stats.put("sendTimeLimitMs", sendTimeLimitMs);
+        stats.put("queueDepthTotal", totalDepth);
+        stats.put("queueDepthMax", maxDepth);
+        stats.put("enqueued", enqueuedCount.get());
+        stats.put("sent", sentCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("dropped", droppedCount.get());
+        stats.put("overflowEvictions", overflowEvictions.get());
+        stats.put("timeoutEvictions", timeoutEvictions.get());
+        stats.put("publishedBatches", publishedBatches.get());
+        stats.put("receivedBatches", receivedBatches.get());
+        stats.put("deadRoutesRemoved", deadRoutesRemoved.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        outboundQueues.values().forEach(SessionOutboundQueue::close);
+        outboundQueues.clear();
+        // 节点下线时清理属于本节点的路由和在线状态
+        for (String userId : onlineUsers.keySet()) {
+            try {
+                Long removed = stringRedisTemplate.execute(REMOVE_ROUTE_SCRIPT, List.of(ROUTE_KEY), userId, nodeId);
+                if (removed != null && removed > 0) {
+                    redisTemplate.opsForSet().remove(ONLINE_USERS_KEY, userId);
+                }
+            } catch (Exception e) {
+                System.err.println("清理节点路由失败：" + userId + ", " + e.getMessage());
+            }
+        }
+        onlineUsers.clear();
+        try {
+            stringRedisTemplate.delete(NODE_ALIVE_KEY_PREFIX + nodeId);
+        } catch (Exception e) {
+            System.err.println("删除节点心跳失败：" + e.getMessage());
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
     public boolean isOnline(String userId) {
         Boolean isMember = redisTemplate.opsForSet().isMember(ONLINE_USERS_KEY, userId);
         return Boolean.TRUE.equals(isMember);
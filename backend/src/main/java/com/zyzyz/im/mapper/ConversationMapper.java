@@ -0,0 +1,63 @@
+package com.zyzyz.im.mapper;
+
+import java.util.List;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import com.zyzyz.im.entity.Conversation;
+
+@Mapper
+public interface ConversationMapper {
+
+    /**
+     * 批量更新会话（不存在则插入）：最后一条消息取 id 较大者
+     */
+    void batchUpsert(@Param("list") List<Conversation> conversations);
+
+    /**
+     * 批量插入会话，已存在则忽略（加群时创建空会话）
+     */
+    void batchInsertIgnore(@Param("list") List<Conversation> conversations);
+
+    /**
+     * 按最后消息时间倒序查询用户的会话
+     */
+    List<Conversation> selectByOwner(@Param("ownerUserId") String ownerUserId,
+                                     @Param("convType") int convType,
+                                     @Param("limit") int limit);
+
+    /**
+     * 查询指定的若干会话
+     */
+    List<Conversation> selectByPeerIds(@Param("ownerUserId") String ownerUserId,
+                                       @Param("convType") int convType,
+                                       @Param("peerIds") List<String> peerIds);
+
+    /**
+     * 查询其中已有消息的私聊会话（只返回 owner_user_id、peer_id），用于识别新联系人
+     */
+    List<Conversation> selectContacted(@Param("list") List<Conversation> conversations);
+
+    /**
+     * 批量更新已读水位（只前移不后退）
+     */
+    void batchUpdateReadWatermark(@Param("list") List<Conversation> conversations);
+
+    /**
+     * 删除会话（退群）
+     */
+    void delete(@Param("ownerUserId") String ownerUserId,
+                @Param("convType") int convType,
+                @Param("peerId") String peerId);
+
+    /**
+     * 从消息表补建私聊会话（老数据一次性迁移）
+     */
+    void backfillPrivate(@Param("userId") String userId);
+
+    /**
+     * 从群成员表和消息表补建群聊会话（老数据一次性迁移）
+     */
+    void backfillGroup(@Param("userId") String userId);
+}
@@ -18,6 +18,9 @@ public interface GroupMapper {
     // 查询用户的所有群组
     List<Group> selectByUserId(@Param("userId") String userId);
     
+    // 根据群组ID批量查询
+    List<Group> selectByGroupIds(@Param("groupIds") List<String> groupIds);
+    
     // 更新成员数量
     void updateMemberCount(@Param("groupId") String groupId, @Param("count") int count);
 }
@@ -18,6 +18,9 @@ public interface GroupMemberMapper {
     // 查询群组的所有成员ID
     List<String> selectMemberIdsByGroupId(@Param("groupId") String groupId);
     
+    // 查询用户所在的所有群组ID（不含已解散的群）
+    List<String> selectGroupIdsByUserId(@Param("userId") String userId);
+    
     // 查询群组的所有成员
     List<GroupMember> selectMembersByGroupId(@Param("groupId") String groupId);
     
@@ -10,26 +10,51 @@ import com.zyzyz.im.entity.Message;
 @Mapper 
 public interface MessageMapper {
     void insert(Message message);
+    
+    /**
+     * 批量插入消息（多行 INSERT，用于写缓冲组提交）
+     */
+    void batchInsert(@Param("list") List<Message> messages);
+    
     Message selectByMessageId(String messageId);
     List<Message> selectByUsers(@Param("fromUserId") String fromUserId, @Param("toUserId") String toUserId);
-    List<Message> selectUnreadByUserId(String userId);
-    void updateStatus(@Param("messageId") String messageId, @Param("status") Integer status);
-    void batchUpdateStatusByUsers(@Param("fromUserId") String fromUserId, @Param("toUserId") String toUserId);
     
     /**
-     * 查询用户的最近联系人列表（和该用户聊过天的所有人）
+     * 游标分页查询两个用户之间的聊天记录
+     * 未指定 afterId 时按 id 倒序返回，指定 afterId 时按 id 正序返回
+     */
+    List<Message> selectByUsersPage(@Param("fromUserId") String fromUserId, @Param("toUserId") String toUserId,
+                                    @Param("beforeId") Long beforeId, @Param("afterId") Long afterId,
+                                    @Param("limit") int limit);
+    
+    /**
+     * 游标分页查询群聊历史消息
+     * 未指定 afterId 时按 id 倒序返回，指定 afterId 时按 id 正序返回
+     */
+    List<Message> selectByGroupIdPage(@Param("groupId") String groupId,
+                                      @Param("beforeId") Long beforeId, @Param("afterId") Long afterId,
+                                      @Param("limit") int limit);
+    
+    /**
+     * 按 id 游标顺序扫描消息（用于重建 ES 索引，每次取 (afterId, maxId] 内的一批）
+     */
+    List<Message> selectAfterId(@Param("afterId") long afterId, @Param("maxId") long maxId,
+                                @Param("limit") int limit);
+    
+    /**
+     * 按 id 倒序取 maxId 及之前的一段消息（索引一致性抽检）
      */
-    List<String> selectRecentContactsByUserId(String userId);
+    List<Message> selectUpToId(@Param("maxId") long maxId, @Param("limit") int limit);
     
     /**
-     * 查询群聊历史消息
+     * 当前最大消息 id（重建索引的终点）
      */
-    List<Message> selectByGroupId(@Param("groupId") String groupId);
+    Long selectMaxId();
     
     /**
-     * 查询所有消息（用于同步到 ES）
+     * 最小消息 id（一致性抽检的随机范围起点）
      */
-    List<Message> selectAll();
+    Long selectMinId();
     
     /**
      * 删除用户的AI对话记录（messageType = 3）
@@ -1,5 +1,8 @@
 package com.zyzyz.im.service;
 
+import org.springframework.core.io.InputStreamSource;
+
+import com.zyzyz.im.dto.AIRequest;
 import com.zyzyz.im.dto.AIResponse;
 
 /**
@@ -42,13 +45,14 @@ public interface AIService {
     AIResponse chatWithImage(String userId, String message, String imageUrl);
     
     /**
-     * 上传文档到通义千问，获取file_id
+     * 上传文档到通义千问，获取file_id（按内容哈希去重，相同文档直接复用已有 file_id）
      * 
-     * @param fileBytes 文件字节数组
+     * @param source 文件内容（可多次打开的输入流，如 MultipartFile）
+     * @param size 文件大小
      * @param fileName 文件名
      * @return file_id
      */
-    String uploadDocument(byte[] fileBytes, String fileName);
+    String uploadDocument(InputStreamSource source, long size, String fileName);
     
     /**
      * 与AI进行文档对话
@@ -60,5 +64,47 @@ public interface AIService {
      * @return AI响应
      */
     AIResponse chatWithDocument(String userId, String message, String fileId, String fileName);
+    
+    /**
+     * 流式对话（普通/图文/文档，按 imageUrl、fileId 区分），在后台线程中逐片回调，
+     * 完整回复在结束时写入历史和数据库
+     * 
+     * @param userId 用户ID
+     * @param request 对话请求
+     * @param listener 分片回调
+     * @return 取消句柄，调用方断开或超时时调用以关闭上游连接
+     */
+    StreamHandle chatStream(String userId, AIRequest request, StreamListener listener);
+    
+    /**
+     * 流式对话取消句柄
+     */
+    interface StreamHandle {
+        
+        /**
+         * 取消对话：关闭上游连接，已生成的部分照常入历史；可重复调用
+         */
+        void cancel();
+    }
+    
+    /**
+     * 流式对话回调
+     */
+    interface StreamListener {
+        
+        /**
+         * 收到一段增量文本；抛出异常表示客户端已断开，将中止上游读取
+         */
+        void onDelta(String delta) throws Exception;
+        
+        /**
+         * 回复完成
+         */
+        void onComplete(AIResponse response);
+        
+        /**
+         * 对话失败
+         */
+        void onError(String message);
+    }
 }
-
@@ -0,0 +1,34 @@
+package com.zyzyz.im.service;
+
+import java.util.List;
+
+import com.zyzyz.im.entity.Conversation;
+import com.zyzyz.im.entity.Message;
+
+public interface ConversationService {
+
+    /**
+     * 消息落库后增量更新双方（或全部群成员）的会话
+     */
+    void onMessagesPersisted(List<Message> messages);
+
+    /**
+     * 按最后消息时间倒序获取会话对象ID（私聊对方 userId / 群组 groupId）
+     */
+    List<String> getRecentPeerIds(String userId, int convType, Integer limit);
+
+    /**
+     * 按最后消息时间倒序获取会话详情（最后一条消息预览、未读数）
+     */
+    List<Conversation> getConversations(String userId, int convType, Integer limit);
+
+    /**
+     * 加入群组时创建空会话
+     */
+    void onGroupJoined(String groupId, List<String> userIds);
+
+    /**
+     * 退出群组时删除会话
+     */
+    void onGroupLeft(String groupId, String userId);
+}
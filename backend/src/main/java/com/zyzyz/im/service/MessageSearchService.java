@@ -1,9 +1,11 @@
 package com.zyzyz.im.service;
 
-import com.zyzyz.im.document.MessageDocument;
+import com.zyzyz.im.dto.MessageSearchRequest;
+import com.zyzyz.im.dto.MessageSearchResponse;
 import com.zyzyz.im.entity.Message;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * 消息搜索服务
@@ -11,7 +13,7 @@ import java.util.List;
 public interface MessageSearchService {
     
     /**
-     * 索引单条消息
+     * 索引单条消息（异步，只入队）
      */
     void indexMessage(Message message);
     
@@ -21,18 +23,17 @@ public interface MessageSearchService {
     void indexMessages(List<Message> messages);
     
     /**
-     * 搜索用户的消息
+     * 批量索引消息到指定代的分区（用于全量重建，切换别名前不对搜索可见）
      */
-    List<MessageDocument> searchUserMessages(String userId, String keyword);
+    void indexMessages(List<Message> messages, long generation);
     
     /**
-     * 搜索群组消息
+     * 分页搜索消息（groupId 为空时搜索用户相关的所有消息，指定时间范围时只查覆盖到的分区）
      */
-    List<MessageDocument> searchGroupMessages(String groupId, String keyword);
+    MessageSearchResponse search(String userId, MessageSearchRequest request);
     
     /**
-     * 全局搜索（用户相关的所有消息）
+     * 子串查询压测（旧的前导通配符写法 vs wildcard 子字段）
      */
-    List<MessageDocument> searchAll(String userId, String keyword);
+    Map<String, Object> benchmarkSubstringQuery(String keyword, int iterations);
 }
-
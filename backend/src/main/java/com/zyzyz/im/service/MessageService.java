@@ -8,19 +8,20 @@ public interface MessageService {
     void insert(Message message);
     Message selectByMessageId(String messageId);
     List<Message> selectByUsers(String fromUserId, String toUserId);
-    List<Message> selectUnreadByUserId(String userId);
-    void updateStatus(String messageId, Integer status);
-    void batchUpdateStatusByUsers(String fromUserId, String toUserId);
     
     /**
-     * 查询用户的最近联系人列表
+     * 游标分页查询私聊历史（结果按时间正序）
+     *
+     * @param beforeId 只返回 id 小于该值的消息（向上翻页），可为空
+     * @param afterId  只返回 id 大于该值的消息（补齐新消息），可为空
+     * @param limit    每页条数，为空时使用默认值
      */
-    List<String> selectRecentContactsByUserId(String userId);
+    List<Message> selectByUsersPage(String fromUserId, String toUserId, Long beforeId, Long afterId, Integer limit);
     
     /**
-     * 查询群聊历史消息
+     * 游标分页查询群聊历史（结果按时间正序）
      */
-    List<Message> selectByGroupId(String groupId);
+    List<Message> selectByGroupIdPage(String groupId, Long beforeId, Long afterId, Integer limit);
     
     /**
      * 删除用户的AI对话记录
@@ -1,42 +1,53 @@
 package com.zyzyz.im.service.impl;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.nio.file.Files;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.zyzyz.im.dto.AIChatMessage;
+import com.zyzyz.im.dto.AIRequest;
 import com.zyzyz.im.dto.AIResponse;
 import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.AIContextBuilder;
+import com.zyzyz.im.manager.AIHttpClient;
+import com.zyzyz.im.manager.AIImageProcessor;
+import com.zyzyz.im.manager.AIResponseCache;
 import com.zyzyz.im.service.AIService;
 import com.zyzyz.im.service.MessageService;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -46,10 +57,7 @@ import lombok.extern.slf4j.Slf4j;
 @Service
 public class AIServiceImpl implements AIService {
     
-    // 通义千问API配置
-    @Value("${ai.apiKey}")
-    private String apiKey;
-    
+    // 通义千问API配置（apiKey 由 AIHttpClient 持有）
     @Value("${ai.apiUrl:https://dashscope-intl.aliyuncs.com/compatible-mode/v1/chat/completions}")
     private String apiUrl;
     
@@ -68,90 +76,112 @@ public class AIServiceImpl implements AIService {
     @Value("${ai.maxHistory:10}")
     private Integer maxHistory;
     
-    @Value("${ai.minioEndpoint:http://localhost:9000}")
-    private String minioEndpoint;
+    // 文档内容哈希 -> file_id 的保留时间
+    @Value("${ai.document.dedupTtlHours:24}")
+    private long documentDedupTtlHours;
+    
+    // 流式对话线程数（每个流式请求占用一个线程读取上游）
+    @Value("${ai.stream.threads:16}")
+    private int streamThreads;
+    
+    // 流式对话排队上限，超出直接拒绝
+    @Value("${ai.stream.queueSize:64}")
+    private int streamQueueSize;
+    
+    // 上游两次分片之间的最长间隔，超过视为卡住，关闭上游连接释放线程和舱壁配额
+    @Value("${ai.stream.idleTimeoutMs:30000}")
+    private long streamIdleTimeoutMs;
+    
+    private ThreadPoolExecutor streamExecutor;
+    
+    // 检查流式读取是否空闲超时
+    private ScheduledThreadPoolExecutor streamWatchdog;
     
     private final RedisTemplate<String, Object> redisTemplate;
-    private final RestTemplate restTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
     private final ObjectMapper objectMapper;
     
     @Autowired
     private MessageService messageService;
     
-    // Redis key前缀
+    @Autowired
+    private AIHttpClient aiHttpClient;
+    
+    @Autowired
+    private AIContextBuilder contextBuilder;
+    
+    @Autowired
+    private AIResponseCache responseCache;
+    
+    @Autowired
+    private AIImageProcessor imageProcessor;
+    
+    // Redis key前缀（旧版整表 JSON，只读用于迁移）
     private static final String REDIS_KEY_PREFIX = "ai:chat:history:";
+    
+    // 对话历史列表（每个元素一条消息，角色前缀 + token 数 + 内容，RPUSH 追加、LTRIM 截断）
+    private static final String TURNS_KEY_PREFIX = "ai:chat:turns:";
+    private static final String ROLE_USER = "u";
+    private static final String ROLE_ASSISTANT = "a";
+    
+    // 对话消息序号（累计写入条数），用于判断哪些消息已进入滚动摘要
+    private static final String SEQ_KEY_PREFIX = "ai:chat:seq:";
+    
+    // 已上传文档：内容 SHA-256 -> 通义千问 file_id
+    private static final String DOCUMENT_HASH_KEY_PREFIX = "ai:doc:hash:";
+    
     private static final long HISTORY_EXPIRE_HOURS = 24; // 对话历史保留24小时
     private static final String AI_ASSISTANT_ID = "AI_ASSISTANT";
     
-    public AIServiceImpl(RedisTemplate<String, Object> redisTemplate) {
+    public AIServiceImpl(RedisTemplate<String, Object> redisTemplate, StringRedisTemplate stringRedisTemplate) {
         this.redisTemplate = redisTemplate;
-        this.restTemplate = new RestTemplate();
+        this.stringRedisTemplate = stringRedisTemplate;
         this.objectMapper = new ObjectMapper();
     }
     
+    @PostConstruct
+    public void init() {
+        AtomicInteger seq = new AtomicInteger();
+        streamExecutor = new ThreadPoolExecutor(streamThreads, streamThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(streamQueueSize), r -> {
+                    Thread t = new Thread(r, "ai-stream-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        streamExecutor.allowCoreThreadTimeOut(true);
+        streamWatchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ai-stream-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        streamWatchdog.setRemoveOnCancelPolicy(true);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        streamExecutor.shutdownNow();
+        streamWatchdog.shutdownNow();
+    }
+    
     @Override
     public AIResponse chat(String userId, String message) {
         try {
-            // 1. 从Redis获取历史对话
-            List<AIChatMessage> history = getHistory(userId);
-            
-            // 2. 添加用户消息
-            history.add(AIChatMessage.builder()
-                    .role("user")
-                    .content(message)
-                    .build());
-            
-            // 3. 构建请求
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", model);
-            requestBody.put("messages", history);
-            
-            // 4. 调用通义千问API
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.setBearerAuth(apiKey);
-            
-            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
+            PreparedTurn turn = prepareChat(userId, message);
             
             log.info("调用AI API，用户：{}，消息：{}", userId, message);
             
-            ResponseEntity<String> response = restTemplate.exchange(
-                apiUrl,
-                HttpMethod.POST,
-                entity,
-                String.class
-            );
-            
-            // 5. 解析响应
-            JsonNode root = objectMapper.readTree(response.getBody());
-            String aiReply = root.path("choices").get(0).path("message").path("content").asText();
-            int tokensUsed = root.path("usage").path("total_tokens").asInt(0);
-            
-            // 6. 保存AI回复到历史
-            history.add(AIChatMessage.builder()
-                    .role("assistant")
-                    .content(aiReply)
-                    .build());
-            
-            // 7. 限制历史长度（只保留最近N轮对话）
-            if (history.size() > maxHistory * 2) {
-                history = history.subList(history.size() - maxHistory * 2, history.size());
-            }
-            
-            // 8. 保存到Redis
-            saveHistory(userId, history);
-            
-            // 9. 保存到数据库（持久化）
-            saveToDatabase(userId, message, aiReply, tokensUsed);
+            AIResponseCache.Lookup result = complete(turn);
+            String aiReply = result.reply.reply;
+            int tokensUsed = result.hit ? 0 : result.reply.tokens;
             
-            log.info("AI回复成功，用户：{}，tokens：{}", userId, tokensUsed);
-            
-            return AIResponse.builder()
-                    .reply(aiReply)
-                    .tokensUsed(tokensUsed)
-                    .conversationRound(history.size() / 2)
-                    .build();
+            AIResponse response = finishTurn(userId, turn, aiReply, tokensUsed);
+            response.setCached(result.hit);
+            log.info("AI回复成功，用户：{}，tokens：{}，缓存：{}", userId, tokensUsed, result.hit);
+            return response;
                     
+        } catch (AIHttpClient.BulkheadFullException e) {
+            log.warn("AI请求被舱壁拒绝，用户：{}", userId);
+            throw e;
         } catch (Exception e) {
             log.error("AI聊天失败，用户：{}，错误：{}", userId, e.getMessage(), e);
             throw new RuntimeException("AI服务暂时不可用，请稍后重试");
@@ -160,38 +190,123 @@ public class AIServiceImpl implements AIService {
     
     @Override
     public void clearHistory(String userId) {
-        String key = REDIS_KEY_PREFIX + userId;
-        redisTemplate.delete(key);
+        redisTemplate.delete(List.of(TURNS_KEY_PREFIX + userId, SEQ_KEY_PREFIX + userId, REDIS_KEY_PREFIX + userId));
+        contextBuilder.clear(userId);
         log.info("清空对话历史，用户：{}", userId);
     }
     
     @Override
     public Integer getConversationRound(String userId) {
-        List<AIChatMessage> history = getHistory(userId);
-        return history.size() / 2;
+        Long size = stringRedisTemplate.opsForList().size(TURNS_KEY_PREFIX + userId);
+        if (size == null || size == 0) {
+            return getHistory(userId).messages.size() / 2;  // 可能仍是旧格式，读取时顺带迁移
+        }
+        return (int) (size / 2);
+    }
+    
+    /**
+     * 从Redis获取对话历史（LRANGE 整个列表 + 消息序号，一次管道往返；列表长度已由 LTRIM 限制）
+     */
+    private StoredHistory getHistory(String userId) {
+        String key = TURNS_KEY_PREFIX + userId;
+        String seqKey = SEQ_KEY_PREFIX + userId;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.listCommands().lRange(key.getBytes(StandardCharsets.UTF_8), 0, -1);
+            connection.stringCommands().get(seqKey.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        @SuppressWarnings("unchecked")
+        List<String> entries = (List<String>) results.get(0);
+        if (entries == null || entries.isEmpty()) {
+            return new StoredHistory(migrateLegacyHistory(userId), 0);
+        }
+        List<AIChatMessage> history = new ArrayList<>(entries.size() + 2);
+        for (String entry : entries) {
+            history.add(decode(entry));
+        }
+        long seq = results.get(1) != null ? Long.parseLong(results.get(1).toString()) : entries.size();
+        return new StoredHistory(history, Math.max(0, seq - entries.size()));
+    }
+    
+    /**
+     * 追加一轮对话：RPUSH + LTRIM + INCRBY 序号 + EXPIRE 在一次管道往返内完成，与历史长度无关
+     */
+    private void appendTurn(String userId, String userContent, String aiReply) {
+        byte[] key = (TURNS_KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+        byte[] seqKey = (SEQ_KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+        byte[] userEntry = encode("user", userContent).getBytes(StandardCharsets.UTF_8);
+        byte[] aiEntry = encode("assistant", aiReply).getBytes(StandardCharsets.UTF_8);
+        long ttlSeconds = TimeUnit.HOURS.toSeconds(HISTORY_EXPIRE_HOURS);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.listCommands().rPush(key, userEntry, aiEntry);
+            connection.listCommands().lTrim(key, -maxHistory * 2L, -1);
+            connection.keyCommands().expire(key, ttlSeconds);
+            connection.stringCommands().incrBy(seqKey, 2);
+            connection.keyCommands().expire(seqKey, ttlSeconds);
+            return null;
+        });
     }
     
     /**
-     * 从Redis获取对话历史
+     * 旧版整表 JSON 历史迁移到列表（只在列表为空时检查一次）
      */
     @SuppressWarnings("unchecked")
-    private List<AIChatMessage> getHistory(String userId) {
-        String key = REDIS_KEY_PREFIX + userId;
-        Object obj = redisTemplate.opsForValue().get(key);
-        
-        if (obj instanceof List) {
-            return (List<AIChatMessage>) obj;
+    private List<AIChatMessage> migrateLegacyHistory(String userId) {
+        String legacyKey = REDIS_KEY_PREFIX + userId;
+        Object obj = redisTemplate.opsForValue().get(legacyKey);
+        if (!(obj instanceof List) || ((List<AIChatMessage>) obj).isEmpty()) {
+            return new ArrayList<>();
         }
-        
-        return new ArrayList<>();
+        List<AIChatMessage> history = new ArrayList<>((List<AIChatMessage>) obj);
+        byte[] key = (TURNS_KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+        byte[] seqKey = (SEQ_KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+        byte[][] entries = new byte[history.size()][];
+        for (int i = 0; i < history.size(); i++) {
+            entries[i] = encode(history.get(i).getRole(), history.get(i).getContent()).getBytes(StandardCharsets.UTF_8);
+        }
+        long ttlSeconds = TimeUnit.HOURS.toSeconds(HISTORY_EXPIRE_HOURS);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.listCommands().rPush(key, entries);
+            connection.listCommands().lTrim(key, -maxHistory * 2L, -1);
+            connection.keyCommands().expire(key, ttlSeconds);
+            connection.stringCommands().set(seqKey, String.valueOf(entries.length).getBytes(StandardCharsets.UTF_8));
+            connection.keyCommands().expire(seqKey, ttlSeconds);
+            return null;
+        });
+        redisTemplate.delete(legacyKey);
+        log.info("AI对话历史已迁移为列表格式，用户：{}，条数：{}", userId, history.size());
+        return history;
     }
     
     /**
-     * 保存对话历史到Redis
+     * 紧凑编码：角色前缀（u / a）+ 估算 token 数 + ":" + 原文，不带类型信息；
+     * token 数只在写入时计算一次，之后每轮构建上下文直接复用
      */
-    private void saveHistory(String userId, List<AIChatMessage> history) {
-        String key = REDIS_KEY_PREFIX + userId;
-        redisTemplate.opsForValue().set(key, history, HISTORY_EXPIRE_HOURS, TimeUnit.HOURS);
+    private String encode(String role, String content) {
+        String text = content != null ? content : "";
+        return ("assistant".equals(role) ? ROLE_ASSISTANT : ROLE_USER)
+                + AIContextBuilder.estimateTokens(text) + ":" + text;
+    }
+    
+    private AIChatMessage decode(String entry) {
+        String role = entry.startsWith(ROLE_ASSISTANT) ? "assistant" : "user";
+        int colon = entry.indexOf(':');
+        if (colon < 0) {
+            return AIChatMessage.builder().role(role).content("").build();
+        }
+        Integer tokens = null;
+        if (colon > 1) {
+            try {
+                tokens = Integer.valueOf(entry.substring(1, colon));
+            } catch (NumberFormatException e) {
+                // 不带 token 数的旧条目，构建上下文时再估算
+            }
+        }
+        return AIChatMessage.builder()
+                .role(role)
+                .content(entry.substring(colon + 1))
+                .tokens(tokens)
+                .build();
     }
     
     /**
@@ -238,106 +353,21 @@ public class AIServiceImpl implements AIService {
         try {
             log.info("开始图文对话，用户：{}，消息：{}，图片：{}", userId, message, imageUrl);
             
-            // 1. 立即保存用户消息到数据库
-            saveUserImageMessage(userId, message, imageUrl);
-            
-            // 2. 从Redis获取历史对话
-            List<AIChatMessage> history = getHistory(userId);
-            
-            // 3. 下载图片并转换为Base64（通义千问支持data:image格式）
-            String imageBase64 = downloadAndEncodeImage(imageUrl);
-            
-            // 3. 构造包含图片的消息
-            Map<String, Object> userMessage = new HashMap<>();
-            userMessage.put("role", "user");
-            
-            // 构造content数组（包含文本和图片）
-            List<Map<String, Object>> content = new ArrayList<>();
-            
-            // 添加文本内容
-            Map<String, Object> textContent = new HashMap<>();
-            textContent.put("type", "text");
-            textContent.put("text", message);
-            content.add(textContent);
-            
-            // 添加图片内容（使用Base64格式）
-            Map<String, Object> imageContent = new HashMap<>();
-            imageContent.put("type", "image_url");
-            Map<String, String> imageUrlMap = new HashMap<>();
-            imageUrlMap.put("url", imageBase64);  // data:image/jpeg;base64,xxxxx
-            imageContent.put("image_url", imageUrlMap);
-            content.add(imageContent);
-            
-            userMessage.put("content", content);
-            
-            // 3. 构建请求体
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", visionModel);  // 使用视觉模型
-            
-            List<Object> messages = new ArrayList<>();
-            // 添加历史对话（纯文本）
-            for (AIChatMessage msg : history) {
-                Map<String, Object> historyMsg = new HashMap<>();
-                historyMsg.put("role", msg.getRole());
-                historyMsg.put("content", msg.getContent());
-                messages.add(historyMsg);
-            }
-            // 添加当前消息（包含图片）
-            messages.add(userMessage);
-            
-            requestBody.put("messages", messages);
-            
-            // 4. 调用通义千问视觉API
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.setBearerAuth(apiKey);
-            
-            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
+            PreparedTurn turn = prepareImage(userId, message, imageUrl);
             
             log.info("调用AI Vision API，用户：{}", userId);
             
-            ResponseEntity<String> response = restTemplate.exchange(
-                apiUrl,
-                HttpMethod.POST,
-                entity,
-                String.class
-            );
-            
-            // 5. 解析响应
-            JsonNode root = objectMapper.readTree(response.getBody());
-            String aiReply = root.path("choices").get(0).path("message").path("content").asText();
-            int tokensUsed = root.path("usage").path("total_tokens").asInt(0);
+            AIResponseCache.Lookup result = complete(turn);
+            String aiReply = result.reply.reply;
+            int tokensUsed = result.reply.tokens;
             
             log.info("AI Vision回复成功，用户：{}，tokens：{}", userId, tokensUsed);
             
-            // 6. 保存到历史（简化为文本，方便后续对话）
-            history.add(AIChatMessage.builder()
-                    .role("user")
-                    .content(message + " [图片]")
-                    .build());
-            
-            history.add(AIChatMessage.builder()
-                    .role("assistant")
-                    .content(aiReply)
-                    .build());
-            
-            // 7. 限制历史长度
-            if (history.size() > maxHistory * 2) {
-                history = history.subList(history.size() - maxHistory * 2, history.size());
-            }
-            
-            // 8. 保存到Redis
-            saveHistory(userId, history);
-            
-            // 9. 保存AI回复到数据库
-            saveAIReply(userId, aiReply, tokensUsed);
-            
-            return AIResponse.builder()
-                    .reply(aiReply)
-                    .tokensUsed(tokensUsed)
-                    .conversationRound(history.size() / 2)
-                    .build();
+            return finishTurn(userId, turn, aiReply, tokensUsed);
                     
+        } catch (AIHttpClient.BulkheadFullException e) {
+            log.warn("AI请求被舱壁拒绝，用户：{}", userId);
+            throw e;
         } catch (Exception e) {
             log.error("AI图文对话失败，用户：{}，错误：{}", userId, e.getMessage(), e);
             throw new RuntimeException("AI图像理解服务暂时不可用，请稍后重试");
@@ -425,213 +455,459 @@ public class AIServiceImpl implements AIService {
         }
     }
     
-    /**
-     * 下载图片并转换为Base64格式
-     * 通义千问支持 data:image/jpeg;base64,xxx 格式
-     */
-    private String downloadAndEncodeImage(String imageUrl) {
-        try {
-            log.info("开始下载图片: {}", imageUrl);
-            
-            // 处理相对路径：将 /minio/bucket/file 转换为完整的 MinIO URL
-            String actualUrl = imageUrl;
-            if (imageUrl.startsWith("/minio/")) {
-                // 去掉 /minio/ 前缀，使用配置的 MinIO 访问地址
-                actualUrl = minioEndpoint + imageUrl.substring(6);
-                log.info("转换相对路径为完整URL: {} -> {}", imageUrl, actualUrl);
-            }
-            
-            // 下载图片
-            URL url = new URL(actualUrl);
-            InputStream inputStream = url.openStream();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-            
-            byte[] imageBytes = outputStream.toByteArray();
-            inputStream.close();
-            outputStream.close();
-            
-            // 转换为Base64
-            String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-            
-            // 检测图片类型（简单判断）
-            String mimeType = "image/jpeg";  // 默认jpeg
-            if (imageUrl.toLowerCase().endsWith(".png")) {
-                mimeType = "image/png";
-            } else if (imageUrl.toLowerCase().endsWith(".gif")) {
-                mimeType = "image/gif";
-            } else if (imageUrl.toLowerCase().endsWith(".webp")) {
-                mimeType = "image/webp";
-            }
-            
-            // 构造data URL格式
-            String dataUrl = "data:" + mimeType + ";base64," + base64Image;
-            
-            log.info("图片转换为Base64成功，大小: {} bytes", imageBytes.length);
-            
-            return dataUrl;
-            
-        } catch (Exception e) {
-            log.error("下载并转换图片失败: {}", e.getMessage(), e);
-            throw new RuntimeException("图片处理失败，请确保图片URL可访问");
-        }
-    }
-    
     @Override
-    public String uploadDocument(byte[] fileBytes, String fileName) {
+    public String uploadDocument(InputStreamSource source, long size, String fileName) {
         try {
-            log.info("开始上传文档到通义千问，文件名：{}，大小：{} bytes", fileName, fileBytes.length);
-            
-            // 构造multipart/form-data请求
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.MULTIPART_FORM_DATA);
-            headers.setBearerAuth(apiKey);
+            log.info("开始上传文档到通义千问，文件名：{}，大小：{} bytes", fileName, size);
+            
+            // 1. 流式计算内容哈希，相同文档（如群里多人上传同一份 PDF）直接复用已有 file_id
+            String hash = sha256(source);
+            String dedupKey = DOCUMENT_HASH_KEY_PREFIX + hash;
+            String cachedFileId = stringRedisTemplate.opsForValue().get(dedupKey);
+            if (cachedFileId != null && !cachedFileId.isEmpty()) {
+                log.info("文档内容已上传过，复用file_id：{}，哈希：{}", cachedFileId, hash);
+                return cachedFileId;
+            }
             
-            // 创建文件资源
-            ByteArrayResource fileResource = new ByteArrayResource(fileBytes) {
-                @Override
-                public String getFilename() {
-                    return fileName;
+            // 2. 构造multipart/form-data请求，文件内容从输入流直接发送
+            Map<String, String> fields = new HashMap<>();
+            fields.put("purpose", "file-extract");
+            JsonNode root = aiHttpClient.postMultipart(fileUploadUrl, fileName, () -> {
+                try {
+                    return source.getInputStream();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            };
-            
-            // 构造请求body
-            MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-            body.add("file", fileResource);
-            body.add("purpose", "file-extract");
+            }, size, fields);
             
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = 
-                new HttpEntity<>(body, headers);
-            
-            // 发送请求
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                fileUploadUrl,
-                requestEntity,
-                String.class
-            );
-            
-            // 解析返回的file_id
-            JsonNode root = objectMapper.readTree(response.getBody());
+            // 3. 解析返回的file_id
             String fileId = root.path("id").asText();
             
             if (fileId == null || fileId.isEmpty()) {
                 throw new RuntimeException("上传文档失败，未获取到file_id");
             }
             
+            // 4. 记录 哈希 -> file_id
+            stringRedisTemplate.opsForValue().set(dedupKey, fileId, documentDedupTtlHours, TimeUnit.HOURS);
+            
             log.info("文档上传成功，file_id：{}", fileId);
             return fileId;
             
+        } catch (AIHttpClient.BulkheadFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("上传文档到通义千问失败：{}", e.getMessage(), e);
             throw new RuntimeException("文档上传失败：" + e.getMessage());
         }
     }
     
+    /**
+     * 边读边计算 SHA-256，不缓存文件内容
+     */
+    private String sha256(InputStreamSource source) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = source.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
     @Override
     public AIResponse chatWithDocument(String userId, String message, String fileId, String fileName) {
         try {
             log.info("开始文档对话，用户：{}，消息：{}，fileId：{}，fileName：{}", userId, message, fileId, fileName);
             
-            // 1. 立即保存用户消息到数据库
-            saveUserDocumentMessage(userId, message, fileId, fileName);
-            
-            // 2. 从Redis获取历史对话
-            List<AIChatMessage> history = getHistory(userId);
-            
-            // 2. 构建请求
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", documentModel);  // 使用qwen-long模型
-            
-            List<Object> messages = new ArrayList<>();
-            
-            // 添加system message（引用文档）
-            Map<String, Object> systemMsg = new HashMap<>();
-            systemMsg.put("role", "system");
-            systemMsg.put("content", "You are a helpful assistant.");
-            messages.add(systemMsg);
-            
-            // 添加fileId引用
-            Map<String, Object> fileRefMsg = new HashMap<>();
-            fileRefMsg.put("role", "system");
-            fileRefMsg.put("content", "fileid://" + fileId);
-            messages.add(fileRefMsg);
-            
-            // 添加历史对话（纯文本）
-            for (AIChatMessage msg : history) {
-                Map<String, Object> historyMsg = new HashMap<>();
-                historyMsg.put("role", msg.getRole());
-                historyMsg.put("content", msg.getContent());
-                messages.add(historyMsg);
-            }
-            
-            // 添加用户消息
-            Map<String, Object> userMsg = new HashMap<>();
-            userMsg.put("role", "user");
-            userMsg.put("content", message);
-            messages.add(userMsg);
-            
-            requestBody.put("messages", messages);
-            
-            // 3. 调用通义千问API
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.setBearerAuth(apiKey);
-            
-            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
+            PreparedTurn turn = prepareDocument(userId, message, fileId, fileName);
             
             log.info("调用qwen-long API，用户：{}", userId);
             
-            ResponseEntity<String> response = restTemplate.exchange(
-                apiUrl,
-                HttpMethod.POST,
-                entity,
-                String.class
-            );
-            
-            // 4. 解析响应
-            JsonNode root = objectMapper.readTree(response.getBody());
-            String aiReply = root.path("choices").get(0).path("message").path("content").asText();
-            int tokensUsed = root.path("usage").path("total_tokens").asInt(0);
-            
-            log.info("文档对话成功，用户：{}，tokens：{}", userId, tokensUsed);
+            AIResponseCache.Lookup result = complete(turn);
+            String aiReply = result.reply.reply;
+            int tokensUsed = result.hit ? 0 : result.reply.tokens;
             
-            // 5. 保存到历史
-            history.add(AIChatMessage.builder()
-                    .role("user")
-                    .content(message + " [文档]")
-                    .build());
+            log.info("文档对话成功，用户：{}，tokens：{}，缓存：{}", userId, tokensUsed, result.hit);
             
-            history.add(AIChatMessage.builder()
-                    .role("assistant")
-                    .content(aiReply)
-                    .build());
-            
-            // 6. 限制历史长度
-            if (history.size() > maxHistory * 2) {
-                history = history.subList(history.size() - maxHistory * 2, history.size());
-            }
-            
-            // 7. 保存到Redis
-            saveHistory(userId, history);
-            
-            // 8. 保存AI回复到数据库
-            saveAIReply(userId, aiReply, tokensUsed);
-            
-            return AIResponse.builder()
-                    .reply(aiReply)
-                    .tokensUsed(tokensUsed)
-                    .conversationRound(history.size() / 2)
-                    .build();
+            AIResponse response = finishTurn(userId, turn, aiReply, tokensUsed);
+            response.setCached(result.hit);
+            return response;
                     
+        } catch (AIHttpClient.BulkheadFullException e) {
+            log.warn("AI请求被舱壁拒绝，用户：{}", userId);
+            throw e;
         } catch (Exception e) {
             log.error("文档对话失败，用户：{}，错误：{}", userId, e.getMessage(), e);
             throw new RuntimeException("文档理解服务暂时不可用，请稍后重试");
         }
     }
+    
+    @Override
+    public StreamHandle chatStream(String userId, AIRequest request, StreamListener listener) {
+        StreamCall call = new StreamCall();
+        try {
+            streamExecutor.execute(() -> doStream(userId, request, listener, call));
+        } catch (RejectedExecutionException e) {
+            log.warn("AI流式线程池已满，拒绝请求，用户：{}", userId);
+            listener.onError("AI服务繁忙，请稍后重试");
+        }
+        return call;
+    }
+    
+    /**
+     * 流式对话：按 SSE 逐行读取上游 data: 分片，边读边回调；
+     * 客户端断开（onDelta 抛异常或调用方取消）时立即停止读取并关闭上游连接，已生成的部分照常入历史；
+     * 上游超过 ai.stream.idleTimeoutMs 没有新分片时由看门狗关闭连接，按失败处理
+     */
+    private void doStream(String userId, AIRequest request, StreamListener listener, StreamCall call) {
+        if (call.cancelled) {
+            return;
+        }
+        String mode = request.getImageUrl() != null && !request.getImageUrl().isEmpty() ? "image"
+                : request.getFileId() != null && !request.getFileId().isEmpty() ? "document" : "chat";
+        PreparedTurn turn;
+        try {
+            if ("image".equals(mode)) {
+                turn = prepareImage(userId, request.getMessage(), request.getImageUrl());
+            } else if ("document".equals(mode)) {
+                turn = prepareDocument(userId, request.getMessage(), request.getFileId(), request.getFileName());
+            } else {
+                turn = prepareChat(userId, request.getMessage());
+            }
+        } catch (Exception e) {
+            log.error("AI流式对话准备失败，用户：{}，错误：{}", userId, e.getMessage(), e);
+            listener.onError(e.getMessage() != null ? e.getMessage() : "AI服务暂时不可用，请稍后重试");
+            return;
+        }
+        
+        // 命中回复缓存时一次性推送完整回复
+        AIResponseCache.CachedReply cached = turn.cacheKey != null ? responseCache.get(turn.cacheKey) : null;
+        if (cached != null) {
+            try {
+                listener.onDelta(cached.reply);
+            } catch (Exception e) {
+                return;
+            }
+            AIResponse response = finishTurn(userId, turn, cached.reply, 0);
+            response.setCached(true);
+            log.info("AI流式回复命中缓存，用户：{}", userId);
+            listener.onComplete(response);
+            return;
+        }
+        
+        Map<String, Object> requestBody = buildRequestBody(turn);
+        requestBody.put("stream", true);
+        requestBody.put("stream_options", Map.of("include_usage", true));
+        
+        StringBuilder reply = new StringBuilder();
+        int tokensUsed = 0;
+        boolean aborted = false;
+        long start = System.currentTimeMillis();
+        
+        log.info("调用AI流式API，用户：{}，模式：{}", userId, mode);
+        
+        ScheduledFuture<?> watchdog = null;
+        try (InputStream in = aiHttpClient.postJsonStream(turn.endpoint, apiUrl, requestBody)) {
+            call.attach(in);
+            long period = Math.max(500, streamIdleTimeoutMs / 4);
+            watchdog = streamWatchdog.scheduleWithFixedDelay(() -> call.checkIdle(streamIdleTimeoutMs),
+                    period, period, TimeUnit.MILLISECONDS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                call.lastActivity = System.currentTimeMillis();
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                JsonNode chunk = objectMapper.readTree(data);
+                JsonNode usage = chunk.path("usage");
+                if (usage.has("total_tokens")) {
+                    tokensUsed = usage.path("total_tokens").asInt(0);
+                }
+                String delta = chunk.path("choices").path(0).path("delta").path("content").asText("");
+                if (delta.isEmpty()) {
+                    continue;
+                }
+                reply.append(delta);
+                try {
+                    listener.onDelta(delta);
+                } catch (Exception e) {
+                    // 客户端已断开，关闭响应流即中断上游连接
+                    aborted = true;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // 被取消或空闲超时时连接由其他线程关闭，读取抛出的异常不是上游错误
+            if (!call.cancelled && !call.timedOut) {
+                log.error("AI流式对话失败，用户：{}，已生成：{} 字，错误：{}", userId, reply.length(), e.getMessage(), e);
+                if (reply.length() > 0) {
+                    finishTurn(userId, turn, reply.toString(), tokensUsed);
+                }
+                listener.onError(e instanceof AIHttpClient.BulkheadFullException
+                        ? e.getMessage() : "AI服务暂时不可用，请稍后重试");
+                return;
+            }
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+        
+        long cost = System.currentTimeMillis() - start;
+        if (call.timedOut) {
+            log.warn("AI流式上游超过 {}ms 无响应，已关闭连接，用户：{}，已生成：{} 字", streamIdleTimeoutMs, userId, reply.length());
+            if (reply.length() > 0) {
+                finishTurn(userId, turn, reply.toString(), tokensUsed);
+            }
+            listener.onError("AI响应超时，请稍后重试");
+            return;
+        }
+        if (aborted || call.cancelled) {
+            log.info("客户端已断开，中止AI流式输出，用户：{}，已生成：{} 字，耗时：{}ms", userId, reply.length(), cost);
+            if (reply.length() > 0) {
+                finishTurn(userId, turn, reply.toString(), tokensUsed);
+            }
+            return;
+        }
+        if (turn.cacheKey != null) {
+            responseCache.put(turn.cacheKey, new AIResponseCache.CachedReply(reply.toString(), tokensUsed));
+        }
+        AIResponse response = finishTurn(userId, turn, reply.toString(), tokensUsed);
+        response.setCached(false);
+        log.info("AI流式回复完成，用户：{}，tokens：{}，耗时：{}ms", userId, tokensUsed, cost);
+        listener.onComplete(response);
+    }
+    
+    /**
+     * 普通对话：历史 + 当前文本
+     */
+    private PreparedTurn prepareChat(String userId, String message) {
+        StoredHistory history = getHistory(userId);
+        List<Object> messages = new ArrayList<>(contextBuilder.build(userId, history.messages, history.firstSeq, message));
+        messages.add(textMessage("user", message));
+        PreparedTurn turn = new PreparedTurn(model, AIHttpClient.Endpoint.CHAT, messages, history.messages, history.firstSeq, message, message, true);
+        // 无历史上下文的提问与用户无关，可以复用其他人的回复
+        if (history.messages.isEmpty()) {
+            turn.cacheKey = responseCache.key(model, "", message);
+        }
+        return turn;
+    }
+    
+    /**
+     * 图文对话：先保存用户消息，图片以 Base64 data URL 形式放入当前消息
+     */
+    private PreparedTurn prepareImage(String userId, String message, String imageUrl) {
+        // 立即保存用户消息到数据库
+        saveUserImageMessage(userId, message, imageUrl);
+        
+        StoredHistory history = getHistory(userId);
+        
+        // 读取图片、按需缩放并转换为Base64（通义千问支持data:image格式），结果按对象缓存
+        String imageBase64;
+        try {
+            imageBase64 = imageProcessor.toDataUrl(imageUrl);
+        } catch (Exception e) {
+            log.error("图片预处理失败：{}，错误：{}", imageUrl, e.getMessage(), e);
+            throw new RuntimeException("图片处理失败，请确保图片URL可访问");
+        }
+        
+        // 构造content数组（包含文本和图片）
+        List<Map<String, Object>> content = new ArrayList<>();
+        Map<String, Object> textContent = new HashMap<>();
+        textContent.put("type", "text");
+        textContent.put("text", message);
+        content.add(textContent);
+        
+        Map<String, Object> imageContent = new HashMap<>();
+        imageContent.put("type", "image_url");
+        Map<String, String> imageUrlMap = new HashMap<>();
+        imageUrlMap.put("url", imageBase64);  // data:image/jpeg;base64,xxxxx
+        imageContent.put("image_url", imageUrlMap);
+        content.add(imageContent);
+        
+        Map<String, Object> userMessage = new HashMap<>();
+        userMessage.put("role", "user");
+        userMessage.put("content", content);
+        
+        List<Object> messages = new ArrayList<>(contextBuilder.build(userId, history.messages, history.firstSeq, message));
+        messages.add(userMessage);
+        // 历史中简化为文本，方便后续对话
+        return new PreparedTurn(visionModel, AIHttpClient.Endpoint.VISION, messages, history.messages, history.firstSeq, message + " [图片]", message, false);
+    }
+    
+    /**
+     * 文档对话：先保存用户消息，通过 fileid:// 系统消息引用已上传的文档
+     */
+    private PreparedTurn prepareDocument(String userId, String message, String fileId, String fileName) {
+        // 立即保存用户消息到数据库
+        saveUserDocumentMessage(userId, message, fileId, fileName);
+        
+        StoredHistory history = getHistory(userId);
+        
+        List<Object> messages = new ArrayList<>();
+        messages.add(textMessage("system", "You are a helpful assistant."));
+        messages.add(textMessage("system", "fileid://" + fileId));
+        messages.addAll(contextBuilder.build(userId, history.messages, history.firstSeq, message));
+        messages.add(textMessage("user", message));
+        PreparedTurn turn = new PreparedTurn(documentModel, AIHttpClient.Endpoint.DOCUMENT, messages, history.messages, history.firstSeq, message + " [文档]", message, false);
+        // 针对同一共享文档的首轮提问，以 fileId 作为上下文指纹
+        if (history.messages.isEmpty()) {
+            turn.cacheKey = responseCache.key(documentModel, "fileid://" + fileId, message);
+        }
+        return turn;
+    }
+    
+    private Map<String, Object> textMessage(String role, String content) {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("role", role);
+        msg.put("content", content);
+        return msg;
+    }
+    
+    private Map<String, Object> buildRequestBody(PreparedTurn turn) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("model", turn.model);
+        requestBody.put("messages", turn.messages);
+        return requestBody;
+    }
+    
+    /**
+     * 非流式调用：可缓存的请求先查回复缓存，并发的相同请求只调用一次上游
+     */
+    private AIResponseCache.Lookup complete(PreparedTurn turn) throws Exception {
+        AIResponseCache.Loader loader = () -> {
+            JsonNode root = callCompletion(turn);
+            return new AIResponseCache.CachedReply(
+                    root.path("choices").get(0).path("message").path("content").asText(),
+                    root.path("usage").path("total_tokens").asInt(0));
+        };
+        if (turn.cacheKey == null) {
+            return new AIResponseCache.Lookup(loader.load(), false);
+        }
+        return responseCache.getOrLoad(turn.cacheKey, loader);
+    }
+    
+    /**
+     * 非流式调用，返回完整响应
+     */
+    private JsonNode callCompletion(PreparedTurn turn) throws Exception {
+        return aiHttpClient.postJson(turn.endpoint, apiUrl, buildRequestBody(turn));
+    }
+    
+    /**
+     * 一轮对话结束：追加到 Redis 历史，并持久化到数据库
+     */
+    private AIResponse finishTurn(String userId, PreparedTurn turn, String aiReply, int tokensUsed) {
+        // 只追加本轮两条，截断在 Redis 端完成（只保留最近N轮对话）；
+        // 按条数截掉的旧消息若还没进入摘要，截断前先排队压缩进摘要，避免摘要与保留的历史之间出现断档
+        int dropCount = turn.history.size() + 2 - maxHistory * 2;
+        if (dropCount > 0) {
+            contextBuilder.summarizeBeforeTrim(userId, turn.history, turn.firstSeq, Math.min(dropCount, turn.history.size()));
+        }
+        appendTurn(userId, turn.historyContent, aiReply);
+        int conversationRound = Math.min(turn.history.size() / 2 + 1, maxHistory);
+        
+        if (turn.saveUserOnFinish) {
+            saveToDatabase(userId, turn.userMessage, aiReply, tokensUsed);
+        } else {
+            // 图文/文档对话的用户消息已在请求前保存
+            saveAIReply(userId, aiReply, tokensUsed);
+        }
+        
+        return AIResponse.builder()
+                .reply(aiReply)
+                .tokensUsed(tokensUsed)
+                .conversationRound(conversationRound)
+                .build();
+    }
+    
+    /**
+     * 已组装好的一轮请求
+     */
+    private static class PreparedTurn {
+        final String model;
+        final AIHttpClient.Endpoint endpoint;
+        final List<Object> messages;
+        final List<AIChatMessage> history;
+        final long firstSeq;  // history.get(0) 的消息序号
+        final String historyContent;  // 写入历史的用户消息（图片/文档简化为文本）
+        final String userMessage;
+        final boolean saveUserOnFinish;  // 普通对话在结束时连同回复一起保存用户消息
+        String cacheKey;  // 回复缓存 key，为 null 表示不可缓存（有个人上下文或图文对话）
+        
+        PreparedTurn(String model, AIHttpClient.Endpoint endpoint, List<Object> messages, List<AIChatMessage> history,
+                     long firstSeq, String historyContent, String userMessage, boolean saveUserOnFinish) {
+            this.model = model;
+            this.endpoint = endpoint;
+            this.messages = messages;
+            this.history = history;
+            this.firstSeq = firstSeq;
+            this.historyContent = historyContent;
+            this.userMessage = userMessage;
+            this.saveUserOnFinish = saveUserOnFinish;
+        }
+    }
+    
+    /**
+     * 一次流式对话的取消句柄：记录上游输入流，取消或空闲超时时从其他线程关闭，使阻塞的读取立即返回
+     */
+    private static class StreamCall implements StreamHandle {
+        volatile InputStream upstream;
+        volatile boolean cancelled;
+        volatile boolean timedOut;
+        volatile long lastActivity;
+        
+        void attach(InputStream in) {
+            lastActivity = System.currentTimeMillis();
+            upstream = in;
+            // 取消可能发生在连接建立之前
+            if (cancelled) {
+                closeUpstream();
+            }
+        }
+        
+        void checkIdle(long idleTimeoutMs) {
+            if (System.currentTimeMillis() - lastActivity > idleTimeoutMs) {
+                timedOut = true;
+                closeUpstream();
+            }
+        }
+        
+        @Override
+        public void cancel() {
+            cancelled = true;
+            closeUpstream();
+        }
+        
+        private void closeUpstream() {
+            InputStream in = upstream;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // 关闭失败不影响释放
+                }
+            }
+        }
+    }
+    
+    /**
+     * Redis 中的对话历史及首条消息的序号
+     */
+    private static class StoredHistory {
+        final List<AIChatMessage> messages;
+        final long firstSeq;
+        
+        StoredHistory(List<AIChatMessage> messages, long firstSeq) {
+            this.messages = messages;
+            this.firstSeq = firstSeq;
+        }
+    }
 }
-
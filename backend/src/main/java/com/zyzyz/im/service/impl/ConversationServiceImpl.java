@@ -0,0 +1,349 @@
+package com.zyzyz.im.service.impl;
+
+import com.zyzyz.im.entity.Conversation;
+import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.GroupMembershipCache;
+import com.zyzyz.im.manager.PresenceManager;
+import com.zyzyz.im.manager.UnreadCounterManager;
+import com.zyzyz.im.mapper.ConversationMapper;
+import com.zyzyz.im.service.ConversationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话列表服务
+ * MySQL t_conversation 保存会话详情，Redis ZSET（score = 最后消息时间）保存排序，
+ * 最近联系人 / 最近群聊只需取一页，不再聚合整张消息表
+ */
+@Service
+public class ConversationServiceImpl implements ConversationService {
+
+    @Autowired
+    private ConversationMapper conversationMapper;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private UnreadCounterManager unreadCounterManager;
+
+    // PresenceManager 依赖本服务加载关注者，延迟注入避免循环依赖
+    @Lazy
+    @Autowired
+    private PresenceManager presenceManager;
+
+    // 每个用户每种会话在 Redis 中最多保留的条数
+    @Value("${conversation.maxEntries:500}")
+    private int maxEntries;
+
+    @Value("${conversation.cacheTtlMs:604800000}")
+    private long cacheTtlMs;
+
+    private static final String PRIVATE_KEY_PREFIX = "im:conv:user:";
+    private static final String GROUP_KEY_PREFIX = "im:conv:group:";
+
+    // 老数据补建标记（每个用户每种会话只补建一次）
+    private static final String SEEDED_KEY_PREFIX = "im:conv:seeded:";
+
+    private static final int UPSERT_BATCH_SIZE = 500;
+
+    private static final int PREVIEW_LENGTH = 100;
+
+    // 只更新已加载的排序集合（未加载的等读取时从 MySQL 整体加载），并裁剪到上限
+    private static final byte[] ZADD_IF_EXISTS_SCRIPT = (
+            "if redis.call('exists', KEYS[1]) == 1 then "
+                    + "redis.call('zadd', KEYS[1], ARGV[1], ARGV[2]) "
+                    + "redis.call('zremrangebyrank', KEYS[1], 0, -(tonumber(ARGV[3]) + 1)) "
+                    + "return 1 end return 0")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public void onMessagesPersisted(List<Message> messages) {
+        // 同一批内按会话合并：只保留最新一条
+        Map<String, Conversation> merged = new LinkedHashMap<>();
+        for (Message message : messages) {
+            if (message.getMessageType() != null && message.getMessageType() == 3) {
+                continue;  // AI 对话不进入会话列表
+            }
+            if (message.getGroupId() != null) {
+                for (String memberId : groupMembershipCache.getMemberIds(message.getGroupId())) {
+                    merge(merged, memberId, Conversation.TYPE_GROUP, message.getGroupId(), message);
+                }
+            } else if (message.getToUserId() != null) {
+                merge(merged, message.getFromUserId(), Conversation.TYPE_PRIVATE, message.getToUserId(), message);
+                merge(merged, message.getToUserId(), Conversation.TYPE_PRIVATE, message.getFromUserId(), message);
+            }
+        }
+        if (merged.isEmpty()) {
+            return;
+        }
+
+        List<Conversation> conversations = new ArrayList<>(merged.values());
+        Set<String> newContactOwners = findNewContactOwners(conversations);
+        for (int i = 0; i < conversations.size(); i += UPSERT_BATCH_SIZE) {
+            conversationMapper.batchUpsert(conversations.subList(i, Math.min(i + UPSERT_BATCH_SIZE, conversations.size())));
+        }
+        touchSortedSets(conversations);
+        // 首次私聊的双方互相成为关注者
+        if (!newContactOwners.isEmpty()) {
+            presenceManager.invalidateAudience(newContactOwners);
+        }
+    }
+
+    /**
+     * 找出本批中首次产生私聊消息的会话所属用户（写入前会话不存在或还没有消息）
+     */
+    private Set<String> findNewContactOwners(List<Conversation> conversations) {
+        List<Conversation> privates = new ArrayList<>();
+        for (Conversation conversation : conversations) {
+            if (conversation.getConvType() == Conversation.TYPE_PRIVATE) {
+                privates.add(conversation);
+            }
+        }
+        Set<String> owners = new HashSet<>();
+        if (privates.isEmpty()) {
+            return owners;
+        }
+        try {
+            Set<String> existing = new HashSet<>();
+            for (int i = 0; i < privates.size(); i += UPSERT_BATCH_SIZE) {
+                for (Conversation c : conversationMapper.selectContacted(
+                        privates.subList(i, Math.min(i + UPSERT_BATCH_SIZE, privates.size())))) {
+                    existing.add(c.getOwnerUserId() + "|" + c.getPeerId());
+                }
+            }
+            for (Conversation c : privates) {
+                if (!existing.contains(c.getOwnerUserId() + "|" + c.getPeerId())) {
+                    owners.add(c.getOwnerUserId());
+                }
+            }
+        } catch (Exception e) {
+            // 查询失败不影响写入，关注者缓存随 TTL 过期
+            System.err.println("查询新联系人失败：" + e.getMessage());
+        }
+        return owners;
+    }
+
+    private void merge(Map<String, Conversation> merged, String ownerUserId, int convType, String peerId,
+                       Message message) {
+        String key = ownerUserId + "|" + convType + "|" + peerId;
+        Conversation existing = merged.get(key);
+        if (existing == null) {
+            merged.put(key, Conversation.builder()
+                    .ownerUserId(ownerUserId)
+                    .convType(convType)
+                    .peerId(peerId)
+                    .lastMessageId(message.getId())
+                    .lastFromUserId(message.getFromUserId())
+                    .lastContent(preview(message))
+                    .lastTime(message.getCreatedAt())
+                    .build());
+            return;
+        }
+        if (message.getId() > existing.getLastMessageId()) {
+            existing.setLastMessageId(message.getId());
+            existing.setLastFromUserId(message.getFromUserId());
+            existing.setLastContent(preview(message));
+            existing.setLastTime(message.getCreatedAt());
+        }
+    }
+
+    /**
+     * 最后一条消息预览（图片、文件不展示链接）
+     */
+    private String preview(Message message) {
+        Integer type = message.getMessageType();
+        if (type != null && type == 4) {
+            return "[图片]";
+        }
+        if (type != null && type == 5) {
+            return "[文件]";
+        }
+        String content = message.getContent();
+        if (content == null) {
+            return "";
+        }
+        return content.length() > PREVIEW_LENGTH ? content.substring(0, PREVIEW_LENGTH) : content;
+    }
+
+    /**
+     * 批量刷新 Redis 排序集合（pipeline，一次往返）
+     */
+    private void touchSortedSets(List<Conversation> conversations) {
+        try {
+            byte[] max = String.valueOf(maxEntries).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Conversation conversation : conversations) {
+                    connection.scriptingCommands().eval(ZADD_IF_EXISTS_SCRIPT, ReturnType.INTEGER, 1,
+                            sortedSetKey(conversation.getOwnerUserId(), conversation.getConvType())
+                                    .getBytes(StandardCharsets.UTF_8),
+                            String.valueOf(score(conversation.getLastTime())).getBytes(StandardCharsets.UTF_8),
+                            conversation.getPeerId().getBytes(StandardCharsets.UTF_8),
+                            max);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 排序集合只是缓存，失败时删除等下次从 MySQL 重新加载
+            System.err.println("更新会话排序缓存失败：" + e.getMessage());
+            Set<String> keys = new HashSet<>();
+            conversations.forEach(c -> keys.add(sortedSetKey(c.getOwnerUserId(), c.getConvType())));
+            try {
+                stringRedisTemplate.delete(keys);
+            } catch (Exception ignored) {
+                // Redis 不可用时缓存会随 TTL 过期
+            }
+        }
+    }
+
+    @Override
+    public List<String> getRecentPeerIds(String userId, int convType, Integer limit) {
+        int size = limit == null || limit <= 0 ? maxEntries : Math.min(limit, maxEntries);
+        String key = sortedSetKey(userId, convType);
+        try {
+            Set<String> peerIds = stringRedisTemplate.opsForZSet().reverseRange(key, 0, size - 1);
+            if (peerIds != null && !peerIds.isEmpty()) {
+                return new ArrayList<>(peerIds);
+            }
+        } catch (Exception e) {
+            System.err.println("读取会话排序缓存失败：" + e.getMessage());
+        }
+
+        // 缓存未命中：从 MySQL 加载上限条数并回填 Redis
+        List<Conversation> conversations = loadFromDatabase(userId, convType);
+        List<String> peerIds = new ArrayList<>(Math.min(size, conversations.size()));
+        for (int i = 0; i < conversations.size() && i < size; i++) {
+            peerIds.add(conversations.get(i).getPeerId());
+        }
+        return peerIds;
+    }
+
+    private List<Conversation> loadFromDatabase(String userId, int convType) {
+        ensureSeeded(userId, convType);
+        List<Conversation> conversations = conversationMapper.selectByOwner(userId, convType, maxEntries);
+        if (conversations.isEmpty()) {
+            return conversations;
+        }
+        try {
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+            for (Conversation conversation : conversations) {
+                tuples.add(ZSetOperations.TypedTuple.of(conversation.getPeerId(),
+                        (double) score(conversation.getLastTime())));
+            }
+            String key = sortedSetKey(userId, convType);
+            stringRedisTemplate.opsForZSet().add(key, tuples);
+            stringRedisTemplate.expire(key, cacheTtlMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("写入会话排序缓存失败：" + e.getMessage());
+        }
+        return conversations;
+    }
+
+    /**
+     * 上线前的历史消息没有会话记录，首次读取时从消息表补建（INSERT IGNORE，不会覆盖新数据）
+     */
+    private void ensureSeeded(String userId, int convType) {
+        String seededKey = SEEDED_KEY_PREFIX + convType + ":" + userId;
+        try {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(seededKey))) {
+                return;
+            }
+        } catch (Exception e) {
+            return;
+        }
+        if (convType == Conversation.TYPE_GROUP) {
+            conversationMapper.backfillGroup(userId);
+        } else {
+            conversationMapper.backfillPrivate(userId);
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(seededKey, "1");
+        } catch (Exception e) {
+            System.err.println("写入会话补建标记失败：" + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<Conversation> getConversations(String userId, int convType, Integer limit) {
+        List<String> peerIds = getRecentPeerIds(userId, convType, limit);
+        if (peerIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, Conversation> byPeer = new HashMap<>();
+        for (Conversation conversation : conversationMapper.selectByPeerIds(userId, convType, peerIds)) {
+            byPeer.put(conversation.getPeerId(), conversation);
+        }
+        Map<String, Long> unreadCounts = convType == Conversation.TYPE_GROUP
+                ? unreadCounterManager.getGroupCounts(userId, peerIds)
+                : unreadCounterManager.getPrivateCounts(userId);
+        List<Conversation> result = new ArrayList<>(peerIds.size());
+        for (String peerId : peerIds) {
+            Conversation conversation = byPeer.get(peerId);
+            if (conversation != null) {
+                conversation.setUnreadCount(unreadCounts.getOrDefault(peerId, 0L));
+                result.add(conversation);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onGroupJoined(String groupId, List<String> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<Conversation> conversations = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            conversations.add(Conversation.builder()
+                    .ownerUserId(userId)
+                    .convType(Conversation.TYPE_GROUP)
+                    .peerId(groupId)
+                    .lastTime(now)
+                    .build());
+        }
+        for (int i = 0; i < conversations.size(); i += UPSERT_BATCH_SIZE) {
+            conversationMapper.batchInsertIgnore(conversations.subList(i, Math.min(i + UPSERT_BATCH_SIZE, conversations.size())));
+        }
+        touchSortedSets(conversations);
+    }
+
+    @Override
+    public void onGroupLeft(String groupId, String userId) {
+        conversationMapper.delete(userId, Conversation.TYPE_GROUP, groupId);
+        try {
+            stringRedisTemplate.opsForZSet().remove(sortedSetKey(userId, Conversation.TYPE_GROUP), groupId);
+        } catch (Exception e) {
+            System.err.println("删除会话排序缓存失败：" + e.getMessage());
+        }
+    }
+
+    private String sortedSetKey(String userId, int convType) {
+        return (convType == Conversation.TYPE_GROUP ? GROUP_KEY_PREFIX : PRIVATE_KEY_PREFIX) + userId;
+    }
+
+    private long score(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -2,18 +2,26 @@ package com.zyzyz.im.service.impl;
 
 import com.zyzyz.im.dto.CreateGroupRequest;
 import com.zyzyz.im.dto.GroupResponse;
+import com.zyzyz.im.entity.Conversation;
 import com.zyzyz.im.entity.Group;
 import com.zyzyz.im.entity.GroupMember;
+import com.zyzyz.im.manager.GroupMembershipCache;
+import com.zyzyz.im.manager.PresenceManager;
+import com.zyzyz.im.manager.UnreadCounterManager;
 import com.zyzyz.im.mapper.GroupMapper;
 import com.zyzyz.im.mapper.GroupMemberMapper;
+import com.zyzyz.im.service.ConversationService;
 import com.zyzyz.im.service.GroupService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -26,6 +34,20 @@ public class GroupServiceImpl implements GroupService {
     @Autowired
     private GroupMemberMapper groupMemberMapper;
     
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+    
+    @Autowired
+    private ConversationService conversationService;
+    
+    @Autowired
+    private UnreadCounterManager unreadCounterManager;
+    
+    // PresenceManager 依赖本服务加载关注者，延迟注入避免循环依赖
+    @Lazy
+    @Autowired
+    private PresenceManager presenceManager;
+    
     @Override
     @Transactional
     public GroupResponse createGroup(String creatorId, CreateGroupRequest request) {
@@ -83,6 +105,17 @@ public class GroupServiceImpl implements GroupService {
         // 获取所有成员ID
         List<String> allMemberIds = groupMemberMapper.selectMemberIdsByGroupId(groupId);
         
+        // 清除可能存在的空成员缓存（建群前的查询）
+        groupMembershipCache.invalidate(groupId);
+        groupMembershipCache.invalidateUsers(allMemberIds);
+        
+        // 所有成员的最近群聊中出现新群
+        conversationService.onGroupJoined(groupId, allMemberIds);
+        unreadCounterManager.onGroupJoined(groupId, allMemberIds);
+        
+        // 成员之间互相成为关注者
+        presenceManager.invalidateAudience(allMemberIds);
+        
         // 返回结果
         return GroupResponse.builder()
                 .groupId(groupId)
@@ -119,20 +152,26 @@ public class GroupServiceImpl implements GroupService {
     
     @Override
     public List<String> getGroupMemberIds(String groupId) {
-        return groupMemberMapper.selectMemberIdsByGroupId(groupId);
+        return groupMembershipCache.getMemberIds(groupId);
     }
     
     @Override
     public boolean isUserInGroup(String groupId, String userId) {
-        GroupMember member = groupMemberMapper.selectByGroupIdAndUserId(groupId, userId);
-        return member != null;
+        return groupMembershipCache.isMember(groupId, userId);
     }
     
     @Override
     public List<GroupResponse> getRecentGroupsWithMessages(String userId) {
-        // 获取用户的所有群组，按创建时间排序（简化版，实际应该按最后消息时间）
-        List<Group> groups = groupMapper.selectByUserId(userId);
-        return groups.stream()
+        // 按最后消息时间倒序（会话表 + Redis 排序集合）
+        List<String> groupIds = conversationService.getRecentPeerIds(userId, Conversation.TYPE_GROUP, null);
+        if (groupIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, Group> groupMap = groupMapper.selectByGroupIds(groupIds).stream()
+                .collect(Collectors.toMap(Group::getGroupId, g -> g));
+        return groupIds.stream()
+                .map(groupMap::get)
+                .filter(Objects::nonNull)
                 .map(g -> GroupResponse.builder()
                         .groupId(g.getGroupId())
                         .groupName(g.getGroupName())
@@ -171,6 +210,14 @@ public class GroupServiceImpl implements GroupService {
         // 更新群成员数量
         int memberCount = groupMemberMapper.countByGroupId(groupId);
         groupMapper.updateMemberCount(groupId, memberCount);
+        
+        groupMembershipCache.invalidate(groupId);
+        groupMembershipCache.invalidateUsers(List.of(userId));
+        conversationService.onGroupJoined(groupId, List.of(userId));
+        unreadCounterManager.onGroupJoined(groupId, List.of(userId));
+        
+        // 新成员和所有群成员的关注者都发生变化（成员列表已包含新成员）
+        presenceManager.invalidateAudience(groupMemberMapper.selectMemberIdsByGroupId(groupId));
     }
     
     @Override
@@ -198,6 +245,16 @@ public class GroupServiceImpl implements GroupService {
         // 更新群成员数量
         int memberCount = groupMemberMapper.countByGroupId(groupId);
         groupMapper.updateMemberCount(groupId, memberCount);
+        
+        groupMembershipCache.invalidate(groupId);
+        groupMembershipCache.invalidateUsers(List.of(userId));
+        conversationService.onGroupLeft(groupId, userId);
+        unreadCounterManager.onGroupLeft(groupId, userId);
+        
+        // 被移除（或退群）的成员和剩余成员的关注者都发生变化
+        List<String> affected = new ArrayList<>(groupMemberMapper.selectMemberIdsByGroupId(groupId));
+        affected.add(userId);
+        presenceManager.invalidateAudience(affected);
     }
     
     @Override
@@ -0,0 +1,634 @@
+package com.zyzyz.im.service.impl;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.dto.MessageSearchHit;
+import com.zyzyz.im.dto.MessageSearchRequest;
+import com.zyzyz.im.dto.MessageSearchResponse;
+import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.GroupMembershipCache;
+import com.zyzyz.im.mapper.MessageMapper;
+import com.zyzyz.im.service.MessageSearchService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.cn.smart.SmartChineseAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.NGramTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleFragmenter;
+import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QueryBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内嵌 Lucene 消息搜索（search.engine=lucene）
+ * 单节点部署不依赖 Elasticsearch：索引保存在本地磁盘（MMapDirectory），content 使用 SmartChineseAnalyzer 中文分词，
+ * content_chars 按单字切分用于子串匹配（短语查询，相当于 ES 的 wildcard 子字段）；
+ * 写入只进入 IndexWriter 内存缓冲，近实时 reader 定时刷新，定时提交并把索引水位写入提交元数据，
+ * 启动时从水位补齐之后的消息。查询语义与 MessageSearchServiceImpl 一致
+ */
+@Service
+@ConditionalOnProperty(name = "search.engine", havingValue = "lucene")
+public class LuceneMessageSearchServiceImpl implements MessageSearchService {
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Value("${search.lucene.path:./data/lucene-messages}")
+    private String indexPath;
+
+    // 近实时 reader 刷新间隔（新消息最多延迟这么久可被搜到）
+    @Value("${search.lucene.refreshMs:1000}")
+    private long refreshMs;
+
+    @Value("${search.lucene.ramBufferMb:64}")
+    private double ramBufferMb;
+
+    @Value("${search.lucene.catchUpBatchSize:1000}")
+    private int catchUpBatchSize;
+
+    // 启动时是否补齐水位之后的消息
+    @Value("${search.reindex.onStartup:true}")
+    private boolean catchUpOnStartup;
+
+    @Value("${search.page.defaultSize:20}")
+    private int defaultPageSize;
+
+    @Value("${search.page.maxSize:100}")
+    private int maxPageSize;
+
+    private static final String SORT_TIME = "time";
+
+    // 子串匹配使用的单字字段
+    private static final String SUBSTRING_FIELD = "content_chars";
+
+    // 提交元数据中的索引水位（该 id 及之前的消息都已写入）
+    private static final String HWM_KEY = "hwm";
+
+    private static final int BENCHMARK_WARMUP = 3;
+
+    private static final int FRAGMENT_SIZE = 100;
+
+    private static final Sort SORT_RELEVANCE = new Sort(SortField.FIELD_SCORE, new SortField("id", SortField.Type.LONG, true));
+    private static final Sort SORT_BY_TIME = new Sort(new SortField("id", SortField.Type.LONG, true));
+
+    private Analyzer contentAnalyzer;
+    private Analyzer charAnalyzer;
+    private MMapDirectory directory;
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+    private Thread catchUpThread;
+    private volatile boolean closing = false;
+
+    // 已提交的水位、实时写入的最大 id，补齐完成后实时水位才能推进提交水位
+    private final AtomicLong committedHighWaterMark = new AtomicLong();
+    private final AtomicLong liveMaxId = new AtomicLong();
+    private volatile boolean caughtUp = false;
+
+    // 统计
+    private final AtomicLong indexedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong searchCount = new AtomicLong();
+    private final AtomicLong totalSearchNanos = new AtomicLong();
+    private final AtomicLong catchUpIndexed = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws Exception {
+        contentAnalyzer = new SmartChineseAnalyzer();
+        charAnalyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new NGramTokenizer(1, 1);
+                return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+            }
+        };
+        Analyzer analyzer = new PerFieldAnalyzerWrapper(contentAnalyzer, Map.of(SUBSTRING_FIELD, charAnalyzer));
+
+        Path path = Paths.get(indexPath);
+        Files.createDirectories(path);
+        directory = new MMapDirectory(path);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer)
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(ramBufferMb);
+        writer = new IndexWriter(directory, config);
+        searcherManager = new SearcherManager(writer, new SearcherFactory());
+
+        // 打开时 live commit data 即最近一次提交的元数据
+        Map<String, String> userData = writer.getLiveCommitData() != null
+                ? toMap(writer.getLiveCommitData())
+                : Map.of();
+        String saved = userData.get(HWM_KEY);
+        committedHighWaterMark.set(saved != null ? Long.parseLong(saved) : 0);
+        System.out.println("✅ Lucene 消息索引已打开：" + path.toAbsolutePath()
+                + "，文档数 " + writer.getDocStats().numDocs + "，水位 " + committedHighWaterMark.get());
+
+        if (catchUpOnStartup) {
+            catchUpThread = new Thread(this::catchUp, "lucene-catch-up");
+            catchUpThread.setDaemon(true);
+            catchUpThread.start();
+        } else {
+            caughtUp = true;
+        }
+    }
+
+    private Map<String, String> toMap(Iterable<Map.Entry<String, String>> entries) {
+        Map<String, String> map = new LinkedHashMap<>();
+        entries.forEach(entry -> map.put(entry.getKey(), entry.getValue()));
+        return map;
+    }
+
+    /**
+     * 从水位补齐之后的消息（updateDocument 按 messageId 覆盖，重复写入是幂等的）
+     */
+    private void catchUp() {
+        try {
+            Long maxId = messageMapper.selectMaxId();
+            long targetMaxId = maxId != null ? maxId : 0;
+            long cursor = committedHighWaterMark.get();
+            long start = System.currentTimeMillis();
+            while (cursor < targetMaxId && !closing) {
+                List<Message> batch = messageMapper.selectAfterId(cursor, targetMaxId, catchUpBatchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                for (Message message : batch) {
+                    writer.updateDocument(new Term("messageId", message.getMessageId()), toDocument(message));
+                }
+                cursor = batch.get(batch.size() - 1).getId();
+                catchUpIndexed.addAndGet(batch.size());
+                commit(cursor);
+            }
+            if (!closing) {
+                caughtUp = true;
+                commit(Math.max(cursor, liveMaxId.get()));
+                System.out.println("🎉 Lucene 索引补齐完成，共 " + catchUpIndexed.get() + " 条，耗时 "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Lucene 索引补齐失败（不影响系统运行）：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 写入 IndexWriter 内存缓冲（分词 + 追加，不落盘），定时刷新后可被搜到
+     */
+    @Override
+    public void indexMessage(Message message) {
+        try {
+            writer.updateDocument(new Term("messageId", message.getMessageId()), toDocument(message));
+            indexedCount.incrementAndGet();
+            if (message.getId() != null) {
+                liveMaxId.accumulateAndGet(message.getId(), Math::max);
+            }
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            System.err.println("❌ Lucene 索引消息失败: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void indexMessages(List<Message> messages) {
+        try {
+            for (Message message : messages) {
+                writer.updateDocument(new Term("messageId", message.getMessageId()), toDocument(message));
+            }
+            indexedCount.addAndGet(messages.size());
+        } catch (Exception e) {
+            failedCount.addAndGet(messages.size());
+            throw new RuntimeException("批量索引失败：" + messages.size() + " 条", e);
+        }
+    }
+
+    /**
+     * 本地索引没有分区代，直接写入
+     */
+    @Override
+    public void indexMessages(List<Message> messages, long generation) {
+        indexMessages(messages);
+    }
+
+    /**
+     * 定时刷新近实时 reader
+     */
+    @Scheduled(fixedDelayString = "${search.lucene.refreshMs:1000}")
+    public void refresh() {
+        try {
+            searcherManager.maybeRefresh();
+        } catch (Exception e) {
+            System.err.println("刷新 Lucene reader 失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 定时提交（崩溃后从已提交的水位补齐）
+     */
+    @Scheduled(fixedDelayString = "${search.lucene.commitMs:10000}")
+    public void scheduledCommit() {
+        if (!caughtUp || closing) {
+            return;
+        }
+        commit(Math.max(committedHighWaterMark.get(), liveMaxId.get()));
+    }
+
+    private synchronized void commit(long highWaterMark) {
+        try {
+            writer.setLiveCommitData(Map.of(HWM_KEY, String.valueOf(highWaterMark)).entrySet());
+            writer.commit();
+            committedHighWaterMark.set(highWaterMark);
+        } catch (Exception e) {
+            System.err.println("提交 Lucene 索引失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 分页搜索：按相关度（或时间）排序，search_after 游标翻页，只返回 id 和高亮片段
+     */
+    @Override
+    public MessageSearchResponse search(String userId, MessageSearchRequest request) {
+        String keyword = request.getKeyword();
+        String groupId = request.getGroupId();
+        LocalDateTime from = request.getFrom();
+        LocalDateTime to = request.getTo();
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new IllegalArgumentException("开始时间不能晚于结束时间");
+        }
+        Query query = groupId != null && !groupId.isEmpty()
+                ? groupQuery(groupId, keyword)
+                : userQuery(userId, keyword);
+        if (from != null || to != null) {
+            query = new BooleanQuery.Builder()
+                    .add(query, BooleanClause.Occur.MUST)
+                    .add(LongPoint.newRangeQuery("createdAt",
+                            from != null ? epochMillis(from) : Long.MIN_VALUE,
+                            to != null ? epochMillis(to) : Long.MAX_VALUE), BooleanClause.Occur.FILTER)
+                    .build();
+        }
+        Integer size = request.getSize();
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+        boolean byTime = SORT_TIME.equals(request.getSort());
+        String cursor = request.getCursor();
+        FieldDoc after = cursor != null && !cursor.isEmpty() ? decodeCursor(cursor, byTime) : null;
+
+        long start = System.nanoTime();
+        IndexSearcher searcher = null;
+        try {
+            searcher = searcherManager.acquire();
+            // 多取一条判断是否还有下一页
+            TopFieldDocs topDocs = searcher.searchAfter(after, query, pageSize + 1, byTime ? SORT_BY_TIME : SORT_RELEVANCE, !byTime);
+            ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+            boolean hasMore = scoreDocs.length > pageSize;
+            int count = Math.min(scoreDocs.length, pageSize);
+
+            Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<em>", "</em>"),
+                    new SimpleHTMLEncoder(), new QueryScorer(query, "content"));
+            highlighter.setTextFragmenter(new SimpleFragmenter(FRAGMENT_SIZE));
+            StoredFields storedFields = searcher.storedFields();
+            List<MessageSearchHit> hits = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                FieldDoc fieldDoc = (FieldDoc) scoreDocs[i];
+                Document doc = storedFields.document(fieldDoc.doc);
+                Float score = byTime ? null : (Float) fieldDoc.fields[0];
+                hits.add(MessageSearchHit.builder()
+                        .messageId(doc.get("messageId"))
+                        .id(doc.get("idValue"))
+                        .fromUserId(doc.get("fromUserId"))
+                        .toUserId(doc.get("toUserId"))
+                        .groupId(doc.get("groupId"))
+                        .messageType(doc.getField("messageType") != null
+                                ? doc.getField("messageType").numericValue().intValue() : null)
+                        .createdAt(doc.get("createdAtValue"))
+                        .highlights(highlight(highlighter, doc.get("content")))
+                        .score(score)
+                        .build());
+            }
+
+            return MessageSearchResponse.builder()
+                    .hits(hits)
+                    .total(topDocs.totalHits.value)
+                    .totalRelation(topDocs.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO
+                            ? "gte" : "eq")
+                    .nextCursor(hasMore ? encodeCursor(Arrays.asList(((FieldDoc) scoreDocs[count - 1]).fields)) : null)
+                    .hasMore(hasMore)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Lucene 搜索失败：" + e.getMessage(), e);
+        } finally {
+            if (searcher != null) {
+                try {
+                    searcherManager.release(searcher);
+                } catch (Exception e) {
+                    System.err.println("释放 Lucene searcher 失败：" + e.getMessage());
+                }
+            }
+            searchCount.incrementAndGet();
+            totalSearchNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 高亮 content（HTML 转义），未命中高亮时返回内容开头
+     */
+    private List<String> highlight(Highlighter highlighter, String content) {
+        if (content == null) {
+            return List.of();
+        }
+        try {
+            String[] fragments = highlighter.getBestFragments(contentAnalyzer, "content", content, 3);
+            if (fragments.length > 0) {
+                return Arrays.asList(fragments);
+            }
+        } catch (Exception e) {
+            System.err.println("生成高亮片段失败：" + e.getMessage());
+        }
+        String head = content.length() > FRAGMENT_SIZE ? content.substring(0, FRAGMENT_SIZE) : content;
+        return List.of(new SimpleHTMLEncoder().encodeText(head));
+    }
+
+    /**
+     * 用户相关的所有消息：自己发出或收到的（私聊、AI对话），以及所在群的全部群消息
+     */
+    private Query userQuery(String userId, String keyword) {
+        BooleanQuery.Builder content = new BooleanQuery.Builder().setMinimumNumberShouldMatch(1);
+        QueryBuilder builder = new QueryBuilder(contentAnalyzer);
+        // 1. 中文分词匹配
+        Query match = builder.createBooleanQuery("content", keyword, BooleanClause.Occur.SHOULD);
+        if (match != null) {
+            content.add(match, BooleanClause.Occur.SHOULD);
+        }
+        // 2. 子串匹配：单字字段上的短语查询（大小写不敏感）
+        Query substring = new QueryBuilder(charAnalyzer).createPhraseQuery(SUBSTRING_FIELD, keyword);
+        if (substring != null) {
+            content.add(substring, BooleanClause.Occur.SHOULD);
+        }
+        // 3. 短语匹配（精确匹配）
+        Query phrase = builder.createPhraseQuery("content", keyword);
+        if (phrase != null) {
+            content.add(phrase, BooleanClause.Occur.SHOULD);
+        }
+        if (match == null && substring == null && phrase == null) {
+            return new MatchNoDocsQuery();
+        }
+
+        // 用户过滤：发送者、接收者或所在群（FILTER 不参与评分）
+        BooleanQuery.Builder user = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("fromUserId", userId)), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("toUserId", userId)), BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(1);
+        Set<String> groupIds = groupMembershipCache.getUserGroupIds(userId);
+        if (!groupIds.isEmpty()) {
+            user.add(new TermInSetQuery("groupId", groupIds.stream().map(BytesRef::new).toList()),
+                    BooleanClause.Occur.SHOULD);
+        }
+        return new BooleanQuery.Builder()
+                .add(content.build(), BooleanClause.Occur.MUST)
+                .add(user.build(), BooleanClause.Occur.FILTER)
+                .build();
+    }
+
+    /**
+     * 群组消息
+     */
+    private Query groupQuery(String groupId, String keyword) {
+        Query match = new QueryBuilder(contentAnalyzer).createBooleanQuery("content", keyword, BooleanClause.Occur.SHOULD);
+        if (match == null) {
+            return new MatchNoDocsQuery();
+        }
+        return new BooleanQuery.Builder()
+                .add(match, BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term("groupId", groupId)), BooleanClause.Occur.FILTER)
+                .add(IntPoint.newExactQuery("messageType", 2), BooleanClause.Occur.FILTER)  // 群聊
+                .build();
+    }
+
+    /**
+     * 子串查询压测：对比分词字段前导通配符和单字字段短语查询的延迟
+     */
+    @Override
+    public Map<String, Object> benchmarkSubstringQuery(String keyword, int iterations) {
+        Query legacy = new WildcardQuery(new Term("content", "*" + keyword.toLowerCase() + "*"));
+        Query substring = new QueryBuilder(charAnalyzer).createPhraseQuery(SUBSTRING_FIELD, keyword);
+        if (substring == null) {
+            substring = new MatchNoDocsQuery();
+        }
+
+        IndexSearcher searcher = null;
+        try {
+            searcher = searcherManager.acquire();
+            for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+                searcher.search(legacy, defaultPageSize);
+                searcher.search(substring, defaultPageSize);
+            }
+            long[] legacyNanos = new long[iterations];
+            long[] substringNanos = new long[iterations];
+            long legacyHits = 0;
+            long substringHits = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                legacyHits = searcher.count(legacy);
+                legacyNanos[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                substringHits = searcher.count(substring);
+                substringNanos[i] = System.nanoTime() - start;
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("engine", "lucene");
+            result.put("keyword", keyword);
+            result.put("iterations", iterations);
+            result.put("documents", searcher.getIndexReader().numDocs());
+            result.put("legacyWildcard", latencySummary(legacyNanos, legacyHits));
+            result.put("charPhrase", latencySummary(substringNanos, substringHits));
+            return result;
+        } catch (Exception e) {
+            throw new RuntimeException("Lucene 压测失败：" + e.getMessage(), e);
+        } finally {
+            if (searcher != null) {
+                try {
+                    searcherManager.release(searcher);
+                } catch (Exception e) {
+                    System.err.println("释放 Lucene searcher 失败：" + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> latencySummary(long[] nanos, long hits) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("hits", hits);
+        summary.put("avgMillis", sorted.length > 0 ? total / sorted.length / 1_000_000.0 : 0);
+        summary.put("p50Millis", sorted.length > 0 ? sorted[sorted.length / 2] / 1_000_000.0 : 0);
+        summary.put("p95Millis", sorted.length > 0 ? sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.95))] / 1_000_000.0 : 0);
+        summary.put("maxMillis", sorted.length > 0 ? sorted[sorted.length - 1] / 1_000_000.0 : 0);
+        return summary;
+    }
+
+    private String encodeCursor(List<Object> sortValues) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(sortValues));
+        } catch (Exception e) {
+            throw new IllegalStateException("生成搜索游标失败", e);
+        }
+    }
+
+    /**
+     * 游标还原为 FieldDoc（相关度排序为 [score, id]，时间排序为 [id]）
+     */
+    private FieldDoc decodeCursor(String cursor, boolean byTime) {
+        try {
+            List<Number> values = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor),
+                    new TypeReference<List<Number>>() {
+                    });
+            Object[] fields = byTime
+                    ? new Object[]{values.get(0).longValue()}
+                    : new Object[]{values.get(0).floatValue(), values.get(1).longValue()};
+            return new FieldDoc(Integer.MAX_VALUE, Float.NaN, fields);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("搜索游标无效");
+        }
+    }
+
+    private Document toDocument(Message message) {
+        Document doc = new Document();
+        doc.add(new StringField("messageId", message.getMessageId(), Field.Store.YES));
+        if (message.getId() != null) {
+            doc.add(new NumericDocValuesField("id", message.getId()));
+            doc.add(new StoredField("idValue", String.valueOf(message.getId())));
+        }
+        if (message.getFromUserId() != null) {
+            doc.add(new StringField("fromUserId", message.getFromUserId(), Field.Store.YES));
+        }
+        if (message.getToUserId() != null) {
+            doc.add(new StringField("toUserId", message.getToUserId(), Field.Store.YES));
+        }
+        if (message.getGroupId() != null) {
+            doc.add(new StringField("groupId", message.getGroupId(), Field.Store.YES));
+        }
+        if (message.getContent() != null) {
+            doc.add(new TextField("content", message.getContent(), Field.Store.YES));
+            doc.add(new TextField(SUBSTRING_FIELD, message.getContent(), Field.Store.NO));
+        }
+        if (message.getMessageType() != null) {
+            doc.add(new IntPoint("messageType", message.getMessageType()));
+            doc.add(new StoredField("messageType", message.getMessageType()));
+        }
+        if (message.getCreatedAt() != null) {
+            doc.add(new LongPoint("createdAt", epochMillis(message.getCreatedAt())));
+            doc.add(new StoredField("createdAtValue", message.getCreatedAt().toString()));
+        }
+        return doc;
+    }
+
+    private long epochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        closing = true;
+        if (catchUpThread != null) {
+            try {
+                catchUpThread.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (caughtUp) {
+                commit(Math.max(committedHighWaterMark.get(), liveMaxId.get()));
+            }
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        } catch (Exception e) {
+            System.err.println("关闭 Lucene 索引失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * Lucene 索引统计
+     */
+    public Map<String, Object> getStats() {
+        long searches = searchCount.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("path", Paths.get(indexPath).toAbsolutePath().toString());
+        stats.put("documents", writer.getDocStats().numDocs);
+        stats.put("refreshMs", refreshMs);
+        stats.put("ramBytesUsed", writer.ramBytesUsed());
+        stats.put("caughtUp", caughtUp);
+        stats.put("catchUpIndexed", catchUpIndexed.get());
+        stats.put("committedHighWaterMark", committedHighWaterMark.get());
+        stats.put("liveMaxId", liveMaxId.get());
+        stats.put("indexed", indexedCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("searches", searches);
+        stats.put("avgSearchMillis", searches > 0 ? totalSearchNanos.get() / searches / 1_000_000.0 : 0);
+        return stats;
+    }
+}
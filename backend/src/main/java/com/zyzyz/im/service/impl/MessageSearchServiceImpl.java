@@ -1,181 +1,410 @@
 package com.zyzyz.im.service.impl;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.zyzyz.im.document.MessageDocument;
+import com.zyzyz.im.dto.MessageSearchHit;
+import com.zyzyz.im.dto.MessageSearchRequest;
+import com.zyzyz.im.dto.MessageSearchResponse;
 import com.zyzyz.im.entity.Message;
-import com.zyzyz.im.repository.MessageSearchRepository;
+import com.zyzyz.im.manager.GroupMembershipCache;
+import com.zyzyz.im.manager.SearchPartitionManager;
 import com.zyzyz.im.service.MessageSearchService;
+import com.zyzyz.im.task.MessageBulkIndexTask;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
 import org.springframework.data.elasticsearch.client.elc.NativeQuery;
+import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilterBuilder;
+import org.springframework.data.elasticsearch.core.query.HighlightQuery;
+import org.springframework.data.elasticsearch.core.query.highlight.Highlight;
+import org.springframework.data.elasticsearch.core.query.highlight.HighlightField;
+import org.springframework.data.elasticsearch.core.query.highlight.HighlightParameters;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Service
+@ConditionalOnProperty(name = "search.engine", havingValue = "elasticsearch", matchIfMissing = true)
 public class MessageSearchServiceImpl implements MessageSearchService {
     
     @Autowired
-    private MessageSearchRepository searchRepository;
+    private ElasticsearchOperations elasticsearchOperations;
     
     @Autowired
-    private ElasticsearchOperations elasticsearchOperations;
+    private MessageBulkIndexTask bulkIndexTask;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private SearchPartitionManager partitionManager;
+    
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+    
+    @Value("${search.page.defaultSize:20}")
+    private int defaultPageSize;
+    
+    @Value("${search.page.maxSize:100}")
+    private int maxPageSize;
+    
+    // 命中总数精确统计的上限，超过后只返回下限（避免深度计数）
+    @Value("${search.trackTotalHitsUpTo:10000}")
+    private int trackTotalHitsUpTo;
+    
+    private static final String SORT_TIME = "time";
+    
+    // 子串匹配使用的 wildcard 类型子字段
+    private static final String SUBSTRING_FIELD = "content.wildcard";
+    
+    private static final int BENCHMARK_WARMUP = 3;
     
+    // 高亮片段长度，未命中高亮时返回内容开头同样长度
+    private static final int FRAGMENT_SIZE = 100;
+    
+    // 只高亮 content，片段做 HTML 转义，前端可直接渲染
+    private static final HighlightQuery HIGHLIGHT_QUERY = new HighlightQuery(
+            new Highlight(HighlightParameters.builder()
+                    .withPreTags("<em>")
+                    .withPostTags("</em>")
+                    .withEncoder("html")
+                    .withFragmentSize(FRAGMENT_SIZE)
+                    .withNumberOfFragments(3)
+                    .withNoMatchSize(FRAGMENT_SIZE)
+                    .build(),
+                    List.of(new HighlightField("content"))),
+            MessageDocument.class);
+    
+    /**
+     * 只入队，由批量索引线程合并写入 ES
+     */
     @Override
     public void indexMessage(Message message) {
-        MessageDocument doc = convertToDocument(message);
-        searchRepository.save(doc);
+        bulkIndexTask.enqueue(convertToDocument(message));
     }
     
+    /**
+     * 同步 bulk 写入（不触发 refresh），失败抛出异常由调用方处理
+     */
     @Override
     public void indexMessages(List<Message> messages) {
         List<MessageDocument> docs = messages.stream()
                 .map(this::convertToDocument)
                 .collect(Collectors.toList());
-        searchRepository.saveAll(docs);
+        if (!bulkIndexTask.bulkIndexWithRetry(docs)) {
+            throw new RuntimeException("批量索引失败：" + docs.size() + " 条");
+        }
     }
     
+    /**
+     * 同步 bulk 写入指定代的分区（重建索引时写入下一代，切换别名前不影响搜索）
+     */
     @Override
-    public List<MessageDocument> searchUserMessages(String userId, String keyword) {
-        // 使用原生查询，利用 IK 分词的 match 查询
-        Query query = Query.of(q -> q.bool(b -> b
-                .must(m -> m.match(mt -> mt
-                        .field("content")
-                        .query(keyword)  // IK 分词的 match 查询
-                ))
-                .must(m -> m.term(t -> t
-                        .field("messageType")
-                        .value(1)  // 私聊
-                ))
-                .should(s -> s.term(t -> t
-                        .field("fromUserId")
-                        .value(userId)
-                ))
-                .should(s -> s.term(t -> t
-                        .field("toUserId")
-                        .value(userId)
-                ))
-                .minimumShouldMatch("1")  // 至少匹配一个 should 条件
-        ));
-        
-        NativeQuery nativeQuery = NativeQuery.builder()
-                .withQuery(query)
-                .build();
-        
-        SearchHits<MessageDocument> hits = elasticsearchOperations.search(nativeQuery, MessageDocument.class);
-        
-        return hits.stream()
-                .map(SearchHit::getContent)
+    public void indexMessages(List<Message> messages, long generation) {
+        List<MessageDocument> docs = messages.stream()
+                .map(this::convertToDocument)
                 .collect(Collectors.toList());
+        if (!bulkIndexTask.bulkIndexWithRetry(docs, generation, false)) {
+            throw new RuntimeException("批量索引失败：" + docs.size() + " 条");
+        }
     }
     
+    /**
+     * 分页搜索：按相关度（或时间）排序，search_after 游标翻页，
+     * 只返回 id 和高亮片段（不取 content 原文），命中总数统计到上限为止；
+     * 指定时间范围时只查询覆盖到的月份分区
+     */
     @Override
-    public List<MessageDocument> searchGroupMessages(String groupId, String keyword) {
-        // 使用原生查询，利用 IK 分词的 match 查询
-        Query query = Query.of(q -> q.bool(b -> b
-                .must(m -> m.match(mt -> mt
-                        .field("content")
-                        .query(keyword)  // IK 分词的 match 查询
-                ))
-                .must(m -> m.term(t -> t
+    public MessageSearchResponse search(String userId, MessageSearchRequest request) {
+        String keyword = request.getKeyword();
+        String groupId = request.getGroupId();
+        LocalDateTime from = request.getFrom();
+        LocalDateTime to = request.getTo();
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new IllegalArgumentException("开始时间不能晚于结束时间");
+        }
+        Query query = groupId != null && !groupId.isEmpty()
+                ? groupQuery(groupId, keyword)
+                : userQuery(userId, keyword);
+        if (from != null || to != null) {
+            query = withTimeRange(query, from, to);
+        }
+        Integer size = request.getSize();
+        int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+
+        IndexCoordinates indices = partitionManager.searchIndices(from, to);
+        if (indices == null) {
+            // 时间范围内没有任何分区（已过保留期或尚无消息）
+            return MessageSearchResponse.builder()
+                    .hits(new ArrayList<>())
+                    .total(0L)
+                    .totalRelation("eq")
+                    .hasMore(false)
+                    .build();
+        }
+
+        NativeQueryBuilder builder = NativeQuery.builder()
+                .withQuery(query)
+                .withMaxResults(pageSize + 1)  // 多取一条判断是否还有下一页
+                .withTrackTotalHitsUpTo(trackTotalHitsUpTo)
+                .withSourceFilter(new FetchSourceFilterBuilder().withExcludes("content").build())
+                .withHighlightQuery(HIGHLIGHT_QUERY);
+        if (!SORT_TIME.equals(request.getSort())) {
+            builder.withSort(s -> s.score(sc -> sc.order(SortOrder.Desc)));
+        }
+        // 雪花 id 按时间递增，同时作为相同分数时的唯一排序键
+        builder.withSort(s -> s.field(f -> f.field("id").order(SortOrder.Desc)));
+        String cursor = request.getCursor();
+        if (cursor != null && !cursor.isEmpty()) {
+            builder.withSearchAfter(decodeCursor(cursor));
+        }
+
+        SearchHits<MessageDocument> searchHits = elasticsearchOperations.search(builder.build(), MessageDocument.class, indices);
+        List<SearchHit<MessageDocument>> page = searchHits.getSearchHits();
+        boolean hasMore = page.size() > pageSize;
+        if (hasMore) {
+            page = page.subList(0, pageSize);
+        }
+
+        List<MessageSearchHit> hits = new ArrayList<>(page.size());
+        for (SearchHit<MessageDocument> hit : page) {
+            MessageDocument doc = hit.getContent();
+            hits.add(MessageSearchHit.builder()
+                    .messageId(doc.getMessageId())
+                    .id(doc.getId() != null ? String.valueOf(doc.getId()) : null)
+                    .fromUserId(doc.getFromUserId())
+                    .toUserId(doc.getToUserId())
+                    .groupId(doc.getGroupId())
+                    .messageType(doc.getMessageType())
+                    .createdAt(doc.getCreatedAt())
+                    .highlights(hit.getHighlightField("content"))
+                    .score(Float.isNaN(hit.getScore()) ? null : hit.getScore())
+                    .build());
+        }
+
+        return MessageSearchResponse.builder()
+                .hits(hits)
+                .total(searchHits.getTotalHits())
+                .totalRelation(searchHits.getTotalHitsRelation() == TotalHitsRelation.GREATER_THAN_OR_EQUAL_TO
+                        ? "gte" : "eq")
+                .nextCursor(hasMore ? encodeCursor(page.get(page.size() - 1).getSortValues()) : null)
+                .hasMore(hasMore)
+                .build();
+    }
+
+    /**
+     * 用户相关的所有消息：自己发出或收到的（私聊、AI对话），以及所在群的全部群消息
+     * 群组ID来自成员缓存，一个 terms 过滤覆盖所有群，每次搜索只请求 ES 一次
+     */
+    private Query userQuery(String userId, String keyword) {
+        List<FieldValue> groupIds = groupMembershipCache.getUserGroupIds(userId).stream()
+                .map(FieldValue::of)
+                .collect(Collectors.toList());
+        return Query.of(q -> q.bool(b -> b
+                .must(keywordQuery(keyword))
+                // 用户过滤：发送者、接收者或所在群（filter 不参与评分，可被缓存）
+                .filter(f -> f.bool(fb -> {
+                    fb.should(s -> s.term(t -> t
+                                    .field("fromUserId")
+                                    .value(userId)
+                            ))
+                            .should(s -> s.term(t -> t
+                                    .field("toUserId")
+                                    .value(userId)
+                            ));
+                    if (!groupIds.isEmpty()) {
+                        fb.should(s -> s.terms(t -> t
+                                .field("groupId")
+                                .terms(tv -> tv.value(groupIds))
+                        ));
+                    }
+                    return fb.minimumShouldMatch("1");
+                }))
+        ));
+    }
+
+    /**
+     * 群组消息
+     */
+    private Query groupQuery(String groupId, String keyword) {
+        return Query.of(q -> q.bool(b -> b
+                .must(keywordQuery(keyword))
+                .filter(f -> f.term(t -> t
                         .field("groupId")
                         .value(groupId)
                 ))
-                .must(m -> m.term(t -> t
+                .filter(f -> f.term(t -> t
                         .field("messageType")
                         .value(2)  // 群聊
                 ))
         ));
-        
-        NativeQuery nativeQuery = NativeQuery.builder()
-                .withQuery(query)
-                .build();
-        
-        return elasticsearchOperations.search(nativeQuery, MessageDocument.class).stream()
-                .map(SearchHit::getContent)
-                .collect(Collectors.toList());
     }
-    
-    @Override
-    public List<MessageDocument> searchAll(String userId, String keyword) {
-        // 搜索该用户所有相关消息（包括私聊、群聊、AI对话）
-        // 使用 bool 查询：支持模糊匹配、通配符、精确匹配
-        Query query = Query.of(q -> q.bool(b -> b
-                // 内容匹配：使用多种匹配方式
-                .must(m -> m.bool(mb -> mb
-                        // 1. IK 分词的 match 查询（适合中文）
-                        .should(s -> s.match(mt -> mt
-                                .field("content")
-                                .query(keyword)
-                        ))
-                        // 2. wildcard 通配符查询（适合英文和短词）
-                        .should(s -> s.wildcard(w -> w
-                                .field("content")
-                                .value("*" + keyword.toLowerCase() + "*")
-                        ))
-                        // 3. match_phrase 短语匹配（精确匹配）
-                        .should(s -> s.matchPhrase(mp -> mp
-                                .field("content")
-                                .query(keyword)
-                        ))
-                        .minimumShouldMatch("1")  // 至少匹配一种方式
+
+    /**
+     * 内容匹配（私聊和群聊搜索共用，同一关键词匹配结果一致）
+     */
+    private Query keywordQuery(String keyword) {
+        return Query.of(q -> q.bool(b -> b
+                // 1. IK 分词的 match 查询（适合中文）
+                .should(s -> s.match(mt -> mt
+                        .field("content")
+                        .query(keyword)
                 ))
-                // 用户过滤：发送者或接收者
-                .should(s -> s.term(t -> t
-                        .field("fromUserId")
-                        .value(userId)
+                // 2. 子串匹配（适合英文和短词），走 wildcard 类型子字段
+                .should(s -> s.wildcard(w -> w
+                        .field(SUBSTRING_FIELD)
+                        .value("*" + escapeWildcard(keyword) + "*")
+                        .caseInsensitive(true)
                 ))
-                .should(s -> s.term(t -> t
-                        .field("toUserId")
-                        .value(userId)
+                // 3. match_phrase 短语匹配（精确匹配）
+                .should(s -> s.matchPhrase(mp -> mp
+                        .field("content")
+                        .query(keyword)
                 ))
-                .minimumShouldMatch("1")  // 至少匹配一个 should 条件（发送者或接收者）
+                .minimumShouldMatch("1")  // 至少匹配一种方式
+        ));
+    }
+
+    /**
+     * 附加 createdAt 时间范围过滤（与分区路由配合，分区内再按精确时间过滤）
+     */
+    private Query withTimeRange(Query query, LocalDateTime from, LocalDateTime to) {
+        return Query.of(q -> q.bool(b -> b
+                .must(query)
+                .filter(f -> f.range(r -> r.date(d -> {
+                    d.field("createdAt");
+                    if (from != null) {
+                        d.gte(from.toString());
+                    }
+                    if (to != null) {
+                        d.lte(to.toString());
+                    }
+                    return d;
+                })))
         ));
-        
+    }
+
+    /**
+     * 转义用户输入中的通配符，只做字面子串匹配
+     */
+    private String escapeWildcard(String keyword) {
+        StringBuilder escaped = new StringBuilder(keyword.length());
+        for (char c : keyword.toCharArray()) {
+            if (c == '*' || c == '?' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * 子串查询压测：在当前索引上对比旧写法（分词字段前导通配符）和 wildcard 子字段的延迟
+     */
+    @Override
+    public Map<String, Object> benchmarkSubstringQuery(String keyword, int iterations) {
+        Query legacy = Query.of(q -> q.wildcard(w -> w
+                .field("content")
+                .value("*" + keyword.toLowerCase() + "*")));
+        Query subfield = Query.of(q -> q.wildcard(w -> w
+                .field(SUBSTRING_FIELD)
+                .value("*" + escapeWildcard(keyword) + "*")
+                .caseInsensitive(true)));
+
+        // 预热，之后交替执行，避免先后顺序带来的缓存偏差
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            timeQuery(legacy);
+            timeQuery(subfield);
+        }
+        long[] legacyNanos = new long[iterations];
+        long[] subfieldNanos = new long[iterations];
+        long legacyHits = 0;
+        long subfieldHits = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            legacyHits = timeQuery(legacy);
+            legacyNanos[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            subfieldHits = timeQuery(subfield);
+            subfieldNanos[i] = System.nanoTime() - start;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("keyword", keyword);
+        result.put("iterations", iterations);
+        result.put("documents", elasticsearchOperations.count(NativeQuery.builder().withQuery(Query.of(q -> q.matchAll(m -> m))).build(), MessageDocument.class));
+        result.put("legacyWildcard", latencySummary(legacyNanos, legacyHits));
+        result.put("wildcardSubfield", latencySummary(subfieldNanos, subfieldHits));
+        return result;
+    }
+
+    private long timeQuery(Query query) {
         NativeQuery nativeQuery = NativeQuery.builder()
                 .withQuery(query)
-                .withMaxResults(100)  // 限制最多返回100条结果
+                .withMaxResults(defaultPageSize)
+                .withTrackTotalHitsUpTo(trackTotalHitsUpTo)
+                .withRequestCache(false)
                 .build();
-        
-        System.out.println("🔍 执行搜索查询 - userId: " + userId + ", keyword: " + keyword);
-        
-        SearchHits<MessageDocument> hits = elasticsearchOperations.search(nativeQuery, MessageDocument.class);
-        List<MessageDocument> results = hits.stream()
-                .map(SearchHit::getContent)
-                .collect(Collectors.toList());
-        
-        System.out.println("📊 ES 返回结果数: " + results.size());
-        
-        // 打印前3条结果作为调试
-        if (results.isEmpty()) {
-            System.out.println("⚠️ 未找到任何结果，可能原因：");
-            System.out.println("   1. ES 索引中没有数据");
-            System.out.println("   2. 用户 " + userId + " 没有相关消息");
-            System.out.println("   3. 关键词 '" + keyword + "' 不匹配任何内容");
-        } else {
-            System.out.println("📝 前3条结果示例：");
-            for (int i = 0; i < Math.min(3, results.size()); i++) {
-                MessageDocument doc = results.get(i);
-                String preview = doc.getContent() != null && doc.getContent().length() > 30
-                        ? doc.getContent().substring(0, 30) + "..."
-                        : doc.getContent();
-                System.out.println("   [" + (i + 1) + "] from=" + doc.getFromUserId() + 
-                                 ", content=" + preview);
-            }
+        return elasticsearchOperations.search(nativeQuery, MessageDocument.class).getTotalHits();
+    }
+
+    private Map<String, Object> latencySummary(long[] nanos, long hits) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
         }
-        
-        return results;
-    }   
-    
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("hits", hits);
+        summary.put("avgMillis", sorted.length > 0 ? total / sorted.length / 1_000_000.0 : 0);
+        summary.put("p50Millis", sorted.length > 0 ? sorted[sorted.length / 2] / 1_000_000.0 : 0);
+        summary.put("p95Millis", sorted.length > 0 ? sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.95))] / 1_000_000.0 : 0);
+        summary.put("maxMillis", sorted.length > 0 ? sorted[sorted.length - 1] / 1_000_000.0 : 0);
+        return summary;
+    }
+
+    private String encodeCursor(List<Object> sortValues) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(sortValues));
+        } catch (Exception e) {
+            throw new IllegalStateException("生成搜索游标失败", e);
+        }
+    }
+
+    private List<Object> decodeCursor(String cursor) {
+        try {
+            return objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), new TypeReference<List<Object>>() {
+            });
+        } catch (Exception e) {
+            throw new IllegalArgumentException("搜索游标无效");
+        }
+    }
+
     /**
      * 将 Message 转换为 MessageDocument
      */
     private MessageDocument convertToDocument(Message message) {
         return MessageDocument.builder()
                 .messageId(message.getMessageId())
+                .id(message.getId())
                 .fromUserId(message.getFromUserId())
                 .toUserId(message.getToUserId())
                 .groupId(message.getGroupId())
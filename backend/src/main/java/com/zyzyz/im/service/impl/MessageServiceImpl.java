@@ -1,12 +1,19 @@
 package com.zyzyz.im.service.impl;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.Collections;
 import java.util.List;
 import org.springframework.stereotype.Service;
 
 import com.zyzyz.im.mapper.MessageMapper;
 import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.RecentMessageCache;
 import com.zyzyz.im.service.MessageService;
+import com.zyzyz.im.task.MessageWriteBehindTask;
+
+import cn.hutool.core.util.IdUtil;
 
 @Service
 public class MessageServiceImpl implements MessageService {
@@ -14,9 +21,27 @@ public class MessageServiceImpl implements MessageService {
     @Autowired
     private MessageMapper messageMapper;
 
+    @Autowired
+    private MessageWriteBehindTask messageWriteBehindTask;
+
+    @Autowired
+    private RecentMessageCache recentMessageCache;
+
+    @Value("${message.history.defaultPageSize:50}")
+    private int defaultPageSize;
+
+    @Value("${message.history.maxPageSize:200}")
+    private int maxPageSize;
+
+    /**
+     * 异步持久化：先分配雪花ID（投递前即可确定消息ID），再交给写缓冲组提交
+     */
     @Override
     public void insert(Message message) {
-        messageMapper.insert(message);
+        if (message.getId() == null) {
+            message.setId(IdUtil.getSnowflakeNextId());
+        }
+        messageWriteBehindTask.submit(message);
     }
 
     @Override
@@ -30,28 +55,50 @@ public class MessageServiceImpl implements MessageService {
     }
     
     @Override
-    public List<Message> selectUnreadByUserId(String userId) {
-        return messageMapper.selectUnreadByUserId(userId);
-    }
-    
-    @Override
-    public void updateStatus(String messageId, Integer status) {
-        messageMapper.updateStatus(messageId, status);
+    public List<Message> selectByUsersPage(String fromUserId, String toUserId, Long beforeId, Long afterId, Integer limit) {
+        int size = pageSize(limit);
+        if (beforeId == null && afterId == null) {
+            // 最近一页走缓存
+            List<Message> cached = recentMessageCache.getPrivatePage(fromUserId, toUserId, size);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<Message> messages = messageMapper.selectByUsersPage(fromUserId, toUserId, beforeId, afterId, size);
+        return ascending(messages, afterId);
     }
     
     @Override
-    public void batchUpdateStatusByUsers(String fromUserId, String toUserId) {
-        messageMapper.batchUpdateStatusByUsers(fromUserId, toUserId);
+    public List<Message> selectByGroupIdPage(String groupId, Long beforeId, Long afterId, Integer limit) {
+        int size = pageSize(limit);
+        if (beforeId == null && afterId == null) {
+            List<Message> cached = recentMessageCache.getGroupPage(groupId, size);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<Message> messages = messageMapper.selectByGroupIdPage(groupId, beforeId, afterId, size);
+        return ascending(messages, afterId);
     }
     
-    @Override
-    public List<String> selectRecentContactsByUserId(String userId) {
-        return messageMapper.selectRecentContactsByUserId(userId);
+    /**
+     * 每页条数：为空用默认值，超过上限截断
+     */
+    private int pageSize(Integer limit) {
+        if (limit == null || limit <= 0) {
+            return defaultPageSize;
+        }
+        return Math.min(limit, maxPageSize);
     }
     
-    @Override
-    public List<Message> selectByGroupId(String groupId) {
-        return messageMapper.selectByGroupId(groupId);
+    /**
+     * 倒序查询的结果翻转为正序，方便前端直接拼接
+     */
+    private List<Message> ascending(List<Message> messages, Long afterId) {
+        if (afterId == null) {
+            Collections.reverse(messages);
+        }
+        return messages;
     }
     
     @Override
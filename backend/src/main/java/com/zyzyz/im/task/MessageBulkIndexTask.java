@@ -0,0 +1,470 @@
+package com.zyzyz.im.task;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.document.MessageDocument;
+import com.zyzyz.im.manager.SearchPartitionManager;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.IndexQuery;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * ES 批量索引管道
+ * 聊天热路径只负责入队，后台线程按条数/字节数/时间阈值合并为 bulk 请求写入 ES，
+ * 失败按指数退避重试，ES 不可用时写入死信文件，恢复后自动重放；
+ * 被 ES 拒绝的文档（4xx，如映射冲突）不再重试，写入隔离文件等待人工处理
+ */
+@Component
+@ConditionalOnProperty(name = "search.engine", havingValue = "elasticsearch", matchIfMissing = true)
+public class MessageBulkIndexTask {
+
+    @Autowired
+    private ElasticsearchOperations elasticsearchOperations;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private SearchPartitionManager partitionManager;
+
+    @Value("${search.index.queueSize:20000}")
+    private int queueSize;
+
+    @Value("${search.index.bulkActions:500}")
+    private int bulkActions;
+
+    @Value("${search.index.bulkBytes:5242880}")
+    private long bulkBytes;
+
+    @Value("${search.index.flushIntervalMs:1000}")
+    private long flushIntervalMs;
+
+    @Value("${search.index.maxRetries:3}")
+    private int maxRetries;
+
+    @Value("${search.index.deadLetterFile:./data/es-dead-letter.jsonl}")
+    private String deadLetterFile;
+
+    // 隔离文件：ES 明确拒绝（重试也不会成功）的文档和无法解析的死信行
+    @Value("${search.index.quarantineFile:./data/es-quarantine.jsonl}")
+    private String quarantineFile;
+
+    // 死信文件追加锁：只保护追加和移走文件，重放（含重试等待）期间不持有，
+    // 队列满时在 WebSocket 线程上写死信不会被重放阻塞
+    private final Object deadLetterLock = new Object();
+
+    // 重放锁（避免两次重放并发处理同一个文件）
+    private final Object replayLock = new Object();
+
+    private BlockingQueue<PendingDocument> queue;
+    private Thread ingester;
+    private volatile boolean running = false;
+
+    // 统计
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong indexedCount = new AtomicLong();
+    private final AtomicLong bulkCount = new AtomicLong();
+    private final AtomicLong failedBulks = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private final AtomicLong quarantinedCount = new AtomicLong();
+    private final AtomicLong replayFailures = new AtomicLong();
+    private final AtomicLong totalBulkMillis = new AtomicLong();
+    private volatile long lastBulkMillis = 0;
+    private volatile long lastIndexLagMillis = 0;
+    private volatile long maxIndexLagMillis = 0;
+
+    // 实时索引水位：刷新成功且队列已清空时，该 id 及之前入队的消息都已写入 ES（或进入死信文件）
+    private final AtomicLong indexedHighWaterMark = new AtomicLong();
+
+    /**
+     * 待索引文档（记录入队时间用于计算索引延迟）
+     */
+    private record PendingDocument(MessageDocument document, long enqueuedAt, long estimatedBytes) {
+    }
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueSize);
+        running = true;
+        ingester = new Thread(this::runIngester, "es-bulk-indexer");
+        ingester.start();
+    }
+
+    /**
+     * 文档入队（不阻塞），队列满时直接写入死信文件，稍后重放
+     */
+    public void enqueue(MessageDocument document) {
+        PendingDocument pending = new PendingDocument(document, System.currentTimeMillis(), estimateBytes(document));
+        if (running && queue.offer(pending)) {
+            enqueuedCount.incrementAndGet();
+            return;
+        }
+        writeDeadLetter(List.of(document));
+    }
+
+    private void runIngester() {
+        List<PendingDocument> batch = new ArrayList<>(bulkActions);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingDocument first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long bytes = first.estimatedBytes();
+
+                // 任一阈值（条数 / 字节数 / 时间）触发即刷新
+                long deadline = first.enqueuedAt() + flushIntervalMs;
+                while (batch.size() < bulkActions && bytes < bulkBytes && running) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    PendingDocument next = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.MILLISECONDS)
+                            : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    bytes += next.estimatedBytes();
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                writeDeadLetter(batch.stream().map(PendingDocument::document).collect(Collectors.toList()));
+                break;
+            } catch (Exception e) {
+                System.err.println("ES 批量索引线程异常: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingDocument> batch) {
+        List<MessageDocument> documents = batch.stream()
+                .map(PendingDocument::document)
+                .collect(Collectors.toList());
+        if (bulkIndexWithRetry(documents)) {
+            long lag = System.currentTimeMillis() - batch.get(0).enqueuedAt();
+            lastIndexLagMillis = lag;
+            maxIndexLagMillis = Math.max(maxIndexLagMillis, lag);
+            if (queue.isEmpty()) {
+                documents.stream()
+                        .map(MessageDocument::getId)
+                        .filter(id -> id != null)
+                        .max(Long::compare)
+                        .ifPresent(id -> indexedHighWaterMark.accumulateAndGet(id, Math::max));
+            }
+        } else {
+            writeDeadLetter(documents);
+        }
+    }
+
+    /**
+     * 同步批量索引到当前代的月份分区（不触发 refresh），失败按指数退避重试
+     *
+     * @return 是否成功
+     */
+    public boolean bulkIndexWithRetry(List<MessageDocument> documents) {
+        return bulkIndexWithRetry(documents, partitionManager.currentGeneration(), true);
+    }
+
+    /**
+     * 同步批量索引到指定代的月份分区，失败按指数退避重试
+     * 第 0 代（尚未分区）直接写读别名对应的旧索引
+     *
+     * @param attach 新建分区是否加入读别名（全量重建写入下一代时为 false）
+     * @return 是否成功
+     */
+    public boolean bulkIndexWithRetry(List<MessageDocument> documents, long generation, boolean attach) {
+        if (documents.isEmpty()) {
+            return true;
+        }
+        IndexCoordinates index = IndexCoordinates.of(partitionManager.getAlias());
+        List<MessageDocument> pending = documents;
+        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            List<IndexQuery> queries;
+            try {
+                queries = pending.stream()
+                        .map(doc -> new IndexQueryBuilder()
+                                .withId(doc.getMessageId())
+                                .withObject(doc)
+                                .withIndex(generation > 0
+                                        ? partitionManager.writeIndex(generation, doc.getCreatedAt(), attach)
+                                        : null)
+                                .build())
+                        .collect(Collectors.toList());
+            } catch (Exception e) {
+                failedBulks.incrementAndGet();
+                System.err.println("❌ 创建消息索引分区失败: " + e.getMessage());
+                return false;
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                elasticsearchOperations.bulkIndex(queries, index);
+                long cost = System.currentTimeMillis() - start;
+                lastBulkMillis = cost;
+                totalBulkMillis.addAndGet(cost);
+                bulkCount.incrementAndGet();
+                indexedCount.addAndGet(pending.size());
+                return true;
+            } catch (BulkFailureException e) {
+                // 部分文档失败：其余已写入；被拒绝的（4xx）移入隔离文件，只重试可恢复的失败
+                failedBulks.incrementAndGet();
+                List<MessageDocument> rejected = new ArrayList<>();
+                List<MessageDocument> retryable = new ArrayList<>();
+                for (MessageDocument doc : pending) {
+                    BulkFailureException.FailureDetails failure = e.getFailedDocuments().get(doc.getMessageId());
+                    if (failure == null) {
+                        continue;
+                    }
+                    if (isRejected(failure.status())) {
+                        rejected.add(doc);
+                    } else {
+                        retryable.add(doc);
+                    }
+                }
+                indexedCount.addAndGet(pending.size() - rejected.size() - retryable.size());
+                if (!rejected.isEmpty()) {
+                    System.err.println("❌ ES 拒绝 " + rejected.size() + " 条文档，移入隔离文件: " + e.getMessage());
+                    quarantine(rejected);
+                }
+                if (retryable.isEmpty()) {
+                    return true;
+                }
+                pending = retryable;
+                System.err.println("❌ ES 批量索引部分失败（第 " + attempt + " 次，" + retryable.size() + " 条待重试）");
+                if (attempt < maxRetries && !sleepBeforeRetry(attempt)) {
+                    return false;
+                }
+            } catch (Exception e) {
+                failedBulks.incrementAndGet();
+                System.err.println("❌ ES 批量索引失败（第 " + attempt + " 次，" + pending.size() + " 条）: " + e.getMessage());
+                if (attempt < maxRetries && !sleepBeforeRetry(attempt)) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 4xx（429 限流除外）表示文档本身有问题，重试不会成功
+     */
+    private boolean isRejected(Integer status) {
+        return status != null && status >= 400 && status < 500 && status != 429;
+    }
+
+    private boolean sleepBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(500L << (attempt - 1));
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /**
+     * 实时索引水位（最大的已确认写入的消息 id）
+     */
+    public long getIndexedHighWaterMark() {
+        return indexedHighWaterMark.get();
+    }
+
+    /**
+     * 写入死信文件（每行一条 JSON）
+     */
+    private void writeDeadLetter(List<MessageDocument> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        try {
+            Path path = Paths.get(deadLetterFile);
+            appendLines(path, toLines(documents));
+            deadLetterCount.addAndGet(documents.size());
+            System.err.println("⚠️ " + documents.size() + " 条文档已写入死信文件: " + path.toAbsolutePath());
+        } catch (Exception e) {
+            System.err.println("❌ 写入死信文件失败，丢失 " + documents.size() + " 条: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 被 ES 拒绝的文档写入隔离文件（不再重放）
+     */
+    private void quarantine(List<MessageDocument> documents) {
+        try {
+            quarantineLines(toLines(documents));
+        } catch (Exception e) {
+            System.err.println("❌ 写入隔离文件失败，丢失 " + documents.size() + " 条: " + e.getMessage());
+        }
+    }
+
+    private void quarantineLines(List<String> lines) throws IOException {
+        Path path = Paths.get(quarantineFile);
+        appendLines(path, lines);
+        quarantinedCount.addAndGet(lines.size());
+        System.err.println("⚠️ " + lines.size() + " 条文档已写入隔离文件: " + path.toAbsolutePath());
+    }
+
+    private List<String> toLines(List<MessageDocument> documents) throws IOException {
+        List<String> lines = new ArrayList<>(documents.size());
+        for (MessageDocument document : documents) {
+            lines.add(objectMapper.writeValueAsString(document));
+        }
+        return lines;
+    }
+
+    private void appendLines(Path path, List<String> lines) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        synchronized (deadLetterLock) {
+            try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * 定时重放死信文件（ES 恢复后自动补齐索引）
+     * 先把死信文件移为 .replaying 再重放，重放期间新的死信写入新文件；ES 不可用时保留 .replaying 下次继续，
+     * 被拒绝的文档和无法解析的行移入隔离文件，不会卡住后续重放
+     */
+    @Scheduled(fixedDelayString = "${search.index.deadLetterReplayMs:60000}")
+    public void replayDeadLetter() {
+        synchronized (replayLock) {
+            Path path = Paths.get(deadLetterFile);
+            Path replaying = Paths.get(deadLetterFile + ".replaying");
+            try {
+                synchronized (deadLetterLock) {
+                    if (!Files.exists(replaying)) {
+                        if (!Files.exists(path)) {
+                            return;
+                        }
+                        Files.move(path, replaying, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                List<MessageDocument> documents = new ArrayList<>();
+                List<String> unreadable = new ArrayList<>();
+                try (BufferedReader reader = Files.newBufferedReader(replaying, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isBlank()) {
+                            continue;
+                        }
+                        try {
+                            documents.add(objectMapper.readValue(line, MessageDocument.class));
+                        } catch (Exception e) {
+                            unreadable.add(line);
+                        }
+                    }
+                }
+                if (!unreadable.isEmpty()) {
+                    quarantineLines(unreadable);
+                }
+                for (int i = 0; i < documents.size(); i += bulkActions) {
+                    if (!bulkIndexWithRetry(documents.subList(i, Math.min(i + bulkActions, documents.size())))) {
+                        replayFailures.incrementAndGet();
+                        // 只保留尚未写入的部分，下次不再重发已成功的批次
+                        rewriteReplaying(replaying, documents.subList(i, documents.size()));
+                        System.err.println("⚠️ ES 仍不可用，死信文件保留待下次重放（剩余 " + (documents.size() - i) + " 条）");
+                        return;
+                    }
+                }
+                Files.delete(replaying);
+                System.out.println("✅ 死信文件重放完成，共 " + documents.size() + " 条");
+            } catch (Exception e) {
+                replayFailures.incrementAndGet();
+                System.err.println("❌ 重放死信文件失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private void rewriteReplaying(Path replaying, List<MessageDocument> remaining) throws IOException {
+        Path tmp = Paths.get(replaying + ".tmp");
+        Files.write(tmp, toLines(remaining), StandardCharsets.UTF_8);
+        Files.move(tmp, replaying, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 估算文档序列化后的字节数（中文按 3 字节计）
+     */
+    private long estimateBytes(MessageDocument document) {
+        int contentLength = document.getContent() != null ? document.getContent().length() : 0;
+        return 256L + contentLength * 3L;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        try {
+            ingester.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ingester.isAlive()) {
+            ingester.interrupt();
+        }
+        List<PendingDocument> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        writeDeadLetter(remaining.stream().map(PendingDocument::document).collect(Collectors.toList()));
+    }
+
+    /**
+     * 索引管道统计信息
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long bulks = bulkCount.get();
+        PendingDocument oldest = queue.peek();
+        stats.put("queueSize", queueSize);
+        stats.put("queueDepth", queue.size());
+        stats.put("oldestPendingMillis", oldest != null ? System.currentTimeMillis() - oldest.enqueuedAt() : 0);
+        stats.put("enqueued", enqueuedCount.get());
+        stats.put("indexed", indexedCount.get());
+        stats.put("bulks", bulks);
+        stats.put("failedBulks", failedBulks.get());
+        stats.put("deadLettered", deadLetterCount.get());
+        stats.put("quarantined", quarantinedCount.get());
+        stats.put("deadLetterReplayFailures", replayFailures.get());
+        stats.put("lastBulkMillis", lastBulkMillis);
+        stats.put("avgBulkMillis", bulks > 0 ? totalBulkMillis.get() / bulks : 0);
+        stats.put("lastIndexLagMillis", lastIndexLagMillis);
+        stats.put("maxIndexLagMillis", maxIndexLagMillis);
+        stats.put("indexedHighWaterMark", indexedHighWaterMark.get());
+        return stats;
+    }
+}
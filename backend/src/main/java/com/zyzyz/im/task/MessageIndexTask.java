@@ -1,97 +1,567 @@
 package com.zyzyz.im.task;
 
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import com.zyzyz.im.document.MessageDocument;
 import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.SearchPartitionManager;
 import com.zyzyz.im.mapper.MessageMapper;
 import com.zyzyz.im.service.MessageSearchService;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.elasticsearch.client.elc.NativeQuery;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.index.PutIndexTemplateRequest;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilterBuilder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 消息索引初始化任务
- * 应用启动时，将所有历史消息索引到 ElasticSearch
+ * 历史消息索引任务
+ * Redis 中保存索引水位（该 id 及之前的消息都已写入 ES），启动时只补齐水位之后的消息；
+ * 按消息 id 游标分批扫描 t_message，多线程并行 bulk，批大小按 bulk 耗时自适应调整。
+ * 全量重建写入下一代月份分区，完成后原子切换别名，重建期间搜索不受影响；
+ * 定时抽检一段消息是否都在 ES 中，发现缺失即补写。进度通过 /admin/reindex 查看
  */
 @Component
+@ConditionalOnProperty(name = "search.engine", havingValue = "elasticsearch", matchIfMissing = true)
 public class MessageIndexTask implements CommandLineRunner {
-    
+
     @Autowired
     private MessageMapper messageMapper;
-    
+
     @Autowired
     private MessageSearchService messageSearchService;
-    
-    private static final int BATCH_SIZE = 500; // 每批处理500条
-    
+
+    @Autowired
+    private MessageBulkIndexTask messageBulkIndexTask;
+
+    @Autowired
+    private ElasticsearchOperations elasticsearchOperations;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SearchPartitionManager partitionManager;
+
+    // 启动时是否补齐水位之后的消息
+    @Value("${search.reindex.onStartup:true}")
+    private boolean onStartup;
+
+    // 并行 bulk 的线程数（同时也是在途批次上限）
+    @Value("${search.reindex.parallelism:4}")
+    private int parallelism;
+
+    @Value("${search.reindex.batchSize:500}")
+    private int initialBatchSize;
+
+    @Value("${search.reindex.minBatchSize:100}")
+    private int minBatchSize;
+
+    @Value("${search.reindex.maxBatchSize:5000}")
+    private int maxBatchSize;
+
+    // 单次 bulk 的目标耗时：明显低于目标时加大批次，超过目标时减半
+    @Value("${search.reindex.targetBulkMillis:1000}")
+    private long targetBulkMillis;
+
+    // 一致性抽检每段检查的消息条数
+    @Value("${search.consistency.sampleSize:200}")
+    private int sampleSize;
+
+    // 索引水位：该 id 及之前的消息都已写入 ES
+    private static final String CHECKPOINT_KEY = "im:reindex:checkpoint";
+
+    // 全量重建中的新一代分区及其断点（重建中断后继续写入同一代）
+    private static final String REBUILD_GENERATION_KEY = "im:reindex:rebuild:generation";
+    private static final String REBUILD_CHECKPOINT_KEY = "im:reindex:rebuild:checkpoint";
+
+    // 多节点同时启动时只有一个节点执行
+    private static final String LOCK_KEY = "im:reindex:lock";
+    private static final long LOCK_TTL_MS = 60_000;
+
+    // 水位只前进不后退（多个节点都会推进）
+    private static final DefaultRedisScript<Long> SET_MAX_SCRIPT = new DefaultRedisScript<>(
+            "local current = tonumber(redis.call('get', KEYS[1]) or '0') "
+                    + "if tonumber(ARGV[1]) > current then redis.call('set', KEYS[1], ARGV[1]) return 1 end "
+                    + "return 0",
+            Long.class);
+
+    private volatile Thread worker;
+    private volatile boolean stopping = false;
+
+    // 进度
+    private volatile String state = "IDLE";
+    private volatile String phase;
+    private volatile String targetIndex;
+    private volatile String checkpointKey = CHECKPOINT_KEY;
+    private volatile String lastError;
+    private volatile long startId;
+    private volatile long targetMaxId;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private final AtomicInteger batchSize = new AtomicInteger();
+    private final AtomicLong checkpointId = new AtomicLong();
+    private final AtomicLong scannedCount = new AtomicLong();
+    private final AtomicLong indexedCount = new AtomicLong();
+    private final AtomicLong bulkCount = new AtomicLong();
+    private final AtomicLong failedBulks = new AtomicLong();
+    private final AtomicLong totalBulkMillis = new AtomicLong();
+
+    // 在途批次的起始 id，最小值之前的消息都已完成，用于推进断点
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+    // 一致性抽检统计
+    private final AtomicLong sampleRuns = new AtomicLong();
+    private final AtomicLong sampledCount = new AtomicLong();
+    private final AtomicLong missingFound = new AtomicLong();
+    private final AtomicLong repairedCount = new AtomicLong();
+    private volatile long lastSampleAt;
+
     @Override
-    public void run(String... args) throws Exception {
+    public void run(String... args) {
+        ensureIndexTemplate();
         try {
-            System.out.println("========================================");
-            System.out.println("开始索引历史消息到 ElasticSearch...");
-            System.out.println("========================================");
-            
-            // 查询所有历史消息
-            List<Message> allMessages = messageMapper.selectAll();
-            
-            if (allMessages != null && !allMessages.isEmpty()) {
-                int totalCount = allMessages.size();
-                System.out.println("📊 总共需要索引 " + totalCount + " 条消息");
-                
-                // 显示前3条消息作为示例
-                if (totalCount > 0) {
-                    System.out.println("\n示例消息（前3条）:");
-                    for (int i = 0; i < Math.min(3, totalCount); i++) {
-                        Message msg = allMessages.get(i);
-                        System.out.println("  [" + (i+1) + "] messageId=" + msg.getMessageId() + 
-                                         ", type=" + msg.getMessageType() + 
-                                         ", from=" + msg.getFromUserId() + 
-                                         ", content=" + (msg.getContent() != null && msg.getContent().length() > 20 
-                                                        ? msg.getContent().substring(0, 20) + "..." 
-                                                        : msg.getContent()));
-                    }
-                    System.out.println();
+            partitionManager.initialize();
+        } catch (Exception e) {
+            System.err.println("初始化消息索引分区失败：" + e.getMessage());
+        }
+        if (onStartup) {
+            start(false);
+        }
+    }
+
+    /**
+     * 安装索引模板（im_messages_* 新建的物理索引自动使用实体的设置和映射），
+     * 并给当前索引补充新增的 content 子字段（已有文档需全量重建后才有新增子字段）；
+     * 只提交 content 一个字段：旧索引的其他字段类型可能与实体不同（如 createdAt 为 keyword），整体提交会被 ES 拒绝
+     */
+    private void ensureIndexTemplate() {
+        try {
+            IndexOperations entityOps = elasticsearchOperations.indexOps(MessageDocument.class);
+            String alias = partitionManager.getAlias();
+            entityOps.putIndexTemplate(PutIndexTemplateRequest.builder()
+                    .withName(alias + "_template")
+                    .withIndexPatterns(alias + "_*")
+                    .withSettings(entityOps.createSettings())
+                    .withMapping(entityOps.createMapping())
+                    .build());
+            if (entityOps.exists()) {
+                entityOps.putMapping(contentMapping(entityOps.createMapping()));
+            }
+        } catch (Exception e) {
+            System.err.println("安装消息索引模板失败：" + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Document contentMapping(Document mapping) {
+        Map<String, Object> properties = (Map<String, Object>) mapping.get("properties");
+        Document additive = Document.create();
+        additive.put("properties", Map.of("content", properties.get("content")));
+        return additive;
+    }
+
+    /**
+     * 在后台启动索引任务
+     *
+     * @param full true 全量重建到下一代分区并切换别名，false 从水位补齐
+     * @return 是否启动（已有任务在运行时返回 false）
+     */
+    public synchronized boolean start(boolean full) {
+        if (isRunning()) {
+            return false;
+        }
+        stopping = false;
+        worker = new Thread(() -> runReindex(full), "es-reindex");
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    private boolean isRunning() {
+        Thread current = worker;
+        return current != null && current.isAlive();
+    }
+
+    private void runReindex(boolean full) {
+        String lockValue = String.valueOf(System.nanoTime());
+        try {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(LOCK_KEY, lockValue, LOCK_TTL_MS, TimeUnit.MILLISECONDS))) {
+                state = "SKIPPED";
+                System.out.println("⚠️ 其他节点正在重建索引，本节点跳过");
+                return;
+            }
+        } catch (Exception e) {
+            // Redis 不可用时仍然执行（重复写入 ES 是幂等的）
+            System.err.println("获取重建索引锁失败：" + e.getMessage());
+        }
+
+        try {
+            if (full) {
+                long rebuildGeneration = prepareRebuildGeneration();
+                phase = "REBUILD";
+                if (!scan(rebuildGeneration, REBUILD_CHECKPOINT_KEY)) {
+                    return;
                 }
-                
-                // 分批索引
-                int batchCount = 0;
-                int indexedCount = 0;
-                
-                for (int i = 0; i < totalCount; i += BATCH_SIZE) {
-                    int end = Math.min(i + BATCH_SIZE, totalCount);
-                    List<Message> batch = allMessages.subList(i, end);
-                    
+                partitionManager.switchGeneration(rebuildGeneration);
+                // 新一代的水位即重建断点，之后的消息（重建期间写入旧分区的）由下面的增量补齐
+                stringRedisTemplate.opsForValue().set(CHECKPOINT_KEY, String.valueOf(checkpointId.get()));
+                stringRedisTemplate.delete(List.of(REBUILD_GENERATION_KEY, REBUILD_CHECKPOINT_KEY));
+                // 等其他节点刷新到新一代，切换前后写入旧分区的消息都由增量补齐
+                Thread.sleep(partitionManager.getRefreshMs());
+            }
+            phase = "CATCH_UP";
+            scan(null, CHECKPOINT_KEY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = "STOPPED";
+        } catch (Exception e) {
+            state = "FAILED";
+            lastError = e.getMessage();
+            System.err.println("❌ 重建索引失败（不影响系统运行）：" + e.getMessage());
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            releaseLock(lockValue);
+        }
+    }
+
+    /**
+     * 从断点扫描到当前最大 id 并写入 ES
+     *
+     * @param generation 目标分区代，null 表示写入当前代（搜索正在使用的分区）
+     * @return 是否全部完成
+     */
+    private boolean scan(Long generation, String key) throws InterruptedException {
+        resetProgress(generation, key);
+        Long maxId = messageMapper.selectMaxId();
+        targetMaxId = maxId != null ? maxId : 0;
+        System.out.println("========================================");
+        System.out.println("开始索引消息（" + phase + "）：从 id > " + startId + " 到 " + targetMaxId
+                + "（并行 " + parallelism + "，初始批大小 " + batchSize.get() + "）");
+        System.out.println("========================================");
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "es-reindex-bulk");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore permits = new Semaphore(parallelism);
+        try {
+            long cursor = startId;
+            while (cursor < targetMaxId && !stopping && lastError == null) {
+                permits.acquire();
+                List<Message> batch = messageMapper.selectAfterId(cursor, targetMaxId, batchSize.get());
+                if (batch.isEmpty()) {
+                    permits.release();
+                    break;
+                }
+                long firstId = batch.get(0).getId();
+                cursor = batch.get(batch.size() - 1).getId();
+                long lastId = cursor;
+                scannedCount.addAndGet(batch.size());
+                inFlight.add(firstId);
+                executor.execute(() -> {
                     try {
-                        messageSearchService.indexMessages(batch);
-                        batchCount++;
-                        indexedCount += batch.size();
-                        
-                        System.out.println("✅ 第 " + batchCount + " 批索引完成：" + 
-                                         batch.size() + " 条 (总进度: " + indexedCount + "/" + totalCount + ")");
-                    } catch (Exception e) {
-                        System.err.println("❌ 第 " + (batchCount + 1) + " 批索引失败: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                    
-                    // 稍微延迟，避免对 ES 造成压力
-                    if (i + BATCH_SIZE < totalCount) {
-                        Thread.sleep(100);
+                        // 失败或被跳过的批次留在 inFlight 中，断点不会越过它
+                        if (indexBatch(batch, generation)) {
+                            inFlight.remove(firstId);
+                            advanceCheckpoint(lastId);
+                        }
+                    } finally {
+                        permits.release();
                     }
-                }
-                
-                System.out.println("========================================");
-                System.out.println("🎉 历史消息索引完成！共索引 " + indexedCount + " 条消息，分 " + batchCount + " 批完成");
-                System.out.println("========================================");
+                });
+            }
+
+            // 等待在途批次完成
+            permits.acquire(parallelism);
+            permits.release(parallelism);
+        } finally {
+            executor.shutdown();
+            saveCheckpoint();
+        }
+
+        if (lastError != null) {
+            state = "FAILED";
+            System.err.println("❌ 索引中断，已完成至 id " + checkpointId.get() + "，下次从断点继续：" + lastError);
+            return false;
+        }
+        if (stopping) {
+            state = "STOPPED";
+            System.out.println("⚠️ 索引已停止，已完成至 id " + checkpointId.get());
+            return false;
+        }
+        state = "COMPLETED";
+        System.out.println("========================================");
+        System.out.println("🎉 索引完成（" + phase + "）！共索引 " + indexedCount.get() + " 条消息，"
+                + bulkCount.get() + " 批，耗时 " + (System.currentTimeMillis() - startedAt) + " ms");
+        System.out.println("========================================");
+        return true;
+    }
+
+    private void resetProgress(Long generation, String key) {
+        String saved = stringRedisTemplate.opsForValue().get(key);
+        long checkpoint = saved != null ? Long.parseLong(saved) : 0;
+        state = "RUNNING";
+        lastError = null;
+        targetIndex = generation != null ? partitionManager.getAlias() + "_g" + generation + "_*" : null;
+        checkpointKey = key;
+        startId = checkpoint;
+        checkpointId.set(checkpoint);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        batchSize.set(initialBatchSize);
+        scannedCount.set(0);
+        indexedCount.set(0);
+        bulkCount.set(0);
+        failedBulks.set(0);
+        totalBulkMillis.set(0);
+        inFlight.clear();
+    }
+
+    /**
+     * 准备全量重建的新一代分区（上次重建未完成时继续写入同一代）
+     */
+    private long prepareRebuildGeneration() {
+        long current = partitionManager.currentGeneration();
+        String existing = stringRedisTemplate.opsForValue().get(REBUILD_GENERATION_KEY);
+        if (existing != null && Long.parseLong(existing) > current) {
+            System.out.println("继续未完成的全量重建：第 " + existing + " 代分区");
+            return Long.parseLong(existing);
+        }
+        long rebuildGeneration = current + 1;
+        stringRedisTemplate.opsForValue().set(REBUILD_GENERATION_KEY, String.valueOf(rebuildGeneration));
+        stringRedisTemplate.delete(REBUILD_CHECKPOINT_KEY);
+        System.out.println("开始全量重建：第 " + rebuildGeneration + " 代分区");
+        return rebuildGeneration;
+    }
+
+    private boolean indexBatch(List<Message> batch, Long generation) {
+        if (lastError != null || stopping) {
+            return false;
+        }
+        // 保留期之前的消息不再写入（对应分区已被清理）
+        List<Message> retained = batch.stream()
+                .filter(message -> partitionManager.isRetained(message.getCreatedAt()))
+                .toList();
+        if (retained.isEmpty()) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if (generation != null) {
+                messageSearchService.indexMessages(retained, generation);
             } else {
-                System.out.println("⚠️ 没有历史消息需要索引");
+                messageSearchService.indexMessages(retained);
             }
         } catch (Exception e) {
-            System.err.println("========================================");
-            System.err.println("❌ 索引历史消息失败（不影响系统运行）");
-            System.err.println("错误信息: " + e.getMessage());
-            System.err.println("========================================");
-            e.printStackTrace();
+            failedBulks.incrementAndGet();
+            lastError = e.getMessage();
+            return false;
         }
+        long cost = System.currentTimeMillis() - start;
+        totalBulkMillis.addAndGet(cost);
+        bulkCount.incrementAndGet();
+        indexedCount.addAndGet(retained.size());
+        adjustBatchSize(cost);
+        return true;
+    }
+
+    /**
+     * 自适应批大小：耗时低于目标一半时加倍，超过目标时减半
+     */
+    private void adjustBatchSize(long costMillis) {
+        if (costMillis < targetBulkMillis / 2) {
+            batchSize.updateAndGet(size -> Math.min(size * 2, maxBatchSize));
+        } else if (costMillis > targetBulkMillis) {
+            batchSize.updateAndGet(size -> Math.max(size / 2, minBatchSize));
+        }
+    }
+
+    /**
+     * 推进断点：在途批次中最小起始 id 之前的消息都已完成
+     */
+    private synchronized void advanceCheckpoint(long completedLastId) {
+        long checkpoint = inFlight.isEmpty() ? completedLastId : inFlight.first() - 1;
+        if (checkpoint > checkpointId.get()) {
+            checkpointId.set(checkpoint);
+            saveCheckpoint();
+        }
+    }
+
+    private void saveCheckpoint() {
+        try {
+            stringRedisTemplate.execute(SET_MAX_SCRIPT, List.of(checkpointKey), String.valueOf(checkpointId.get()));
+            stringRedisTemplate.expire(LOCK_KEY, LOCK_TTL_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("保存索引水位失败：" + e.getMessage());
+        }
+    }
+
+    private void releaseLock(String lockValue) {
+        try {
+            if (lockValue.equals(stringRedisTemplate.opsForValue().get(LOCK_KEY))) {
+                stringRedisTemplate.delete(LOCK_KEY);
+            }
+        } catch (Exception e) {
+            System.err.println("释放重建索引锁失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 用实时索引管道的水位推进 Redis 水位，下次启动无需重扫运行期间的新消息
+     * 只有本节点补齐完成后才推进，否则会越过尚未补齐的历史消息
+     */
+    @Scheduled(fixedDelayString = "${search.reindex.hwmSaveIntervalMs:10000}")
+    public void saveLiveHighWaterMark() {
+        if (isRunning() || !"COMPLETED".equals(state) || !CHECKPOINT_KEY.equals(checkpointKey)) {
+            return;
+        }
+        long live = messageBulkIndexTask.getIndexedHighWaterMark();
+        if (live > checkpointId.get()) {
+            checkpointId.set(live);
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * 一致性抽检：随机一段 + 水位前的最近一段消息，检查是否都在 ES 中，缺失的直接补写
+     * 覆盖实时索引队列在进程崩溃时丢失的消息
+     */
+    @Scheduled(initialDelayString = "${search.consistency.intervalMs:600000}",
+            fixedDelayString = "${search.consistency.intervalMs:600000}")
+    public void sampleConsistency() {
+        if (isRunning()) {
+            return;
+        }
+        try {
+            String saved = stringRedisTemplate.opsForValue().get(CHECKPOINT_KEY);
+            long highWaterMark = saved != null ? Long.parseLong(saved) : 0;
+            Long minId = messageMapper.selectMinId();
+            if (highWaterMark <= 0 || minId == null || minId > highWaterMark) {
+                return;
+            }
+            sampleRuns.incrementAndGet();
+            lastSampleAt = System.currentTimeMillis();
+            long randomFrom = minId - 1 + ThreadLocalRandom.current().nextLong(highWaterMark - minId + 1);
+            checkWindow(messageMapper.selectAfterId(randomFrom, highWaterMark, sampleSize));
+            List<Message> recent = messageMapper.selectUpToId(highWaterMark, sampleSize);
+            checkWindow(recent);
+        } catch (Exception e) {
+            System.err.println("索引一致性抽检失败：" + e.getMessage());
+        }
+    }
+
+    private void checkWindow(List<Message> window) {
+        List<Message> sample = window.stream()
+                .filter(message -> partitionManager.isRetained(message.getCreatedAt()))
+                .toList();
+        if (sample.isEmpty()) {
+            return;
+        }
+        sampledCount.addAndGet(sample.size());
+        List<String> ids = sample.stream().map(Message::getMessageId).toList();
+        // 别名指向多个分区，不能用 multi-get，改用 ids 查询
+        NativeQuery query = NativeQuery.builder()
+                .withQuery(Query.of(q -> q.ids(i -> i.values(ids))))
+                .withMaxResults(ids.size())
+                .withSourceFilter(new FetchSourceFilterBuilder().withIncludes("messageId").build())
+                .build();
+        Set<String> found = new HashSet<>();
+        for (SearchHit<MessageDocument> hit : elasticsearchOperations.search(query, MessageDocument.class)) {
+            found.add(hit.getId());
+        }
+        List<Message> missing = sample.stream()
+                .filter(message -> !found.contains(message.getMessageId()))
+                .toList();
+        if (missing.isEmpty()) {
+            return;
+        }
+        missingFound.addAndGet(missing.size());
+        System.err.println("⚠️ 索引抽检发现 " + missing.size() + " 条消息未写入 ES，正在补写");
+        messageSearchService.indexMessages(missing);
+        repairedCount.addAndGet(missing.size());
+    }
+
+    /**
+     * 停止重建（在途批次完成后退出，断点保留）
+     */
+    public void stop() {
+        stopping = true;
     }
-}
 
+    @PreDestroy
+    public void shutdown() {
+        stop();
+        Thread current = worker;
+        if (current != null) {
+            try {
+                current.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 索引任务进度与一致性抽检统计
+     */
+    public Map<String, Object> getProgress() {
+        long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+        long elapsed = startedAt > 0 ? end - startedAt : 0;
+        long bulks = bulkCount.get();
+        long checkpoint = checkpointId.get();
+        long span = targetMaxId - startId;
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("phase", phase);
+        progress.put("targetIndex", targetIndex != null ? targetIndex : partitionManager.getAlias());
+        progress.put("startId", startId);
+        progress.put("targetMaxId", targetMaxId);
+        progress.put("checkpointId", checkpoint);
+        progress.put("progress", span > 0 ? Math.min(1.0, (double) (checkpoint - startId) / span) : 1.0);
+        progress.put("scanned", scannedCount.get());
+        progress.put("indexed", indexedCount.get());
+        progress.put("bulks", bulks);
+        progress.put("failedBulks", failedBulks.get());
+        progress.put("inFlightBatches", inFlight.size());
+        progress.put("batchSize", batchSize.get());
+        progress.put("avgBulkMillis", bulks > 0 ? totalBulkMillis.get() / bulks : 0);
+        progress.put("docsPerSecond", elapsed > 0 ? indexedCount.get() * 1000 / elapsed : 0);
+        progress.put("elapsedMillis", elapsed);
+        progress.put("lastError", lastError);
+
+        Map<String, Object> consistency = new LinkedHashMap<>();
+        consistency.put("sampleRuns", sampleRuns.get());
+        consistency.put("sampled", sampledCount.get());
+        consistency.put("missingFound", missingFound.get());
+        consistency.put("repaired", repairedCount.get());
+        consistency.put("lastSampleAt", lastSampleAt);
+        progress.put("consistency", consistency);
+        return progress;
+    }
+}
@@ -0,0 +1,333 @@
+package com.zyzyz.im.task;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zyzyz.im.entity.Message;
+import com.zyzyz.im.manager.RecentMessageCache;
+import com.zyzyz.im.mapper.MessageMapper;
+import com.zyzyz.im.service.ConversationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息写缓冲（write-behind）
+ * 聊天消息先进入内存环形缓冲区，由后台线程按条数/时间触发组提交（多行 INSERT），
+ * 投递不再等待 MySQL 往返；写库失败或停机时未写入的消息落盘，启动时及定时重放
+ */
+@Component
+public class MessageWriteBehindTask {
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ConversationService conversationService;
+
+    @Autowired
+    private RecentMessageCache recentMessageCache;
+
+    @Value("${message.persist.bufferSize:10000}")
+    private int bufferSize;
+
+    @Value("${message.persist.batchSize:200}")
+    private int batchSize;
+
+    @Value("${message.persist.flushIntervalMs:50}")
+    private long flushIntervalMs;
+
+    @Value("${message.persist.maxRetries:3}")
+    private int maxRetries;
+
+    @Value("${message.persist.spillFile:./data/message-spill.jsonl}")
+    private String spillFile;
+
+    // 落盘文件追加锁（只保护追加和移走文件，重放写库时不持有，不阻塞写失败的落盘）
+    private final Object spillLock = new Object();
+
+    // 重放锁（启动重放与定时重放不并发）
+    private final Object replayLock = new Object();
+
+    private BlockingQueue<Message> buffer;
+    private Thread flusher;
+    private volatile boolean running = false;
+
+    // 统计
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong spilledRows = new AtomicLong();
+    private final AtomicLong replayedRows = new AtomicLong();
+    private final AtomicLong syncWrites = new AtomicLong();
+    private volatile long lastFlushMillis = 0;
+    private volatile long lastLagMillis = 0;
+
+    @PostConstruct
+    public void start() {
+        buffer = new ArrayBlockingQueue<>(bufferSize);
+        running = true;
+        flusher = new Thread(this::runFlusher, "message-write-behind");
+        flusher.start();
+    }
+
+    /**
+     * 提交一条待持久化的消息（不等待写库）
+     * 缓冲区满时退化为同步写入，保证持久化延迟有上界
+     */
+    public void submit(Message message) {
+        submittedCount.incrementAndGet();
+        if (running && buffer.offer(message)) {
+            return;
+        }
+        syncWrites.incrementAndGet();
+        writeBatch(List.of(message));
+    }
+
+    private void runFlusher() {
+        replaySpillFile();
+
+        List<Message> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                Message first = buffer.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // 组提交：攒够一批或等满一个刷新周期
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+                while (batch.size() < batchSize) {
+                    buffer.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    Message next = buffer.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // 停机超时被中断：当前批次落盘，缓冲区剩余消息由 shutdown 处理
+                spill(batch);
+                break;
+            } catch (Exception e) {
+                System.err.println("写缓冲刷新异常: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 写入一批消息，失败按指数退避重试，最终失败则落盘
+     */
+    private void writeBatch(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            try {
+                messageMapper.batchInsert(batch);
+                flushedBatches.incrementAndGet();
+                flushedRows.addAndGet(batch.size());
+                lastFlushMillis = System.currentTimeMillis() - start;
+                LocalDateTime oldest = batch.get(0).getCreatedAt();
+                if (oldest != null) {
+                    lastLagMillis = Duration.between(oldest, LocalDateTime.now()).toMillis();
+                }
+                updateConversations(batch);
+                appendRecentMessages(batch);
+                return;
+            } catch (Exception e) {
+                System.err.println("❌ 批量写入消息失败（第 " + attempt + " 次）: " + e.getMessage());
+                if (attempt < maxRetries) {
+                    try {
+                        Thread.sleep(100L << (attempt - 1));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        failedBatches.incrementAndGet();
+        spill(batch);
+    }
+
+    /**
+     * 消息落库后增量更新会话列表（失败不影响消息本身）
+     */
+    private void updateConversations(List<Message> batch) {
+        try {
+            conversationService.onMessagesPersisted(batch);
+        } catch (Exception e) {
+            System.err.println("更新会话列表失败（" + batch.size() + " 条）: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 消息落库后追加到最近消息缓存（失败不影响消息本身）
+     */
+    private void appendRecentMessages(List<Message> batch) {
+        try {
+            recentMessageCache.onMessagesPersisted(batch);
+        } catch (Exception e) {
+            System.err.println("更新最近消息缓存失败（" + batch.size() + " 条）: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 将写库失败的消息追加到本地文件（每行一条 JSON）
+     */
+    private void spill(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try {
+            Path path = Paths.get(spillFile);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            List<String> lines = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                lines.add(objectMapper.writeValueAsString(message));
+            }
+            synchronized (spillLock) {
+                try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                }
+            }
+            spilledRows.addAndGet(messages.size());
+            System.err.println("⚠️ " + messages.size() + " 条消息已落盘: " + path.toAbsolutePath());
+        } catch (Exception e) {
+            System.err.println("❌ 消息落盘失败，丢失 " + messages.size() + " 条: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 启动时及定时重放落盘的消息（INSERT IGNORE，重复重放无副作用）
+     * 先把落盘文件移为 .replaying 再重放，重放期间新的落盘写入新文件；失败时保留 .replaying 下次继续
+     */
+    @Scheduled(fixedDelayString = "${message.persist.spillReplayMs:60000}")
+    public void replaySpillFile() {
+        synchronized (replayLock) {
+            Path path = Paths.get(spillFile);
+            Path replaying = Paths.get(spillFile + ".replaying");
+            List<Message> messages = new ArrayList<>();
+            try {
+                synchronized (spillLock) {
+                    if (!Files.exists(replaying)) {
+                        if (!Files.exists(path)) {
+                            return;
+                        }
+                        Files.move(path, replaying, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                try (BufferedReader reader = Files.newBufferedReader(replaying, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            messages.add(objectMapper.readValue(line, Message.class));
+                        }
+                    }
+                }
+                for (int i = 0; i < messages.size(); i += batchSize) {
+                    List<Message> batch = messages.subList(i, Math.min(i + batchSize, messages.size()));
+                    messageMapper.batchInsert(batch);
+                    // 与正常写入相同的落库后处理；补写的是旧消息，最近消息缓存整体失效而不是追加到表头
+                    updateConversations(batch);
+                    invalidateRecentMessages(batch);
+                }
+                Files.delete(replaying);
+                replayedRows.addAndGet(messages.size());
+                System.out.println("✅ 已重放落盘消息 " + messages.size() + " 条");
+            } catch (Exception e) {
+                System.err.println("❌ 重放落盘消息失败（保留文件下次重试）: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 重放的消息落库后清除相关会话的最近消息缓存（失败不影响消息本身）
+     */
+    private void invalidateRecentMessages(List<Message> batch) {
+        try {
+            recentMessageCache.onMessagesReplayed(batch);
+        } catch (Exception e) {
+            System.err.println("清除最近消息缓存失败（" + batch.size() + " 条）: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        try {
+            // 等待后台线程写完缓冲区
+            flusher.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive()) {
+            flusher.interrupt();
+        }
+        List<Message> remaining = new ArrayList<>();
+        buffer.drainTo(remaining);
+        spill(remaining);
+    }
+
+    /**
+     * 写缓冲统计信息
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bufferSize", bufferSize);
+        stats.put("pending", buffer.size());
+        stats.put("batchSize", batchSize);
+        stats.put("flushIntervalMs", flushIntervalMs);
+        stats.put("submitted", submittedCount.get());
+        stats.put("flushedBatches", flushedBatches.get());
+        stats.put("flushedRows", flushedRows.get());
+        stats.put("failedBatches", failedBatches.get());
+        stats.put("spilledRows", spilledRows.get());
+        stats.put("replayedRows", replayedRows.get());
+        stats.put("syncWrites", syncWrites.get());
+        stats.put("lastFlushMillis", lastFlushMillis);
+        stats.put("lastLagMillis", lastLagMillis);
+        return stats;
+    }
+}
@@ -71,10 +71,29 @@ CREATE TABLE IF NOT EXISTS `t_message` (
   KEY `idx_from_user` (`from_user_id`, `created_at`),
   KEY `idx_to_user` (`to_user_id`, `created_at`),
   KEY `idx_group` (`group_id`, `created_at`),
+  KEY `idx_conversation` (`from_user_id`, `to_user_id`, `id`) COMMENT '私聊历史游标分页',
+  KEY `idx_group_id` (`group_id`, `id`) COMMENT '群聊历史游标分页',
   KEY `idx_message_type` (`message_type`),
   KEY `idx_created_at` (`created_at`)
 ) ENGINE=InnoDB COMMENT='消息表';
 
+-- 会话表（每个用户的每个私聊对象 / 群组一行，消息落库时增量更新）
+CREATE TABLE IF NOT EXISTS `t_conversation` (
+  `id` BIGINT UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键ID',
+  `owner_user_id` VARCHAR(64) NOT NULL COMMENT '会话所属用户ID',
+  `conv_type` TINYINT NOT NULL COMMENT '会话类型：1-私聊，2-群聊',
+  `peer_id` VARCHAR(64) NOT NULL COMMENT '私聊对方用户ID / 群组ID',
+  `last_message_id` BIGINT UNSIGNED DEFAULT NULL COMMENT '最后一条消息ID',
+  `last_from_user_id` VARCHAR(64) DEFAULT NULL COMMENT '最后一条消息发送者',
+  `last_content` VARCHAR(255) DEFAULT NULL COMMENT '最后一条消息预览',
+  `last_time` DATETIME DEFAULT NULL COMMENT '最后消息时间',
+  `last_read_message_id` BIGINT UNSIGNED DEFAULT NULL COMMENT '已读水位（已读到的最后一条消息ID）',
+  `updated_at` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_owner_peer` (`owner_user_id`, `conv_type`, `peer_id`),
+  KEY `idx_owner_time` (`owner_user_id`, `conv_type`, `last_time`)
+) ENGINE=InnoDB COMMENT='会话表';
+
 -- 插入测试数据（可选）
 -- 创建测试用户
 INSERT INTO `t_user` (`user_id`, `password`, `nickname`, `email`, `status`) VALUES
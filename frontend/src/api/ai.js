@@ -1,4 +1,4 @@
-import { requestWithResponse as request } from './request'
+import { requestWithResponse as request, API_BASE_URL } from './request'
 
 // AI聊天API
 export const aiApi = {
@@ -104,6 +104,66 @@ export const aiApi = {
       fileId,
       fileName
     })
+  },
+  
+  /**
+   * 与AI流式聊天（SSE），边生成边回调
+   * @param {string} userId - 用户ID
+   * @param {string} message - 用户消息
+   * @param {Object} options - { imageUrl, fileId, fileName } 图文/文档对话时传入
+   * @param {Function} onDelta - 收到增量文本时回调
+   * @returns {Promise} 完成后 resolve 完整的AI响应（reply / tokensUsed / conversationRound）
+   */
+  async chatStream(userId, message, options = {}, onDelta = () => {}) {
+    const response = await fetch(`${API_BASE_URL}/ai/chat/stream`, {
+      method: 'POST',
+      credentials: 'include',
+      headers: {
+        'Content-Type': 'application/json',
+        'Accept': 'text/event-stream'
+      },
+      body: JSON.stringify({ userId, message, ...options })
+    })
+    if (!response.ok || !response.body) {
+      throw new Error(`AI流式请求失败：${response.status}`)
+    }
+    
+    const reader = response.body.getReader()
+    const decoder = new TextDecoder('utf-8')
+    let buffer = ''
+    
+    // SSE 事件以空行分隔，每个事件由 event: 和若干 data: 行组成
+    while (true) {
+      const { done, value } = await reader.read()
+      if (done) break
+      buffer += decoder.decode(value, { stream: true })
+      
+      let boundary
+      while ((boundary = buffer.indexOf('\n\n')) !== -1) {
+        const rawEvent = buffer.slice(0, boundary)
+        buffer = buffer.slice(boundary + 2)
+        
+        let event = 'message'
+        const dataLines = []
+        for (const line of rawEvent.split('\n')) {
+          if (line.startsWith('event:')) {
+            event = line.slice(6).trim()
+          } else if (line.startsWith('data:')) {
+            dataLines.push(line.slice(5).replace(/^ /, ''))
+          }
+        }
+        const data = dataLines.join('\n')
+        
+        if (event === 'delta') {
+          // 增量文本以 JSON 传输，保留开头的空格和换行
+          onDelta(JSON.parse(data).content)
+        } else if (event === 'done') {
+          return JSON.parse(data)
+        } else if (event === 'error') {
+          throw new Error(data || 'AI暂时无法回复')
+        }
+      }
+    }
+    throw new Error('AI流式响应意外结束')
   }
 }
-
@@ -2,24 +2,31 @@ import { requestWithResponse as request } from './request'
 
 // 消息API
 export const messageApi = {
-  // 查询聊天历史
-  getChatHistory(userId1, userId2) {
+  // 查询聊天历史（游标分页：不传游标返回最近一页，before 向上翻页，after 拉取新消息）
+  getChatHistory(userId1, userId2, { before, after, limit } = {}) {
     return request.get('/message/history', {
-      params: { fromUserId: userId1, toUserId: userId2 }
+      params: { fromUserId: userId1, toUserId: userId2, before, after, limit }
     })
   },
   
-  // 查询未读消息
-  getUnreadMessages(userId) {
+  // 查询未读数（{ users: { userId: n }, groups: { groupId: n }, total }）
+  getUnreadCounts(userId) {
     return request.get('/message/unread', {
       params: { userId }
     })
   },
   
-  // 标记已读
-  markAsRead(messageId) {
+  // 群聊标记已读
+  markGroupRead(userId, groupId) {
+    return request.post('/message/group/read', null, {
+      params: { userId, groupId }
+    })
+  },
+  
+  // 上报已读水位（已读到 messageId 为止，不传表示全部已读）
+  markAsRead(userId, peerId, messageId) {
     return request.get('/message/read', {
-      params: { messageId }
+      params: { userId, peerId, messageId }
     })
   },
   
@@ -49,10 +56,10 @@ export const messageApi = {
     })
   },
   
-  // 获取群聊历史消息
-  getGroupHistory(groupId) {
+  // 获取群聊历史消息（游标分页，参数同 getChatHistory）
+  getGroupHistory(groupId, { before, after, limit } = {}) {
     return request.get('/message/group/history', {
-      params: { groupId }
+      params: { groupId, before, after, limit }
     })
   },
   
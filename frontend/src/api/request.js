@@ -6,7 +6,7 @@ import { ElMessage } from 'element-plus'
  * 开发环境：http://localhost:8080
  * 生产环境：''（相对路径，通过 Nginx 代理）
  */
-const API_BASE_URL = import.meta.env.VITE_API_BASE_URL || (import.meta.env.DEV ? 'http://localhost:8080' : '')
+export const API_BASE_URL = import.meta.env.VITE_API_BASE_URL || (import.meta.env.DEV ? 'http://localhost:8080' : '')
 
 // 防止重复显示401错误提示
 let isUnauthorizedShown = false
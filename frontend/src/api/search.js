@@ -2,10 +2,11 @@ import { requestWithResponse as request } from './request'
 
 // 搜索 API
 export const searchApi = {
-  // 搜索消息
-  searchMessages(keyword, groupId = null) {
+  // 搜索消息（游标分页：首页不传 cursor，之后传上一页返回的 nextCursor）
+  // from / to 为 ISO 时间（如 2025-01-01T00:00:00），指定后只查询覆盖到的月份
+  searchMessages(keyword, { groupId = null, from = null, to = null, cursor = null, size, sort } = {}) {
     return request.get('/search/messages', {
-      params: { keyword, groupId }
+      params: { keyword, groupId, from, to, cursor, size, sort }
     })
   }
 }
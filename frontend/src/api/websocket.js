@@ -118,6 +118,23 @@ class WebSocketClient {
     return true
   }
   
+  // 上报私聊已读水位（服务端合并后推送 read_receipt 给对方）
+  sendRead(toUserId, lastReadMessageId) {
+    if (!this.ws || this.ws.readyState !== WebSocket.OPEN) {
+      return false
+    }
+    
+    const message = {
+      type: 'read',
+      fromUserId: this.userId,
+      toUserId: toUserId,
+      lastReadMessageId: lastReadMessageId
+    }
+    
+    this.ws.send(JSON.stringify(message))
+    return true
+  }
+  
   // 监听消息
   onMessage(handler) {
     this.messageHandlers.push(handler)